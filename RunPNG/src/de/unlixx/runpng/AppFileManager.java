@@ -2,9 +2,15 @@ package de.unlixx.runpng;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.util.ArrayDeque;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.prefs.Preferences;
 
 import org.w3c.dom.Element;
@@ -14,10 +20,16 @@ import de.unlixx.runpng.bitmap.Bitmap32Optimizer;
 import de.unlixx.runpng.bitmap.Bitmap32Sequence;
 import de.unlixx.runpng.png.PngProject;
 import de.unlixx.runpng.png.chunks.PngText;
+import de.unlixx.runpng.png.io.PngBudgetEncoder;
+import de.unlixx.runpng.png.io.PngChannelInputStream;
+import de.unlixx.runpng.png.io.PngChannelOutputStream;
 import de.unlixx.runpng.png.io.PngChunkInputStream;
 import de.unlixx.runpng.png.io.PngChunkOutputStream;
+import de.unlixx.runpng.png.io.PngEncodeOptions;
+import de.unlixx.runpng.png.io.PngFrameCache;
 import de.unlixx.runpng.png.io.PngProjectInputStream;
 import de.unlixx.runpng.png.io.PngProjectOutputStream;
+import de.unlixx.runpng.png.io.PngSqueezer;
 import de.unlixx.runpng.util.ImageUtil;
 import de.unlixx.runpng.util.Loc;
 import de.unlixx.runpng.util.Progress;
@@ -25,6 +37,7 @@ import de.unlixx.runpng.util.SortedList;
 import de.unlixx.runpng.util.Util;
 import de.unlixx.runpng.util.Version;
 import de.unlixx.runpng.util.event.ValueEvent;
+import javafx.application.Platform;
 import javafx.event.EventHandler;
 import javafx.scene.image.Image;
 import javafx.stage.FileChooser;
@@ -61,6 +74,13 @@ public class AppFileManager
 	static final String PNGKEYLASTPATHPROJECTSAVE = "path.project.save";
 	static final String PNGKEYLASTUSED = "lastused";
 
+	// Maximum number of loaded sequences handed over to the GUI thread
+	// but not yet taken by the receive handler.
+	static final int OPENPNGFILESHANDOVER = 2;
+
+	// Number of bitmaps listed in the squeeze results box
+	static final int SQUEEZERESULTSSHOWN = 24;
+
 	App m_app = App.getMainApp();
 
 	Preferences m_prefsRoot = Preferences.userNodeForPackage(App.class);
@@ -69,6 +89,10 @@ public class AppFileManager
 	File m_filePng;
 	File m_fileProject;
 
+	// Deflated bitmaps of the last saves or of the files opened. Separate, because the encode options differ.
+	final PngFrameCache m_cachePng = new PngFrameCache();
+	final PngFrameCache m_cacheProject = new PngFrameCache();
+
 	/**
 	 * Constructor for this AppFileManager.
 	 */
@@ -139,12 +163,16 @@ public class AppFileManager
 	}
 
 	/**
-	 * Resets the actual files to null.
+	 * Resets the actual files to null. Drops the deflated bitmaps of the last document,
+	 * since they are kept by the caches only until the next save otherwise.
 	 */
 	void doFileNew()
 	{
 		m_filePng = null;
 		m_fileProject = null;
+
+		m_cachePng.clear();
+		m_cacheProject.clear();
 	}
 
 	/**
@@ -198,8 +226,11 @@ public class AppFileManager
 			@Override
 			protected Void call() throws Exception
 			{
-				try (PngProjectOutputStream ppos = new PngProjectOutputStream(new FileOutputStream(file)))
+				try (PngProjectOutputStream ppos = new PngProjectOutputStream(new PngChannelOutputStream(file)))
 				{
+					// A project is saved often in between, so speed counts more than size.
+					ppos.setEncodeOptions(PngEncodeOptions.FAST);
+					ppos.setFrameCache(m_cacheProject);
 					ppos.write(project, this);
 				}
 
@@ -294,6 +325,7 @@ public class AppFileManager
 	 * {@link Progress} task and returns.
 	 * The Progress task saves the sequence autonomously in a GUI independent thread to the given file.
 	 * If an error occurs then the user will be informed with a message box.
+	 * If a size budget is chosen, the save is done by {@link #saveBudgetPngFile(File, Bitmap32Sequence, long, boolean)}.
 	 *
 	 * @param file The {@link File} to save the Bitmap32Sequence.
 	 * @param sequence A {@link Bitmap32Sequence} object.
@@ -301,6 +333,13 @@ public class AppFileManager
 	 */
 	void savePngFile(final File file, final Bitmap32Sequence sequence, boolean bSetClean)
 	{
+		final long lBudget = m_app.getFileSettings().getSizeBudget();
+		if (lBudget > 0)
+		{
+			saveBudgetPngFile(file, sequence, lBudget, bSetClean);
+			return;
+		}
+
 		m_app.setWaitCursor();
 
 		if (!sequence.isOptimized() && sequence.isAnimated())
@@ -320,13 +359,21 @@ public class AppFileManager
 		sequence.addTextChunk(new PngText("Cømment", 1, 0, "da_DK", "Cømment", "Smørre brød, smørre brød, rømmpømmpømmpømm! Lørem ipsum dølør sit amet, cønsetetur sadipscing elitr, sed diam nønumy eirmød tempør invidunt ut labøre et døløre magna aliquyam erat, sed diam vøluptua.")); // iTXt compressed
 		*/
 
+		final PngEncodeOptions options = m_app.getFileSettings().getEncodeOptions();
+		final PngSqueezer squeezer = m_app.getFileSettings().createSqueezer();
+		final int nInterlaceMethod = sequence.getHeader().getInterlaceMethod();
+
 		Progress<Void> progress = new Progress<Void>(m_app.getProgressBar(), PngChunkOutputStream.calcStepsForSave(sequence))
 		{
 			@Override
 			protected Void call() throws Exception
 			{
-				try (PngChunkOutputStream pcos = new PngChunkOutputStream(new FileOutputStream(file)))
+				try (PngChunkOutputStream pcos = new PngChunkOutputStream(new PngChannelOutputStream(file)))
 				{
+					pcos.setEncodePool(ForkJoinPool.commonPool());
+					pcos.setEncodeOptions(options);
+					pcos.setSqueezer(squeezer);
+					pcos.setFrameCache(m_cachePng);
 					pcos.write(sequence, this);
 				}
 
@@ -352,6 +399,125 @@ public class AppFileManager
 			{
 				m_app.setClean();
 			}
+
+			if (squeezer != null)
+			{
+				showSqueezeResults(squeezer, nInterlaceMethod);
+			}
+		});
+
+		Thread thread = new Thread(progress);
+		thread.setDaemon(false);
+		thread.start();
+	}
+
+	/**
+	 * Starts a {@link Progress} task, which searches the least lossy optimization of the given
+	 * Bitmap32Sequence fitting into the size budget by a {@link PngBudgetEncoder}, and returns.
+	 * The file is written only if there is such an optimization. A lossy result is reported
+	 * to the user, as well as an error.
+	 *
+	 * @param file The {@link File} to save the Bitmap32Sequence.
+	 * @param sequence A {@link Bitmap32Sequence} object. Not optimized.
+	 * @param lBudget A long containing the maximum file size in bytes.
+	 * @param bSetClean If true then the "clean" flag shall be set in the undo manager after successful save.
+	 */
+	void saveBudgetPngFile(final File file, final Bitmap32Sequence sequence, long lBudget, boolean bSetClean)
+	{
+		m_app.setWaitCursor();
+
+		sequence.addTextChunk(new PngText("Software", Loc.getString("app.title")));
+		sequence.addTextChunk(new PngText("Version", App.APP_VERSION.toString()));
+
+		final PngBudgetEncoder encoder = new PngBudgetEncoder(lBudget);
+		encoder.setEncodeOptions(m_app.getFileSettings().getEncodeOptions());
+		encoder.setPool(ForkJoinPool.commonPool());
+
+		Progress<PngBudgetEncoder.Result> progress = new Progress<PngBudgetEncoder.Result>(m_app.getProgressBar(), 1)
+		{
+			@Override
+			protected PngBudgetEncoder.Result call() throws Exception
+			{
+				PngBudgetEncoder.Result result = encoder.encode(sequence, this);
+
+				try (PngChannelOutputStream pcos = new PngChannelOutputStream(file))
+				{
+					pcos.write(result.getData());
+				}
+
+				return result;
+			}
+		};
+
+		progress.setOnFailed(value ->
+		{
+			m_app.setDefaultCursor();
+
+			Throwable t = progress.getException();
+			if (t != null)
+			{
+				Util.showError(t);
+			}
+		});
+
+		progress.setOnSucceeded(value ->
+		{
+			m_app.setDefaultCursor();
+			if (bSetClean)
+			{
+				m_app.setClean();
+			}
+
+			PngBudgetEncoder.Result result = progress.getValue();
+			if (!result.isLossless())
+			{
+				showBudgetResult(result, lBudget);
+			}
+		});
+
+		Thread thread = new Thread(progress);
+		thread.setDaemon(false);
+		thread.start();
+	}
+
+	/**
+	 * Appends frames to an animated png file in place. The frames already in the file
+	 * are neither decoded nor encoded again.
+	 *
+	 * @param file The {@link File} of an animated png.
+	 * @param listFrames A list of {@link Bitmap32} objects to append.
+	 */
+	void appendPngFrames(final File file, final List<Bitmap32> listFrames)
+	{
+		m_app.setWaitCursor();
+
+		final PngEncodeOptions options = m_app.getFileSettings().getEncodeOptions();
+
+		Progress<Void> progress = new Progress<Void>(m_app.getProgressBar(), listFrames.size() + 1)
+		{
+			@Override
+			protected Void call() throws Exception
+			{
+				PngChunkOutputStream.append(file, listFrames, options, this);
+
+				return null;
+			}
+		};
+
+		progress.setOnFailed(value ->
+		{
+			m_app.setDefaultCursor();
+
+			Throwable t = progress.getException();
+			if (t != null)
+			{
+				Util.showError(t);
+			}
+		});
+
+		progress.setOnSucceeded(value ->
+		{
+			m_app.setDefaultCursor();
 		});
 
 		Thread thread = new Thread(progress);
@@ -359,6 +525,66 @@ public class AppFileManager
 		thread.start();
 	}
 
+	/**
+	 * Shows the user a box with the savings of a squeezed png file save.
+	 *
+	 * @param squeezer The {@link PngSqueezer} object used.
+	 * @param nInterlaceMethod The interlace method before the squeeze.
+	 */
+	void showSqueezeResults(PngSqueezer squeezer, int nInterlaceMethod)
+	{
+		StringBuilder sb = new StringBuilder();
+
+		List<PngSqueezer.Result> listResults = squeezer.getResults();
+		for (int n = 0, nResults = listResults.size(); n < nResults; n++)
+		{
+			if (n == SQUEEZERESULTSSHOWN && nResults > SQUEEZERESULTSSHOWN + 1)
+			{
+				sb.append(Loc.getString("message.squeeze.more", nResults - n)).append('\n');
+				break;
+			}
+
+			PngSqueezer.Result result = listResults.get(n);
+			sb.append(Loc.getString("message.squeeze.bitmap", n + 1, result.getSaving(), result.getSize())).append('\n');
+		}
+
+		if (!listResults.isEmpty() && listResults.get(0).getInterlaceMethod() != nInterlaceMethod)
+		{
+			sb.append(Loc.getString(nInterlaceMethod == 0 ? "message.squeeze.interlaced" : "message.squeeze.notinterlaced")).append('\n');
+		}
+
+		sb.append(Loc.getString("message.squeeze.total", squeezer.getTotalSaving()));
+
+		Util.showInformation("title.squeeze", "message.placeholder.string", sb.toString());
+	}
+
+	/**
+	 * Shows the user a box with the losses of a png file save within a size budget.
+	 *
+	 * @param result The {@link PngBudgetEncoder.Result} object.
+	 * @param lBudget A long containing the maximum file size in bytes.
+	 */
+	void showBudgetResult(PngBudgetEncoder.Result result, long lBudget)
+	{
+		StringBuilder sb = new StringBuilder();
+
+		sb.append(Loc.getString("message.sizebudget.size", result.getSize(), lBudget)).append('\n');
+
+		if (result.getColors() > 0)
+		{
+			sb.append(Loc.getString("message.sizebudget.colors", result.getColors())).append('\n');
+		}
+
+		if (result.getThreshold() > 0)
+		{
+			sb.append(Loc.getString("message.sizebudget.threshold", result.getThreshold())).append('\n');
+		}
+
+		sb.append(Loc.getString("message.sizebudget.error", result.getError()));
+
+		Util.showInformation("title.sizebudget", "message.placeholder.string", sb.toString());
+	}
+
 	/**
 	 * Shows a save dialog to the user and starts a png sequence save.
 	 *
@@ -538,6 +764,7 @@ public class AppFileManager
 
 				try (PngProjectInputStream ppis = new PngProjectInputStream(new FileInputStream(file)))
 				{
+					ppis.setFrameCache(m_cacheProject);
 					project = ppis.read(this);
 				}
 
@@ -587,8 +814,10 @@ public class AppFileManager
 	/**
 	 * Starts a {@link Progress} task to open a given png file or a series
 	 * of png files and returns.
-	 * The Progress task opens and loads each file autonomously in a GUI independent thread. If a png file
-	 * is completely loaded then a receive handler will be invoked for handover.
+	 * The Progress task loads the files autonomously in GUI independent threads, several
+	 * of them in parallel. The loaded files are handed over to the receive handler in the
+	 * GUI thread in their original order. The number of files loaded ahead is bounded,
+	 * so a slow receive handler throttles the loading.
 	 * If an error occurs then the user will be informed with a message box.
 	 *
 	 * <pre>
@@ -614,52 +843,110 @@ public class AppFileManager
 			@Override
 			protected Bitmap32Sequence call() throws Exception
 			{
-				for (File file : afilesLocal)
+				final int nWorkers = Math.max(1, Math.min(afilesLocal.length, Runtime.getRuntime().availableProcessors()));
+
+				ExecutorService executor = Executors.newFixedThreadPool(nWorkers, runnable ->
 				{
-					try (PngChunkInputStream pcis = new PngChunkInputStream(new FileInputStream(file)))
+					Thread thread = new Thread(runnable);
+					thread.setDaemon(true);
+					return thread;
+				});
+
+				ArrayDeque<Future<Bitmap32Sequence>> pending = new ArrayDeque<>();
+				Semaphore handover = new Semaphore(OPENPNGFILESHANDOVER);
+
+				try
+				{
+					int nNext = 0;
+					while (nNext < afilesLocal.length || !pending.isEmpty())
 					{
-						long lDone = getDone();
+						while (nNext < afilesLocal.length && pending.size() < nWorkers)
+						{
+							final File file = afilesLocal[nNext++];
 
-						Bitmap32Sequence sequence = pcis.read(this);
+							pending.add(executor.submit(() -> readPngFile(file)));
+						}
 
-						// This corrects the progress-value for the case
-						// that the file has additional data after IEND.
-						updateProgress(lDone + file.length());
+						final Bitmap32Sequence sequence = takeSequence(pending.poll());
 
-						clearAcknowledge();
-						updateValue(sequence);
+						handover.acquire();
 
-						while (!getAcknowledge())
+						Platform.runLater(() ->
 						{
-							Thread.sleep(10);
-						}
+							try
+							{
+								ValueEvent<Bitmap32Sequence> event = new ValueEvent<Bitmap32Sequence>(sequence);
+								receiveHandler.handle(event);
+							}
+							finally
+							{
+								handover.release();
+							}
+						});
 					}
+
+					// Succeeded not before the last sequence has been taken.
+					handover.acquire(OPENPNGFILESHANDOVER);
+				}
+				finally
+				{
+					executor.shutdownNow();
 				}
 
 				return null;
 			}
-		};
-
-		m_app.setWaitCursor();
 
-		progress.valueProperty().addListener(obs ->
-		{
-			Bitmap32Sequence sequence = progress.getValue();
-			if (sequence != null)
+			/**
+			 * Reads a png file with composited frames. Invoked in parallel by the worker threads.
+			 *
+			 * @param file The {@link File} to read.
+			 * @return A {@link Bitmap32Sequence} object.
+			 * @throws Exception In case of an IO or data format problem.
+			 */
+			Bitmap32Sequence readPngFile(File file) throws Exception
 			{
-				Bitmap32Optimizer.deoptimize(sequence);
+				try (PngChunkInputStream pcis = new PngChunkInputStream(new PngChannelInputStream(file)))
+				{
+					pcis.setDecodePool(ForkJoinPool.commonPool());
+					pcis.setComposite(true);
+					pcis.setFrameCache(m_cachePng);
+					Bitmap32Sequence sequence = pcis.read(this);
+
+					// This corrects the progress-value for the case
+					// that the file has additional data after IEND.
+					addProgress(file.length() - pcis.getPosition());
+
+					return sequence;
+				}
+			}
 
+			/**
+			 * Waits for a worker and gets its sequence.
+			 *
+			 * @param future A {@link Future} object of a worker.
+			 * @return A {@link Bitmap32Sequence} object.
+			 * @throws Exception The exception thrown by the worker.
+			 */
+			Bitmap32Sequence takeSequence(Future<Bitmap32Sequence> future) throws Exception
+			{
 				try
 				{
-					ValueEvent<Bitmap32Sequence> event = new ValueEvent<Bitmap32Sequence>(sequence);
-					receiveHandler.handle(event);
+					return future.get();
 				}
-				finally
+				catch (ExecutionException e)
 				{
-					progress.acknowledge();
+					Throwable t = e.getCause();
+					if (t instanceof Exception)
+					{
+						throw (Exception)t;
+					}
+
+					throw e;
 				}
 			}
-		});
+		};
+
+		m_app.setWaitCursor();
 
 		progress.setOnFailed(value ->
 		{
@@ -818,7 +1105,7 @@ public class AppFileManager
 							m_filePng = afiles[0];
 						}
 
-						m_app.getFramesView().applyBitmapSequence(event.getValue(), bFirst);
+						m_app.getFramesView().applyBitmapSequence(event.getValue(), bFirst, true);
 						bFirst = false;
 					}
 				});
@@ -1,6 +1,7 @@
 package de.unlixx.runpng;
 
 import java.io.File;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 
@@ -183,6 +184,10 @@ public class AppFramesView extends ScrollPane
 					addPngFile(nIdx);
 					break;
 
+				case "menu.file.appendframe":
+					appendToPngFile(pane);
+					break;
+
 				case "menu.edit.duplicate":
 					duplicateFrame(pane);
 					break;
@@ -239,7 +244,7 @@ public class AppFramesView extends ScrollPane
 				{
 					Bitmap32Sequence sequence = event.getValue();
 					UndoableCollection coll = new UndoableCollection("menu.file.addimage");
-					applyBitmapSequence(sequence, true, nAfterIndex + 1, coll);
+					applyBitmapSequence(sequence, true, nAfterIndex + 1, coll, true);
 					setSelectedIndex(nAfterIndex + 1);
 					m_app.addUndo(coll);
 				}
@@ -247,6 +252,32 @@ public class AppFramesView extends ScrollPane
 		}
 	}
 
+	/**
+	 * Appends a single frame to an animated png file on disk. The frames
+	 * already in the file are left as they are.
+	 *
+	 * @param pane The {@link FramePane} object of the frame to append.
+	 */
+	public void appendToPngFile(final FramePane pane)
+	{
+		AppFileManager filemanager = m_app.getFileManager();
+
+		File[] afiles = filemanager.fileOpenDialog("title.file.append", false,
+				new ExtensionFilter(Loc.getString("filter.file.pngapng"), "*.png", "*.apng"));
+
+		if (afiles != null)
+		{
+			int nWidth = m_app.getImageWidth(),
+				nHeight = m_app.getImageHeight();
+
+			PngDelayFraction fraction = pane.getDelayFraction();
+			Bitmap32 bitmap = ImageUtil.bitmapFromImage(pane.getViewImage(), nWidth, nHeight);
+			bitmap.setFrameControl(new PngFrameControl(nWidth, nHeight, 0, 0, fraction.getDelayNum(), fraction.getDelayDen()));
+
+			filemanager.appendPngFrames(afiles[0], Collections.singletonList(bitmap));
+		}
+	}
+
 	/**
 	 * Removes a single FramePane from the {@link FramesBox}.
 	 *
@@ -529,6 +560,21 @@ public class AppFramesView extends ScrollPane
 	 * @param bFirst True if the apply shall start from scratch.
 	 */
 	public void applyBitmapSequence(Bitmap32Sequence sequence, boolean bFirst)
+	{
+		applyBitmapSequence(sequence, bFirst, false);
+	}
+
+	/**
+	 * Applies a Bitmap32Sequence to this view. Which can be the first sequence or
+	 * an additional. If adopted, the images of the frames take over the pixels of the
+	 * bitmaps instead of copying them, which saves memory on loading. The sequence is
+	 * not usable afterwards then.
+	 *
+	 * @param sequence The {@link Bitmap32Sequence} object to apply.
+	 * @param bFirst True if the apply shall start from scratch.
+	 * @param bAdopt True if the sequence is not needed anymore and its bitmaps may be adopted.
+	 */
+	public void applyBitmapSequence(Bitmap32Sequence sequence, boolean bFirst, boolean bAdopt)
 	{
 		Bitmap32Optimizer.deoptimize(sequence);
 
@@ -550,7 +596,7 @@ public class AppFramesView extends ScrollPane
 			fileSettings.setAnimationType(animType);
 		}
 
-		applyBitmapSequence(sequence, false, -1, null);
+		applyBitmapSequence(sequence, false, -1, null, bAdopt);
 
 		if (bFirst)
 		{
@@ -582,9 +628,10 @@ public class AppFramesView extends ScrollPane
 	 * @param nAtIndex The index where to insert the sequence.
 	 * @param coll The {@link UndoableCollection} to list and manage
 	 * the {@link Undoable} object(s).
+	 * @param bAdopt True if the bitmaps may be adopted by the frame images. See {@link ImageUtil#imageAdoptingBitmap(Bitmap32)}.
 	 * @return An int containing the index where the given sequence has been inserted.
 	 */
-	int applyBitmapSequence(Bitmap32Sequence sequence, boolean bIgnoreAnim, int nAtIndex, UndoableCollection coll)
+	int applyBitmapSequence(Bitmap32Sequence sequence, boolean bIgnoreAnim, int nAtIndex, UndoableCollection coll, boolean bAdopt)
 	{
 		int nIndex = nAtIndex < 0 ? getFramesCount() : nAtIndex;
 		nAtIndex = nIndex;
@@ -606,8 +653,20 @@ public class AppFramesView extends ScrollPane
 
 		Bitmap32[] aBitmaps = sequence.getBitmaps();
 
-		for (Bitmap32 bitmap : aBitmaps)
+		if (bAdopt)
+		{
+			// Release the bitmaps from the sequence, so each one is only held by its image afterwards.
+			for (int n = sequence.getFramesCount() - 1; n >= 0; n--)
+			{
+				sequence.removeFrame(n);
+			}
+		}
+
+		for (int n = 0; n < aBitmaps.length; n++)
 		{
+			final Bitmap32 bitmap = aBitmaps[n];
+			aBitmaps[n] = null;
+
 			PngDelayFraction delay;
 			PngFrameControl fcTL = bitmap.getFrameControl();
 			if (fcTL != null)
@@ -619,7 +678,7 @@ public class AppFramesView extends ScrollPane
 				delay = new PngDelayFraction(0, 0);
 			}
 
-			createFrame(ImageUtil.imageFromBitmap(bitmap), nIndex++, delay, coll);
+			createFrame(bAdopt ? ImageUtil.imageAdoptingBitmap(bitmap) : ImageUtil.imageFromBitmap(bitmap), nIndex++, delay, coll);
 		}
 
 		setAdjusting(false);
@@ -0,0 +1,346 @@
+package de.unlixx.runpng;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import de.unlixx.runpng.png.io.PngEncodeOptions;
+import de.unlixx.runpng.png.io.PngRecompressor;
+import de.unlixx.runpng.png.io.PngRecompressor.Result;
+import de.unlixx.runpng.util.Loc;
+
+/**
+ * Command line entry point to recompress png and apng files losslessly by a {@link PngRecompressor},
+ * without starting the application or any other user interface. The files are processed in parallel
+ * by a configurable number of workers. Directories are searched recursively for png and apng files.
+ *
+ * <pre>
+ * java -cp RunPNG.jar de.unlixx.runpng.PngRecompressTool [options] files or directories ...
+ *
+ *   -j workers     Number of files processed in parallel. Default is the number of processors.
+ *   -p preset      Compression preset: fast, balanced or maximum. Default is maximum.
+ *   -s seconds     Time budget per file to search for the best encode options.
+ *   -o directory   Output directory. Default is to replace the files in place.
+ * </pre>
+ *
+ * The exit code is 0 on success, 1 if any file failed and 2 in case of wrong arguments.
+ *
+ * @author H. Unland (https://github.com/HUnland)
+ *
+   <!--
+   Copyright 2021 H. Unland (https://github.com/HUnland)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+   -->
+ */
+public class PngRecompressTool
+{
+	/**
+	 * A file to process with its output file.
+	 */
+	static class Job
+	{
+		final File m_fileIn;
+		final File m_fileOut;
+
+		/**
+		 * Constructor for this Job.
+		 *
+		 * @param fileIn The {@link File} to read.
+		 * @param fileOut The {@link File} to write.
+		 */
+		Job(File fileIn, File fileOut)
+		{
+			m_fileIn = fileIn;
+			m_fileOut = fileOut;
+		}
+	}
+
+	final PngRecompressor m_recompressor = new PngRecompressor();
+	final List<Job> m_listJobs = new ArrayList<>();
+
+	int m_nWorkers = Runtime.getRuntime().availableProcessors();
+	File m_dirOut;
+
+	/**
+	 * Private constructor. Use {@link #main(String[])}.
+	 */
+	private PngRecompressTool() {}
+
+	/**
+	 * Internally used to parse the arguments.
+	 *
+	 * @param args An array of strings with the arguments.
+	 * @return A boolean containing true if valid.
+	 * @throws IOException In case of problems while searching directories.
+	 */
+	boolean parseArgs(String[] args) throws IOException
+	{
+		List<String> listPaths = new ArrayList<>();
+
+		try
+		{
+			for (int n = 0; n < args.length; n++)
+			{
+				switch (args[n])
+				{
+				case "-j":
+					m_nWorkers = Integer.parseInt(args[++n]);
+					if (m_nWorkers < 1)
+					{
+						return false;
+					}
+					break;
+
+				case "-p":
+					PngEncodeOptions.Preset preset = PngEncodeOptions.Preset.valueOf(args[++n].toUpperCase(Locale.ROOT));
+					m_recompressor.setEncodeOptions(new PngEncodeOptions(preset, PngEncodeOptions.Strategy.DEFAULT));
+					break;
+
+				case "-s":
+					m_recompressor.setSqueezeBudget(Math.round(Double.parseDouble(args[++n]) * 1000));
+					break;
+
+				case "-o":
+					m_dirOut = new File(args[++n]);
+					break;
+
+				default:
+					if (args[n].startsWith("-"))
+					{
+						return false;
+					}
+
+					listPaths.add(args[n]);
+					break;
+				}
+			}
+		}
+		catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e)
+		{
+			return false;
+		}
+
+		for (String strPath : listPaths)
+		{
+			File file = new File(strPath);
+			if (file.isDirectory())
+			{
+				addDirectory(file);
+			}
+			else
+			{
+				addJob(file, file.getName());
+			}
+		}
+
+		return !listPaths.isEmpty();
+	}
+
+	/**
+	 * Internally used to add all png and apng files of a directory and its sub directories.
+	 *
+	 * @param dir The directory {@link File}.
+	 * @throws IOException In case of problems while searching.
+	 */
+	void addDirectory(File dir) throws IOException
+	{
+		final Path pathDir = dir.toPath();
+
+		List<Path> listPaths;
+		try (Stream<Path> stream = Files.walk(pathDir))
+		{
+			listPaths = stream.filter(path -> Files.isRegularFile(path) && isPngName(path.getFileName().toString()))
+					.sorted()
+					.collect(Collectors.toList());
+		}
+
+		for (Path path : listPaths)
+		{
+			addJob(path.toFile(), pathDir.relativize(path).toString());
+		}
+	}
+
+	/**
+	 * Internally used to add a file to process.
+	 *
+	 * @param file The {@link File} to read.
+	 * @param strRelative A string containing the path of the output file relative to the output directory.
+	 */
+	void addJob(File file, String strRelative)
+	{
+		m_listJobs.add(new Job(file, m_dirOut != null ? new File(m_dirOut, strRelative) : file));
+	}
+
+	/**
+	 * Internally used to check for a png or apng file name.
+	 *
+	 * @param strName A string containing the file name.
+	 * @return A boolean containing true if it has a png or apng extension.
+	 */
+	static boolean isPngName(String strName)
+	{
+		String str = strName.toLowerCase(Locale.ROOT);
+
+		return str.endsWith(".png") || str.endsWith(".apng");
+	}
+
+	/**
+	 * Internally used to process all files and to report the results in the order of the files.
+	 *
+	 * @return An int containing the number of failed files.
+	 * @throws InterruptedException If interrupted while waiting for a worker.
+	 */
+	int run() throws InterruptedException
+	{
+		final int nWorkers = Math.max(1, Math.min(m_listJobs.size(), m_nWorkers));
+
+		// A single worker may use all processors for the bitmaps of a file.
+		m_recompressor.setPool(nWorkers == 1 ? ForkJoinPool.commonPool() : null);
+
+		ExecutorService executor = Executors.newFixedThreadPool(nWorkers, runnable ->
+		{
+			Thread thread = new Thread(runnable);
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		ArrayDeque<Future<Result>> pending = new ArrayDeque<>();
+		final long lStart = System.currentTimeMillis();
+		long lBefore = 0, lAfter = 0;
+		int nFailed = 0;
+
+		try
+		{
+			int nNext = 0, nTaken = 0;
+			while (nNext < m_listJobs.size() || !pending.isEmpty())
+			{
+				// Some more ahead than workers, so the workers never wait for the report.
+				while (nNext < m_listJobs.size() && pending.size() < nWorkers * 2)
+				{
+					final Job job = m_listJobs.get(nNext++);
+
+					pending.add(executor.submit(() ->
+					{
+						File dirOut = job.m_fileOut.getAbsoluteFile().getParentFile();
+						if (dirOut != null)
+						{
+							Files.createDirectories(dirOut.toPath());
+						}
+
+						return m_recompressor.recompress(job.m_fileIn, job.m_fileOut);
+					}));
+				}
+
+				final Job job = m_listJobs.get(nTaken++);
+
+				try
+				{
+					Result result = pending.poll().get();
+
+					lBefore += result.getSizeBefore();
+					lAfter += result.getSizeAfter();
+
+					report(result);
+				}
+				catch (ExecutionException e)
+				{
+					Throwable t = e.getCause();
+					String strMessage = t.getMessage();
+
+					nFailed++;
+					System.err.println(Loc.getString("tool.result.failed", job.m_fileIn.getPath(),
+							strMessage != null && !strMessage.isEmpty() ? strMessage : t.toString()));
+				}
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+
+		System.out.println(Loc.getString("tool.summary", m_listJobs.size(), lBefore, lAfter,
+				percent(lBefore, lAfter), nFailed, System.currentTimeMillis() - lStart));
+
+		return nFailed;
+	}
+
+	/**
+	 * Internally used to print the result of a file.
+	 *
+	 * @param result A {@link Result} object.
+	 */
+	static void report(Result result)
+	{
+		String strPath = result.getFile().getPath();
+
+		switch (result.getStatus())
+		{
+		case RECOMPRESSED:
+			System.out.println(Loc.getString("tool.result.recompressed", strPath, result.getSizeBefore(), result.getSizeAfter(),
+					percent(result.getSizeBefore(), result.getSizeAfter()), result.getMillis()));
+			break;
+
+		case KEPT:
+			System.out.println(Loc.getString("tool.result.kept", strPath, result.getSizeBefore(), result.getMillis()));
+			break;
+
+		case SKIPPED:
+			System.out.println(Loc.getString("tool.result.skipped", strPath, result.getSizeBefore(), result.getMillis()));
+			break;
+		}
+	}
+
+	/**
+	 * Internally used to calculate the change of size in percent.
+	 *
+	 * @param lBefore A long containing the size before.
+	 * @param lAfter A long containing the size after.
+	 * @return A double containing the change in percent.
+	 */
+	static double percent(long lBefore, long lAfter)
+	{
+		return lBefore > 0 ? (lAfter - lBefore) * 100d / lBefore : 0;
+	}
+
+	/**
+	 * The static main method to run the tool.
+	 *
+	 * @param args An array of strings with options and files or directories.
+	 * @throws Exception In case of unexpected problems.
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		PngRecompressTool tool = new PngRecompressTool();
+
+		if (!tool.parseArgs(args))
+		{
+			System.err.println(Loc.getString("tool.usage"));
+			System.exit(2);
+		}
+
+		System.exit(tool.run() > 0 ? 1 : 0);
+	}
+}
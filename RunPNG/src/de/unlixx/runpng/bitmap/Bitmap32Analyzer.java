@@ -360,10 +360,13 @@ public class Bitmap32Analyzer
 		 */
 		Suggestion()
 		{
-			m_nBitDepth = 8; // TODO: Guess what
+			m_nBitDepth = 8;
 
-			int nSize = m_mapColors.size();
-			if (nSize > 0 && nSize <= 256)
+			final int nSize = m_mapColors.size(),
+					nGreyBitDepth = m_lGrey > 0 && m_lNonGrey == 0 && m_lTranslucent == 0 ? calcGreyscaleBitDepth() : 0;
+
+			// Greyscale needs no palette, so it is preferred at the same bit depth.
+			if (nSize > 0 && nSize <= 256 && (nGreyBitDepth == 0 || calcIndexedBitDepth(nSize) < nGreyBitDepth))
 			{
 				int n = 0, anPalette[] = new int[nSize];
 				for (int nARGB : m_mapColors.keySet())
@@ -373,25 +376,22 @@ public class Bitmap32Analyzer
 
 				m_palette = new PngPalette(anPalette);
 				m_colorType = PngColorType.INDEXED;
+				m_nBitDepth = calcIndexedBitDepth(nSize);
 				m_btRNS = m_lTransparent > 0 || m_lTranslucent > 0;
 			}
+			else if (nGreyBitDepth > 0)
+			{
+				// The tRNS sample has been chosen along with the bit depth.
+				m_colorType = PngColorType.GREYSCALE;
+				m_nBitDepth = nGreyBitDepth;
+				m_btRNS = m_lTransparent > 0;
+			}
 			else
 			{
 				if (m_lGrey > 0 && m_lNonGrey == 0)
 				{
-					if (m_lTransparent == 0 && m_lTranslucent == 0)
-					{
-						m_colorType = PngColorType.GREYSCALE;
-					}
-					else if (m_lTransparent > 0 && m_lTranslucent == 0)
-					{
-						m_colorType = PngColorType.GREYSCALE;
-						m_btRNS = true;
-					}
-					else
-					{
-						m_colorType = PngColorType.GREYSCALE_ALPHA;
-					}
+					// Translucent or no grey level left for a tRNS sample
+					m_colorType = PngColorType.GREYSCALE_ALPHA;
 				}
 				else
 				{
@@ -411,11 +411,12 @@ public class Bitmap32Analyzer
 				}
 			}
 
-			if (m_btRNS && (m_colorType == PngColorType.GREYSCALE || m_colorType == PngColorType.TRUECOLOR))
+			if (m_btRNS && m_colorType == PngColorType.TRUECOLOR)
 			{
+				// A color not used by an opaque pixel
 				for (int n = 0; n < 0x00ffffff; n++)
 				{
-					if (!m_mapColors.containsKey(n))
+					if (!m_mapColors.containsKey(0xff000000 | n))
 					{
 						m_ntRNSColor = n;
 						break;
@@ -424,6 +425,81 @@ public class Bitmap32Analyzer
 			}
 		}
 
+		/**
+		 * Calculates the minimal bit depth of a palette.
+		 *
+		 * @param nSize An int containing the number of colors 1 - 256.
+		 * @return An int containing the bit depth 1, 2, 4 or 8.
+		 */
+		int calcIndexedBitDepth(int nSize)
+		{
+			return nSize <= 2 ? 1 : nSize <= 4 ? 2 : nSize <= 16 ? 4 : 8;
+		}
+
+		/**
+		 * Calculates the minimal greyscale bit depth, which represents all grey levels
+		 * exactly. If there are transparent pixels, a grey level not in use is needed
+		 * for the tRNS sample, which is kept in m_ntRNSColor then.
+		 *
+		 * @return An int containing the bit depth 1, 2, 4 or 8. Or 0 if there is no grey level left for the tRNS sample.
+		 */
+		int calcGreyscaleBitDepth()
+		{
+			final boolean[] abUsed = new boolean[256];
+			for (int nARGB : m_mapColors.keySet())
+			{
+				if ((nARGB >>> 24) != 0)
+				{
+					abUsed[nARGB & 0xff] = true;
+				}
+			}
+
+			for (int nBitDepth = 1; nBitDepth <= 8; nBitDepth <<= 1)
+			{
+				final int nLevels = 1 << nBitDepth,
+						nStep = 0xff / (nLevels - 1); // 0xff, 0x55, 0x11, 0x01
+
+				int nFree = -1;
+				boolean bExact = true;
+
+				for (int nL = 0; nL < 256; nL++)
+				{
+					if (abUsed[nL] && nL % nStep != 0)
+					{
+						bExact = false;
+						break;
+					}
+				}
+
+				if (!bExact)
+				{
+					continue;
+				}
+
+				if (m_lTransparent == 0)
+				{
+					return nBitDepth;
+				}
+
+				for (int nSample = 0; nSample < nLevels; nSample++)
+				{
+					if (!abUsed[nSample * nStep])
+					{
+						nFree = nSample;
+						break;
+					}
+				}
+
+				if (nFree >= 0)
+				{
+					m_ntRNSColor = nFree;
+					return nBitDepth;
+				}
+			}
+
+			return 0;
+		}
+
 		/**
 		 * Gets the suggested bit depth.
 		 *
@@ -0,0 +1,361 @@
+package de.unlixx.runpng.bitmap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+
+import de.unlixx.runpng.png.PngAnimationType;
+import de.unlixx.runpng.png.chunks.PngFrameControl;
+import de.unlixx.runpng.png.chunks.PngHeader;
+import de.unlixx.runpng.png.io.PngChunkIndex;
+import de.unlixx.runpng.png.io.PngIOCore;
+import de.unlixx.runpng.util.exceptions.Failure;
+
+/**
+ * Bitmap32LazySequence is a view of an indexed png file as {@link Bitmap32Sequence}.
+ * A bitmap is inflated from the file not before it is requested, e.g. by
+ * {@link #getFrame(int)}. The inflated bitmaps are kept in a least recently used
+ * cache bounded by the size of their pixel arrays. Like a sequence read by
+ * {@link de.unlixx.runpng.png.io.PngChunkInputStream#read(de.unlixx.runpng.util.Progress)}
+ * the frames are still optimized.
+ * <p>
+ * Bitmaps handed out by {@link #getFrame(int)}, {@link #getDefaultBitmap()} and {@link #getBitmaps()}
+ * may be modified by the caller, e.g. by the {@link Bitmap32Optimizer}. So they are pinned, which means
+ * they are held by the sequence itself and never evicted, just like frames added or replaced.
+ * Only the bitmaps inflated by {@link #getFrameReadOnly(int)} stay in the cache and may be evicted.
+ *
+ * @author H. Unland (https://github.com/HUnland)
+ *
+   <!--
+   Copyright 2021 H. Unland (https://github.com/HUnland)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+   -->
+ */
+public class Bitmap32LazySequence extends Bitmap32Sequence implements Closeable
+{
+	/**
+	 * Default cache size in bytes.
+	 */
+	public static final long DEFAULT_CACHE_SIZE = 0x10000000; // 256 MB
+
+	final PngChunkIndex m_index;
+	final PngIOCore m_pngIOCore;
+	final Scanline32 m_scanline;
+
+	// Index entry per frame, or -1 if the frame is held in m_frames.
+	final List<Integer> m_listEntries = new ArrayList<>();
+	int m_nDefaultEntry = -1;
+
+	final long m_lCacheSize;
+	long m_lCacheUsed;
+	final LinkedHashMap<Integer, Bitmap32> m_cache = new LinkedHashMap<>(16, .75f, true);
+
+	/**
+	 * Constructor for this Bitmap32LazySequence.
+	 *
+	 * @param index A {@link PngChunkIndex} object of a file.
+	 * @param lCacheSize A long containing the maximum size of the inflated bitmaps
+	 * to keep in bytes. At least the most recent bitmap is kept anyway.
+	 */
+	public Bitmap32LazySequence(PngChunkIndex index, long lCacheSize)
+	{
+		super(index.getHeader(), null, true);
+
+		m_index = index;
+		m_lCacheSize = lCacheSize;
+
+		final PngHeader header = index.getHeader();
+
+		m_pngIOCore = new PngIOCore(header);
+		m_scanline = Scanline32.getScanlineFor(header.getColorType(), header.getBitDepth(), new Bitmap32(0, 0));
+		m_scanline.setTransparency(index.getTransparency());
+
+		if (index.getPalette() != null)
+		{
+			m_scanline.setPalette(index.getPalette());
+		}
+
+		m_animationType = index.getAnimationType();
+
+		if (index.getAnimationControl() != null)
+		{
+			m_animationControl.setNumPlays(index.getAnimationControl().getNumPlays());
+		}
+
+		for (int n = 0, nCount = index.getTextChunksCount(); n < nCount; n++)
+		{
+			addTextChunk(index.getTextChunk(n));
+		}
+
+		m_nDefaultEntry = index.getDefaultEntryIndex();
+
+		for (int n = 0, nCount = index.getEntriesCount(); n < nCount; n++)
+		{
+			if (index.getEntry(n).getFrameControl() != null && m_animationType != PngAnimationType.NONE)
+			{
+				m_frames.add(null);
+				m_listEntries.add(n);
+			}
+		}
+
+		m_animationControl.setNumFrames(getFramesCount());
+	}
+
+	/**
+	 * Gets the underlying index.
+	 *
+	 * @return A {@link PngChunkIndex} object.
+	 */
+	public PngChunkIndex getIndex()
+	{
+		return m_index;
+	}
+
+	/**
+	 * Gets a bitmap of the index, either from the cache or by inflating it.
+	 *
+	 * @param nEntry An int containing the index of the entry.
+	 * @return A {@link Bitmap32} object.
+	 */
+	synchronized Bitmap32 getEntryBitmap(int nEntry)
+	{
+		Bitmap32 bitmap = m_cache.get(nEntry);
+		if (bitmap == null)
+		{
+			bitmap = inflateEntry(nEntry);
+
+			m_cache.put(nEntry, bitmap);
+			m_lCacheUsed += 4L * bitmap.getPixels().length;
+
+			Iterator<Map.Entry<Integer, Bitmap32>> iter = m_cache.entrySet().iterator();
+			while (m_lCacheUsed > m_lCacheSize && m_cache.size() > 1)
+			{
+				m_lCacheUsed -= 4L * iter.next().getValue().getPixels().length;
+				iter.remove();
+			}
+		}
+
+		return bitmap;
+	}
+
+	/**
+	 * Pins a bitmap of the index. It is taken from the cache or inflated, and from now on held
+	 * by the sequence for all frames and the default bitmap using this entry.
+	 *
+	 * @param nEntry An int containing the index of the entry.
+	 * @return A {@link Bitmap32} object.
+	 */
+	synchronized Bitmap32 pinEntry(int nEntry)
+	{
+		Bitmap32 bitmap = m_cache.remove(nEntry);
+		if (bitmap != null)
+		{
+			m_lCacheUsed -= 4L * bitmap.getPixels().length;
+		}
+		else
+		{
+			bitmap = inflateEntry(nEntry);
+		}
+
+		for (int n = 0, nSlots = m_listEntries.size(); n < nSlots; n++)
+		{
+			if (m_listEntries.get(n) == nEntry)
+			{
+				m_frames.set(n, bitmap);
+				m_listEntries.set(n, -1);
+			}
+		}
+
+		if (m_nDefaultEntry == nEntry)
+		{
+			m_bitmapDefault = bitmap;
+			m_nDefaultEntry = -1;
+		}
+
+		return bitmap;
+	}
+
+	/**
+	 * Inflates a bitmap of the index from the file.
+	 *
+	 * @param nEntry An int containing the index of the entry.
+	 * @return A {@link Bitmap32} object.
+	 */
+	Bitmap32 inflateEntry(int nEntry)
+	{
+		final PngChunkIndex.Entry entry = m_index.getEntry(nEntry);
+		final PngFrameControl fcTL = entry.getFrameControl();
+
+		Bitmap32 bitmap = fcTL != null ? new Bitmap32(fcTL.clone(), null) : new Bitmap32(m_header.getWidth(), m_header.getHeight());
+
+		m_scanline.setBitmap(bitmap);
+
+		try
+		{
+			m_pngIOCore.beginInflate(m_scanline);
+			m_index.inflate(entry, m_pngIOCore);
+			m_pngIOCore.endInflate();
+		}
+		catch (IOException | DataFormatException e)
+		{
+			throw new Failure("failure.index.read", m_index.getFile().getName(), e.getMessage());
+		}
+
+		return bitmap;
+	}
+
+	@Override
+	public synchronized void setDefaultBitmap(Bitmap32 bitmap)
+	{
+		int nSlot = m_nDefaultEntry >= 0 ? m_listEntries.indexOf(m_nDefaultEntry)
+				: (m_bitmapDefault != null ? m_frames.indexOf(m_bitmapDefault) : -1);
+
+		if (nSlot >= 0)
+		{
+			m_frames.remove(nSlot);
+			m_listEntries.remove(nSlot);
+		}
+
+		if (m_animationType == PngAnimationType.ANIMATED)
+		{
+			m_frames.add(0, bitmap);
+			m_listEntries.add(0, -1);
+		}
+
+		m_bitmapDefault = bitmap;
+		m_nDefaultEntry = -1;
+	}
+
+	@Override
+	public synchronized Bitmap32 getDefaultBitmap()
+	{
+		return m_nDefaultEntry >= 0 ? pinEntry(m_nDefaultEntry) : m_bitmapDefault;
+	}
+
+	@Override
+	public synchronized Bitmap32[] getBitmaps()
+	{
+		final int nFrames = getFramesCount(),
+			nOffs = m_animationType == PngAnimationType.ANIMATED ? 0 : 1;
+
+		Bitmap32[] aBitmaps = new Bitmap32[nFrames + nOffs];
+		if (nOffs > 0)
+		{
+			aBitmaps[0] = getDefaultBitmap();
+		}
+
+		for (int n = 0; n < nFrames; n++)
+		{
+			aBitmaps[n + nOffs] = getFrame(n);
+		}
+
+		return aBitmaps;
+	}
+
+	@Override
+	public synchronized Bitmap32 getFrame(int nIdx)
+	{
+		final int nEntry = m_listEntries.get(nIdx);
+
+		return nEntry >= 0 ? pinEntry(nEntry) : m_frames.get(nIdx);
+	}
+
+	/**
+	 * Gets a frame (bitmap) without pinning it. A bitmap not held by the sequence yet is
+	 * taken from the cache or inflated and may be evicted later. So it must not be modified.
+	 *
+	 * @param nIdx An int containing the index.
+	 * @return A {@link Bitmap32} object.
+	 */
+	public synchronized Bitmap32 getFrameReadOnly(int nIdx)
+	{
+		final int nEntry = m_listEntries.get(nIdx);
+
+		return nEntry >= 0 ? getEntryBitmap(nEntry) : m_frames.get(nIdx);
+	}
+
+	/**
+	 * Gets the default bitmap without pinning it. See {@link #getFrameReadOnly(int)}.
+	 *
+	 * @return A {@link Bitmap32} object. It must not be modified.
+	 */
+	public synchronized Bitmap32 getDefaultBitmapReadOnly()
+	{
+		return m_nDefaultEntry >= 0 ? getEntryBitmap(m_nDefaultEntry) : m_bitmapDefault;
+	}
+
+	@Override
+	public synchronized void addFrame(Bitmap32 bitmap)
+	{
+		m_listEntries.add(-1);
+		super.addFrame(bitmap);
+	}
+
+	@Override
+	public synchronized Bitmap32 removeFrame(int nIdx)
+	{
+		Bitmap32 bitmap = getFrame(nIdx);
+
+		m_frames.remove(nIdx);
+		m_listEntries.remove(nIdx);
+
+		return bitmap;
+	}
+
+	@Override
+	public synchronized Bitmap32 replaceFrame(int nIdx, Bitmap32 bitmapNew)
+	{
+		Bitmap32 bitmapOld = getFrame(nIdx);
+
+		m_frames.set(nIdx, bitmapNew);
+		m_listEntries.set(nIdx, -1);
+
+		return bitmapOld;
+	}
+
+	/**
+	 * Creates a deep copy of this sequence as a plain {@link Bitmap32Sequence}. The bitmaps
+	 * are read without pinning them, so cloning does not keep all frames in this sequence.
+	 *
+	 * @return A {@link Bitmap32Sequence} object.
+	 */
+	@Override
+	public synchronized Bitmap32Sequence clone()
+	{
+		final Bitmap32 bitmapDefault = getDefaultBitmapReadOnly();
+		Bitmap32Sequence clone = cloneSettings(bitmapDefault.clone());
+
+		for (int n = 0, nFrames = getFramesCount(); n < nFrames; n++)
+		{
+			// Compared by entry as well, since the cache may inflate an entry twice.
+			final int nEntry = m_listEntries.get(n);
+			Bitmap32 bitmap = nEntry >= 0 && nEntry == m_nDefaultEntry ? bitmapDefault : getFrameReadOnly(n);
+
+			clone.m_frames.add(bitmap == bitmapDefault ? clone.m_bitmapDefault : bitmap.clone());
+		}
+
+		return clone;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		m_index.close();
+	}
+}
@@ -1,7 +1,14 @@
 package de.unlixx.runpng.bitmap;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.zip.DataFormatException;
 
 import de.unlixx.runpng.png.PngAnimationType;
@@ -12,7 +19,10 @@ import de.unlixx.runpng.png.chunks.PngHeader;
 import de.unlixx.runpng.png.chunks.PngPalette;
 import de.unlixx.runpng.png.chunks.PngText;
 import de.unlixx.runpng.png.chunks.PngTransparency;
+import de.unlixx.runpng.png.io.PngEncodeOptions;
+import de.unlixx.runpng.png.io.PngFrameCache;
 import de.unlixx.runpng.png.io.PngIOCore;
+import de.unlixx.runpng.png.io.PngPassListener;
 
 /**
  * The Bitmap32Manager controls reading and writing
@@ -47,6 +57,291 @@ public class Bitmap32Manager
 	PngPalette m_palette;
 	PngTransparency m_transparency;
 
+	// Parallel inflation of the bitmaps
+	ForkJoinPool m_pool;
+	final ArrayDeque<InflateTask> m_dequePending = new ArrayDeque<>();
+	final ConcurrentLinkedQueue<PngIOCore> m_queueIOCores = new ConcurrentLinkedQueue<>();
+
+	// Parallel deflation of the bitmaps
+	ForkJoinPool m_poolEncode;
+	boolean m_bDeflateBlocks;
+	PngEncodeOptions m_options = PngEncodeOptions.MAXIMUM;
+	final ArrayDeque<DeflateTask> m_dequeSubmitted = new ArrayDeque<>();
+
+	// Reduced resolution while reading
+	int m_nSubsample = 1;
+
+	// Progressive decoding of interlaced bitmaps
+	PngPassListener m_passListener;
+
+	// Composited decoding of animations
+	boolean m_bComposite;
+	Bitmap32 m_bitmapCanvas;
+	PngFrameControl m_fcTLCanvas;
+	int[] m_anPrevious;
+
+	// Takes the original deflated data of the bitmaps read
+	PngFrameCache m_cache;
+	final ByteArrayOutputStream m_bosOriginal = new ByteArrayOutputStream();
+
+	/**
+	 * InflateTask inflates the deflated data of a single bitmap in a pool thread.
+	 * The inflated bitmap is applied to the sequence later by the reading thread,
+	 * in the order the tasks have been submitted. A frame to composite is kept
+	 * unfiltered, to be written directly onto the canvas by the reading thread.
+	 */
+	static class InflateTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		final int m_nChunkCode;
+		final PngFrameControl m_fcTL;
+		final Scanline32 m_scanline;
+		final PngHeader m_header;
+		final ConcurrentLinkedQueue<PngIOCore> m_queueIOCores;
+		byte[] m_abData;
+		byte[] m_abOriginal; // Kept for a frame cache
+		byte[] m_abUnfiltered; // Kept for the canvas
+		boolean m_bUnfiltered;
+		PngFrameCache m_cache;
+		PngPalette m_palette;
+		PngTransparency m_transparency;
+		DataFormatException m_exception;
+
+		/**
+		 * Constructor for this InflateTask.
+		 *
+		 * @param nChunkCode Either IDAT or fdAT.
+		 * @param fcTL A {@link PngFrameControl} object. Or null if none has been read.
+		 * @param scanline A {@link Scanline32} object for exclusive use by this task.
+		 * @param abData The bitmap bytes still deflated.
+		 * @param header A {@link PngHeader} object.
+		 * @param queueIOCores A queue of idle {@link PngIOCore} objects to reuse.
+		 */
+		InflateTask(int nChunkCode, PngFrameControl fcTL, Scanline32 scanline, byte[] abData, PngHeader header, ConcurrentLinkedQueue<PngIOCore> queueIOCores)
+		{
+			m_nChunkCode = nChunkCode;
+			m_fcTL = fcTL;
+			m_scanline = scanline;
+			m_abData = abData;
+			m_header = header;
+			m_queueIOCores = queueIOCores;
+		}
+
+		@Override
+		protected void compute()
+		{
+			PngIOCore pngIOCore = m_queueIOCores.poll();
+			if (pngIOCore == null)
+			{
+				pngIOCore = new PngIOCore(m_header);
+			}
+
+			try
+			{
+				if (m_bUnfiltered)
+				{
+					m_abUnfiltered = pngIOCore.inflateUnfiltered(m_abData, m_scanline);
+
+					if (m_abOriginal != null)
+					{
+						// The frame as decoded is needed for the key, but not kept.
+						Bitmap32 bitmap = new Bitmap32(m_fcTL, null);
+						pngIOCore.writeUnfiltered(m_abUnfiltered, m_scanline.duplicate(bitmap));
+						m_cache.putOriginal(m_header, m_palette, m_transparency, bitmap, m_abOriginal);
+						m_abOriginal = null;
+					}
+				}
+				else
+				{
+					pngIOCore.inflate(m_abData, m_scanline);
+				}
+			}
+			catch (DataFormatException e)
+			{
+				m_exception = e;
+			}
+			finally
+			{
+				m_abData = null;
+				m_queueIOCores.offer(pngIOCore);
+			}
+		}
+	}
+
+	/**
+	 * DeflateOutput collects the deflated data of a {@link DeflateTask} in pieces of 32 kBytes.
+	 * The writing thread takes the pieces of the eldest task while it is still deflating.
+	 */
+	static class DeflateOutput extends OutputStream implements ForkJoinPool.ManagedBlocker
+	{
+		final ArrayDeque<byte[]> m_dequePieces = new ArrayDeque<>();
+		byte[] m_abPiece = new byte[PngConstants.BUFFER_32K];
+		int m_nFill;
+		boolean m_bClosed;
+
+		@Override
+		public void write(int b)
+		{
+			m_abPiece[m_nFill++] = (byte)b;
+
+			if (m_nFill == m_abPiece.length)
+			{
+				publish();
+			}
+		}
+
+		@Override
+		public void write(byte[] ab, int nOffs, int nLen)
+		{
+			while (nLen > 0)
+			{
+				final int nSize = Math.min(nLen, m_abPiece.length - m_nFill);
+
+				System.arraycopy(ab, nOffs, m_abPiece, m_nFill, nSize);
+				m_nFill += nSize;
+				nOffs += nSize;
+				nLen -= nSize;
+
+				if (m_nFill == m_abPiece.length)
+				{
+					publish();
+				}
+			}
+		}
+
+		@Override
+		public void close()
+		{
+			if (m_nFill > 0)
+			{
+				publish();
+			}
+
+			synchronized (this)
+			{
+				m_bClosed = true;
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Hands the current piece over to the writing thread.
+		 */
+		void publish()
+		{
+			final byte[] ab = m_nFill == m_abPiece.length ? m_abPiece : Arrays.copyOf(m_abPiece, m_nFill);
+
+			m_abPiece = new byte[PngConstants.BUFFER_32K];
+			m_nFill = 0;
+
+			synchronized (this)
+			{
+				m_dequePieces.add(ab);
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Takes the eldest piece.
+		 *
+		 * @return A byte array containing the piece. Or null if there is none at the moment.
+		 */
+		synchronized byte[] poll()
+		{
+			return m_dequePieces.poll();
+		}
+
+		/**
+		 * Gets whether all pieces have been published.
+		 *
+		 * @return A boolean containing true if closed.
+		 */
+		synchronized boolean isClosed()
+		{
+			return m_bClosed;
+		}
+
+		@Override
+		public synchronized boolean isReleasable()
+		{
+			return m_bClosed || !m_dequePieces.isEmpty();
+		}
+
+		@Override
+		public synchronized boolean block() throws InterruptedException
+		{
+			while (!isReleasable())
+			{
+				wait();
+			}
+
+			return true;
+		}
+	}
+
+	/**
+	 * DeflateTask filters and deflates a single bitmap in a pool thread.
+	 * The deflated data is taken by the writing thread in the order the tasks
+	 * have been submitted, piece by piece as soon as it is deflated.
+	 */
+	static class DeflateTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		final Scanline32 m_scanline;
+		final PngHeader m_header;
+		final ConcurrentLinkedQueue<PngIOCore> m_queueIOCores;
+		final ForkJoinPool m_poolBlocks;
+		final PngEncodeOptions m_options;
+		final DeflateOutput m_output = new DeflateOutput();
+		IOException m_exception;
+
+		/**
+		 * Constructor for this DeflateTask.
+		 *
+		 * @param scanline A {@link Scanline32} object for exclusive use by this task.
+		 * @param header A {@link PngHeader} object.
+		 * @param queueIOCores A queue of idle {@link PngIOCore} objects to reuse.
+		 * @param poolBlocks A {@link ForkJoinPool} to deflate the bitmap in parallel blocks. Or null.
+		 * @param options A {@link PngEncodeOptions} object.
+		 */
+		DeflateTask(Scanline32 scanline, PngHeader header, ConcurrentLinkedQueue<PngIOCore> queueIOCores, ForkJoinPool poolBlocks, PngEncodeOptions options)
+		{
+			m_scanline = scanline;
+			m_header = header;
+			m_queueIOCores = queueIOCores;
+			m_poolBlocks = poolBlocks;
+			m_options = options;
+		}
+
+		@Override
+		protected void compute()
+		{
+			PngIOCore pngIOCore = m_queueIOCores.poll();
+			if (pngIOCore == null)
+			{
+				pngIOCore = new PngIOCore(m_header);
+			}
+
+			try
+			{
+				pngIOCore.setDeflatePool(m_poolBlocks);
+				pngIOCore.setEncodeOptions(m_options);
+				pngIOCore.deflate(m_output, m_scanline);
+			}
+			catch (IOException e)
+			{
+				m_exception = e;
+			}
+			finally
+			{
+				m_output.close();
+				m_queueIOCores.offer(pngIOCore);
+			}
+		}
+	}
+
 	/**
 	 * Constructor without parameter for reading a {@link Bitmap32Sequence}.
 	 */
@@ -85,14 +380,123 @@ public class Bitmap32Manager
 	{
 		m_header = header;
 		m_pngIOCore = new PngIOCore(header);
+		m_pngIOCore.setPassListener(m_passListener);
 
 		if (m_sequence == null)
 		{
-			m_sequence = new Bitmap32Sequence(header, true);
+			if (m_nSubsample > 1)
+			{
+				m_sequence = new Bitmap32Sequence(new PngHeader(
+						Scanline32.calcSubsampledSize(header.getWidth(), m_nSubsample),
+						Scanline32.calcSubsampledSize(header.getHeight(), m_nSubsample),
+						header.getBitDepth(), header.getColorType(), header.getCompressionMethod(),
+						header.getFilterMethod(), header.getInterlaceMethod()), true);
+			}
+			else
+			{
+				m_sequence = new Bitmap32Sequence(header, !isCompositing());
+			}
+
 			m_scanline = Scanline32.getScanlineFor(header.getColorType(), header.getBitDepth(), m_sequence.getDefaultBitmap());
+			m_scanline.setSubsampledBitmap(m_sequence.getDefaultBitmap(), header.getWidth(), header.getHeight(), m_nSubsample);
 		}
 	}
 
+	/**
+	 * Sets a subsampling factor n for reading. Then only every nth pixel of every nth scanline
+	 * is converted, into bitmaps and frame controls reduced accordingly. This is a cheap way to
+	 * get previews or thumbnails of large images. Needs to be set before the header.
+	 *
+	 * @param nSubsample An int containing the subsampling factor. 1 means full resolution, which is the default.
+	 */
+	public void setSubsample(int nSubsample)
+	{
+		m_nSubsample = Math.max(1, nSubsample);
+	}
+
+	/**
+	 * Sets the composite mode for reading. Then the frames of an animation are composited
+	 * according to their dispose and blend operators while reading, as done by
+	 * {@link Bitmap32Optimizer#deoptimize(Bitmap32Sequence)} afterwards otherwise. The frames
+	 * are inflated directly into a full size canvas, which is copied per frame. The sequence
+	 * read is not optimized then. Not applicable in case of subsampling. Needs to be set before the header.
+	 *
+	 * @param bComposite A boolean containing true to composite.
+	 */
+	public void setComposite(boolean bComposite)
+	{
+		m_bComposite = bComposite;
+	}
+
+	/**
+	 * Gets whether the composite mode is set.
+	 *
+	 * @return A boolean containing true if set.
+	 */
+	public boolean isComposite()
+	{
+		return m_bComposite;
+	}
+
+	/**
+	 * Gets whether the frames are actually composited, which is not the case if subsampled.
+	 *
+	 * @return A boolean containing true if compositing.
+	 */
+	boolean isCompositing()
+	{
+		return m_bComposite && m_nSubsample == 1;
+	}
+
+	/**
+	 * Sets a cache to put the original deflated data of the bitmaps read into. The frames of
+	 * an animation are put as decoded, before compositing. So they are not inflated into the
+	 * canvas then, unless by a decode pool. Not applicable in case of subsampling or together with a pass listener,
+	 * which may stop decoding early.
+	 *
+	 * @param cache A {@link PngFrameCache} object. Or null, which is the default.
+	 */
+	public void setFrameCache(PngFrameCache cache)
+	{
+		m_cache = cache;
+	}
+
+	/**
+	 * Gets whether the original deflated data of the bitmaps read is kept for the frame cache.
+	 *
+	 * @return A boolean containing true if kept.
+	 */
+	boolean isCaching()
+	{
+		return m_cache != null && m_nSubsample == 1 && m_passListener == null;
+	}
+
+	/**
+	 * Sets a listener to be informed after every completed pass of an interlaced bitmap
+	 * inflated by the reading thread. Not applicable to bitmaps inflated by a decode pool.
+	 *
+	 * @param listener A {@link PngPassListener} object. Or null to remove it.
+	 */
+	public void setPassListener(PngPassListener listener)
+	{
+		m_passListener = listener;
+
+		if (m_pngIOCore != null)
+		{
+			m_pngIOCore.setPassListener(listener);
+		}
+	}
+
+	/**
+	 * Gets the subsampling factor for reading.
+	 *
+	 * @return An int containing the subsampling factor.
+	 */
+	public int getSubsample()
+	{
+		return m_nSubsample;
+	}
+
 	/**
 	 * Gets the header in use.
 	 *
@@ -160,6 +564,169 @@ public class Bitmap32Manager
 		m_pngIOCore.deflate(os, m_scanline);
 	}
 
+	/**
+	 * Sets a pool to deflate the bitmaps in parallel by {@link #submitBitmap(Bitmap32)}.
+	 *
+	 * @param pool A {@link ForkJoinPool} object. Or null to deflate in the calling thread.
+	 */
+	public void setEncodePool(ForkJoinPool pool)
+	{
+		m_poolEncode = pool;
+	}
+
+	/**
+	 * Gets the pool to deflate the bitmaps in parallel.
+	 *
+	 * @return A {@link ForkJoinPool} object. Or null if none is set.
+	 */
+	public ForkJoinPool getEncodePool()
+	{
+		return m_poolEncode;
+	}
+
+	/**
+	 * Sets the options for deflating the bitmaps.
+	 *
+	 * @param options A {@link PngEncodeOptions} object.
+	 */
+	public void setEncodeOptions(PngEncodeOptions options)
+	{
+		m_options = options != null ? options : PngEncodeOptions.MAXIMUM;
+		m_pngIOCore.setEncodeOptions(m_options);
+	}
+
+	/**
+	 * Gets the options for deflating the bitmaps.
+	 *
+	 * @return A {@link PngEncodeOptions} object.
+	 */
+	public PngEncodeOptions getEncodeOptions()
+	{
+		return m_options;
+	}
+
+	/**
+	 * Sets whether a large bitmap is deflated in parallel blocks by the encode pool,
+	 * see {@link PngIOCore#setDeflatePool(ForkJoinPool)}. This is useful if there are
+	 * fewer bitmaps to deflate than threads in the pool, e.g. a single image.
+	 *
+	 * @param bDeflateBlocks A boolean containing true to deflate in parallel blocks.
+	 */
+	public void setDeflateBlocks(boolean bDeflateBlocks)
+	{
+		m_bDeflateBlocks = bDeflateBlocks;
+	}
+
+	/**
+	 * Creates a scanline object for a bitmap to deflate, with the palette and
+	 * transparency of the sequence, for exclusive use by the caller.
+	 *
+	 * @param bitmap A {@link Bitmap32} object to deflate.
+	 * @return A {@link Scanline32} object.
+	 */
+	public Scanline32 createScanline(Bitmap32 bitmap)
+	{
+		Scanline32 scanline = Scanline32.getScanlineFor(m_header.getColorType(), m_header.getBitDepth(), bitmap);
+		scanline.setPalette(m_palette);
+		scanline.setTransparency(m_transparency);
+
+		return scanline;
+	}
+
+	/**
+	 * Submits a bitmap to be filtered and deflated. With an encode pool the bitmap is deflated
+	 * by a pool thread with a scanline object and IO core of its own, otherwise immediately.
+	 * The deflated data is taken by {@link #takeDeflatedBitmap(OutputStream)} in the order of submission.
+	 * The bitmap must not be changed until then.
+	 *
+	 * @param bitmap A {@link Bitmap32} object to deflate.
+	 */
+	public void submitBitmap(Bitmap32 bitmap)
+	{
+		DeflateTask task = new DeflateTask(createScanline(bitmap), m_header, m_queueIOCores, m_bDeflateBlocks ? m_poolEncode : null, m_options);
+
+		m_dequeSubmitted.add(task);
+
+		if (m_poolEncode != null)
+		{
+			m_poolEncode.execute(task);
+		}
+		else
+		{
+			task.invoke();
+		}
+	}
+
+	/**
+	 * Takes the deflated data of the eldest bitmap submitted. It is written piece by piece
+	 * as soon as it is deflated, so a bitmap in turn is never held as a whole.
+	 *
+	 * @param os The {@link OutputStream} to write the deflated data to.
+	 * @throws IOException In case of IO problems while deflating or writing.
+	 */
+	public void takeDeflatedBitmap(OutputStream os) throws IOException
+	{
+		DeflateTask task = m_dequeSubmitted.poll();
+		DeflateOutput output = task.m_output;
+
+		while (true)
+		{
+			byte[] ab = output.poll();
+			if (ab != null)
+			{
+				os.write(ab);
+			}
+			else if (output.isClosed())
+			{
+				break;
+			}
+			else
+			{
+				try
+				{
+					// Compensated by the pool, if called by one of its threads.
+					ForkJoinPool.managedBlock(output);
+				}
+				catch (InterruptedException e)
+				{
+					task.cancel(false);
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+		}
+
+		task.join();
+
+		if (task.m_exception != null)
+		{
+			throw task.m_exception;
+		}
+	}
+
+	/**
+	 * Gets the number of bitmaps submitted but not yet taken.
+	 *
+	 * @return An int containing the number of bitmaps.
+	 */
+	public int getSubmittedBitmapsCount()
+	{
+		return m_dequeSubmitted.size();
+	}
+
+	/**
+	 * Cancels all bitmaps submitted but not yet taken. Needed in case the writing fails.
+	 */
+	public void cancelSubmittedBitmaps()
+	{
+		for (DeflateTask task : m_dequeSubmitted)
+		{
+			task.cancel(false);
+		}
+
+		m_dequeSubmitted.clear();
+	}
+
 	/**
 	 * Sets the animation control chunk to the sequence currently in read.
 	 *
@@ -178,8 +745,33 @@ public class Bitmap32Manager
 	 */
 	public void setFrameControl(PngFrameControl fcTL)
 	{
-		m_fcTL = fcTL;
-		m_scanline.setBitmap(new Bitmap32(fcTL, null));
+		if (m_nSubsample > 1)
+		{
+			m_fcTL = new PngFrameControl(
+					Scanline32.calcSubsampledSize(fcTL.getWidth(), m_nSubsample),
+					Scanline32.calcSubsampledSize(fcTL.getHeight(), m_nSubsample),
+					fcTL.getXOffset() / m_nSubsample, fcTL.getYOffset() / m_nSubsample,
+					fcTL.getDelayNum(), fcTL.getDelayDen(), fcTL.getDisposeOp(), fcTL.getBlendOp());
+
+			m_scanline.setSubsampledBitmap(new Bitmap32(m_fcTL, null), fcTL.getWidth(), fcTL.getHeight(), m_nSubsample);
+		}
+		else if (m_bitmapCanvas != null && m_pool == null && !isCaching())
+		{
+			// The canvas is complete up to the previous frame, so this one is inflated into it.
+			m_fcTL = fcTL;
+			savePrevious(fcTL);
+			m_scanline.setCompositeBitmap(m_bitmapCanvas, fcTL);
+		}
+		else if (isCompositingPending())
+		{
+			// Inflated unfiltered by the pool and written onto the canvas later, see applyPendingBitmap().
+			m_fcTL = fcTL;
+		}
+		else
+		{
+			m_fcTL = fcTL;
+			m_scanline.setBitmap(new Bitmap32(fcTL, null));
+		}
 	}
 
 	/**
@@ -191,9 +783,231 @@ public class Bitmap32Manager
 	 */
 	public void applyDeflatedBitmap(int nChunkCode, byte[] abData) throws DataFormatException
 	{
+		if (m_pool != null)
+		{
+			submitDeflatedBitmap(nChunkCode, abData);
+			return;
+		}
+
 		m_pngIOCore.inflate(abData, m_scanline);
 
-		Bitmap32 bitmap = m_scanline.getBitmap();
+		applyInflatedBitmap(nChunkCode, m_scanline.getBitmap(), m_fcTL, abData);
+	}
+
+	/**
+	 * Sets a pool to inflate the bitmaps in parallel. If set, {@link #applyDeflatedBitmap(int, byte[])}
+	 * only submits the inflation and returns. The bitmaps are applied to the sequence in the order
+	 * of submission, latest by {@link #finishDeflatedBitmaps()}.
+	 *
+	 * @param pool A {@link ForkJoinPool} object. Or null to inflate in the calling thread.
+	 */
+	public void setDecodePool(ForkJoinPool pool)
+	{
+		m_pool = pool;
+	}
+
+	/**
+	 * Gets the pool to inflate the bitmaps in parallel.
+	 *
+	 * @return A {@link ForkJoinPool} object. Or null if none is set.
+	 */
+	public ForkJoinPool getDecodePool()
+	{
+		return m_pool;
+	}
+
+	/**
+	 * Submits the inflation of a bitmap to the pool. The number of pending bitmaps
+	 * is limited to twice the parallelism of the pool to keep the memory usage bounded.
+	 *
+	 * @param nChunkCode Either IDAT or fdAT.
+	 * @param abData The bitmap bytes still deflated.
+	 * @throws DataFormatException In case of corrupted data of a bitmap applied meanwhile.
+	 */
+	void submitDeflatedBitmap(int nChunkCode, byte[] abData) throws DataFormatException
+	{
+		final int nWindow = m_pool.getParallelism() * 2;
+
+		while (m_dequePending.size() >= nWindow)
+		{
+			applyPendingBitmap();
+		}
+
+		final boolean bUnfiltered = m_fcTL != null && isCompositingPending();
+		final Scanline32 scanline = m_scanline.duplicate(m_scanline.getBitmap());
+
+		if (bUnfiltered)
+		{
+			// Only gives the size of the frame, the canvas is set when applied.
+			scanline.setCompositeBitmap(m_bitmapCanvas, m_fcTL);
+		}
+
+		InflateTask task = new InflateTask(nChunkCode, m_fcTL, scanline, abData, m_header, m_queueIOCores);
+		task.m_bUnfiltered = bUnfiltered;
+
+		if (isCaching())
+		{
+			task.m_abOriginal = abData;
+
+			if (bUnfiltered)
+			{
+				task.m_cache = m_cache;
+				task.m_palette = m_palette;
+				task.m_transparency = m_transparency;
+			}
+		}
+
+		m_dequePending.add(task);
+		m_pool.execute(task);
+	}
+
+	/**
+	 * Waits for the eldest pending bitmap and applies it to the sequence.
+	 *
+	 * @throws DataFormatException In case of corrupted data.
+	 */
+	void applyPendingBitmap() throws DataFormatException
+	{
+		InflateTask task = m_dequePending.poll();
+		task.join();
+
+		if (task.m_exception != null)
+		{
+			throw task.m_exception;
+		}
+
+		if (task.m_bUnfiltered)
+		{
+			// The canvas is complete up to the previous frame now.
+			savePrevious(task.m_fcTL);
+			task.m_scanline.setCompositeBitmap(m_bitmapCanvas, task.m_fcTL);
+			m_pngIOCore.writeUnfiltered(task.m_abUnfiltered, task.m_scanline);
+
+			applyInflatedBitmap(task.m_nChunkCode, m_bitmapCanvas, task.m_fcTL, null);
+			return;
+		}
+
+		applyInflatedBitmap(task.m_nChunkCode, task.m_scanline.getBitmap(), task.m_fcTL, task.m_abOriginal);
+	}
+
+	/**
+	 * Gets whether a frame inflated by the pool is written directly onto the canvas. This needs
+	 * the first frame, which initializes the canvas, to be applied or at least pending before.
+	 *
+	 * @return A boolean containing true if so.
+	 */
+	boolean isCompositingPending()
+	{
+		if (m_pool == null || !isCompositing())
+		{
+			return false;
+		}
+
+		if (m_bitmapCanvas != null)
+		{
+			return true;
+		}
+
+		for (InflateTask task : m_dequePending)
+		{
+			if (task.m_fcTL != null)
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Waits for all pending bitmaps and applies them to the sequence in order.
+	 *
+	 * @throws DataFormatException In case of corrupted data.
+	 */
+	public void finishDeflatedBitmaps() throws DataFormatException
+	{
+		while (!m_dequePending.isEmpty())
+		{
+			applyPendingBitmap();
+		}
+	}
+
+	/**
+	 * Cancels all pending bitmaps. Needed in case the reading fails.
+	 */
+	public void cancelDeflatedBitmaps()
+	{
+		for (InflateTask task : m_dequePending)
+		{
+			task.cancel(false);
+		}
+
+		m_dequePending.clear();
+	}
+
+	/**
+	 * Begins the incremental inflation of a bitmap. The deflated data
+	 * is then passed piecewise by {@link #applyDeflatedData(byte[], int, int)}.
+	 */
+	public void beginDeflatedBitmap()
+	{
+		m_pngIOCore.beginInflate(m_scanline);
+		m_bosOriginal.reset();
+	}
+
+	/**
+	 * Passes a piece of still deflated bitmap data to the incremental inflation.
+	 *
+	 * @param abData The byte array containing the deflated data.
+	 * @param nOffs An int containing the offset in the array.
+	 * @param nLen An int containing the length of the data.
+	 * @throws DataFormatException In case of corrupted data.
+	 */
+	public void applyDeflatedData(byte[] abData, int nOffs, int nLen) throws DataFormatException
+	{
+		m_pngIOCore.inflate(abData, nOffs, nLen);
+
+		if (isCaching())
+		{
+			m_bosOriginal.write(abData, nOffs, nLen);
+		}
+	}
+
+	/**
+	 * Ends the incremental inflation of a bitmap and applies it to the sequence.
+	 *
+	 * @param nChunkCode Either IDAT or fdAT.
+	 */
+	public void endDeflatedBitmap(int nChunkCode)
+	{
+		m_pngIOCore.endInflate();
+
+		applyInflatedBitmap(nChunkCode, m_scanline.getBitmap(), m_fcTL, isCaching() ? m_bosOriginal.toByteArray() : null);
+		m_bosOriginal.reset();
+	}
+
+	/**
+	 * Applies a bitmap inflated to the sequence.
+	 *
+	 * @param nChunkCode Either IDAT or fdAT.
+	 * @param bitmap The {@link Bitmap32} inflated.
+	 * @param fcTL The {@link PngFrameControl} read for this bitmap. Or null if none.
+	 * @param abOriginal The complete deflated data of this bitmap for the frame cache. Or null.
+	 */
+	void applyInflatedBitmap(int nChunkCode, Bitmap32 bitmap, PngFrameControl fcTL, byte[] abOriginal)
+	{
+		if (abOriginal != null && isCaching())
+		{
+			// Before compositing. A bitmap written later with the same content gets this data,
+			// e.g. if the optimizer crops a frame the same way again.
+			m_cache.putOriginal(m_header, m_palette, m_transparency, bitmap, abOriginal);
+		}
+
+		if (fcTL != null && isCompositing())
+		{
+			bitmap = compositeFrame(bitmap, fcTL);
+			fcTL = bitmap.getFrameControl();
+		}
 
 		switch (nChunkCode)
 		{
@@ -202,19 +1016,112 @@ public class Bitmap32Manager
 
 			if (m_sequence.getAnimationType() == PngAnimationType.ANIMATED)
 			{
-				bitmap.setFrameControl(m_fcTL);
+				bitmap.setFrameControl(fcTL);
 				//setDefaultBitmap() adds it now automatically to the frames if ANIMATED.
 				//m_sequence.addFrame(bitmap);
 			}
 			break;
 
 		case PngConstants.fdAT:
-			bitmap.setFrameControl(m_fcTL);
+			bitmap.setFrameControl(fcTL);
 			m_sequence.addFrame(bitmap);
 			break;
 		}
 	}
 
+	/**
+	 * Composites an animation frame into the canvas and disposes it afterwards.
+	 * The first frame initializes the canvas, it covers the whole animation.
+	 * A frame inflated separately, e.g. by the decode pool, is blended into the canvas here.
+	 *
+	 * @param bitmap The {@link Bitmap32} inflated. Or the canvas, if inflated into it.
+	 * @param fcTL The {@link PngFrameControl} read for this bitmap.
+	 * @return A {@link Bitmap32} object containing the composited frame.
+	 */
+	Bitmap32 compositeFrame(Bitmap32 bitmap, PngFrameControl fcTL)
+	{
+		final boolean bFirst = m_bitmapCanvas == null;
+		Bitmap32 bitmapResult;
+
+		if (bFirst)
+		{
+			m_bitmapCanvas = bitmap.clone();
+			m_fcTLCanvas = fcTL;
+
+			bitmap.setFrameControl(fcTL);
+			bitmapResult = bitmap;
+		}
+		else
+		{
+			if (bitmap != m_bitmapCanvas)
+			{
+				savePrevious(fcTL);
+				Bitmap32Optimizer.blend(m_bitmapCanvas, bitmap, fcTL);
+			}
+
+			bitmapResult = m_bitmapCanvas.clone();
+			bitmapResult.setFrameControl(m_fcTLCanvas.clone());
+			bitmapResult.getFrameControl().getDelayFraction().setDelayNum(fcTL.getDelayNum());
+			bitmapResult.getFrameControl().getDelayFraction().setDelayDen(fcTL.getDelayDen());
+		}
+
+		final int[] anCanvas = m_bitmapCanvas.getPixels();
+		final int nStride = m_bitmapCanvas.getWidth();
+
+		switch (fcTL.getDisposeOp())
+		{
+		case PngFrameControl.DISPOSE_OP_BACKGROUND:
+			for (int nY = 0; nY < fcTL.getHeight(); nY++)
+			{
+				final int nOffs = (nY + fcTL.getYOffset()) * nStride + fcTL.getXOffset();
+				Arrays.fill(anCanvas, nOffs, nOffs + fcTL.getWidth(), 0);
+			}
+			break;
+
+		case PngFrameControl.DISPOSE_OP_PREVIOUS:
+			if (bFirst)
+			{
+				Arrays.fill(anCanvas, 0);
+			}
+			else
+			{
+				for (int nY = 0; nY < fcTL.getHeight(); nY++)
+				{
+					System.arraycopy(m_anPrevious, nY * fcTL.getWidth(), anCanvas,
+							(nY + fcTL.getYOffset()) * nStride + fcTL.getXOffset(), fcTL.getWidth());
+				}
+			}
+			break;
+		}
+
+		m_anPrevious = null;
+
+		return bitmapResult;
+	}
+
+	/**
+	 * Saves the region of the canvas covered by a frame, if it is to be restored after the frame.
+	 *
+	 * @param fcTL The {@link PngFrameControl} of the frame.
+	 */
+	void savePrevious(PngFrameControl fcTL)
+	{
+		if (fcTL.getDisposeOp() != PngFrameControl.DISPOSE_OP_PREVIOUS)
+		{
+			return;
+		}
+
+		final int[] anCanvas = m_bitmapCanvas.getPixels();
+		final int nStride = m_bitmapCanvas.getWidth();
+
+		m_anPrevious = new int[fcTL.getWidth() * fcTL.getHeight()];
+		for (int nY = 0; nY < fcTL.getHeight(); nY++)
+		{
+			System.arraycopy(anCanvas, (nY + fcTL.getYOffset()) * nStride + fcTL.getXOffset(),
+					m_anPrevious, nY * fcTL.getWidth(), fcTL.getWidth());
+		}
+	}
+
 	/**
 	 * Sets the animation type to the actual sequence.
 	 *
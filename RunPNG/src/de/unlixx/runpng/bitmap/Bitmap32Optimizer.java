@@ -1,7 +1,6 @@
 package de.unlixx.runpng.bitmap;
 
 import java.util.Arrays;
-import java.util.HashMap;
 
 import de.unlixx.runpng.bitmap.Bitmap32Analyzer.Suggestion;
 import de.unlixx.runpng.png.PngAnimationType;
@@ -13,6 +12,7 @@ import de.unlixx.runpng.png.chunks.PngPalette;
 import de.unlixx.runpng.png.chunks.PngTransparency;
 import de.unlixx.runpng.util.ARGB;
 import de.unlixx.runpng.util.ImageUtil;
+import de.unlixx.runpng.util.IntHashMap;
 
 /**
  * Statically used Bitmap32Optimizer to create and to reconstruct delta frames. In case of optimize
@@ -89,6 +89,18 @@ public class Bitmap32Optimizer
 					Bitmap32 bitmapPrev = sequence.getFrame(nFrame - 1);
 					PngFrameControl fcTLPrev = bitmapPrev.getFrameControl(),
 							fcTLDiff = bitmapDiff.getFrameControl();
+
+					if (fcTLPrev.getDisposeOp() != PngFrameControl.DISPOSE_OP_NONE)
+					{
+						// Not shown before the previous frame has been disposed. So it cannot
+						// be merged, but a single unchanged pixel is sufficient.
+						sequence.replaceFrame(nFrame, new Bitmap32(new PngFrameControl(1, 1, 0, 0,
+								fcTLDiff.getDelayNum(), fcTLDiff.getDelayDen(),
+								PngFrameControl.DISPOSE_OP_NONE, PngFrameControl.BLEND_OP_SOURCE),
+								new int[] { bitmapRef.getPixels()[0] }));
+						continue;
+					}
+
 					PngDelayFraction fractionPrev = fcTLPrev.getDelayFraction(),
 							fractionDiff = fcTLDiff.getDelayFraction();
 					fractionPrev.setMilliseconds(fractionPrev.getDelayMillis() + fractionDiff.getDelayMillis());
@@ -381,12 +393,12 @@ public class Bitmap32Optimizer
 	}
 
 	/**
-	 * Optimizes a Bitmap32Sequence for alternative color type if possible.
+	 * Optimizes a Bitmap32Sequence for alternative color type and lower bit depth if possible.
 	 * This is an in-place operation and the given sequence should only be
 	 * used for saving after.
 	 *
 	 * @param sequence A {@link Bitmap32Sequence} object.
-	 * @return True, if the color type has been changed.
+	 * @return True, if the color type or bit depth has been changed.
 	 */
 	public static boolean optimizeColorType(final Bitmap32Sequence sequence)
 	{
@@ -398,7 +410,7 @@ public class Bitmap32Optimizer
 
 		PngHeader header = sequence.getHeader();
 
-		if (colorType != header.getColorType())
+		if (colorType != header.getColorType() || suggestion.getBitDepth() != header.getBitDepth())
 		{
 			int nBitDepth = suggestion.getBitDepth();
 			PngPalette palette = suggestion.getPalette();
@@ -434,12 +446,23 @@ public class Bitmap32Optimizer
 	 * @return True, if the bitmaps were changed. False, if there was no change needed.
 	 */
 	public static boolean optimizeForPalette(final Bitmap32Sequence sequence)
+	{
+		return optimizeForPalette(sequence, PngPalette.MAX_SIZE);
+	}
+
+	/**
+	 * Optimizes a Bitmap32Sequence for a color palette of a given maximum size.
+	 * This is an in-place operation and lossy, if there are more distinct colors.
+	 *
+	 * @param sequence A {@link Bitmap32Sequence} object.
+	 * @param nMax An int containing the maximum number of colors. From 1 to {@link PngPalette#MAX_SIZE}.
+	 * @return True, if the bitmaps were changed. False, if there was no change needed.
+	 */
+	public static boolean optimizeForPalette(final Bitmap32Sequence sequence, final int nMax)
 	{
 		Bitmap32Analyzer analyzer = new Bitmap32Analyzer();
 		analyzer.analyze(sequence);
 
-		final int nMax = PngPalette.MAX_SIZE;
-
 		if (analyzer.getDistinctColorCount() <= nMax)
 		{
 			return false;
@@ -453,7 +476,7 @@ public class Bitmap32Optimizer
 		Bitmap32Quantizer quantizer = new Bitmap32Quantizer(aARGB);
 		aARGB = quantizer.rollup(nMax);
 
-		HashMap<Integer, Integer> mapReloc = new HashMap<Integer, Integer>();
+		IntHashMap mapReloc = new IntHashMap(aARGB.length);
 		for (ARGB argb : aARGB)
 		{
 			int nReloc = argb.getRelocation();
@@ -470,7 +493,7 @@ public class Bitmap32Optimizer
 			int[] anARGB = bitmap.getPixels();
 			for (int n = 0, nLen = anARGB.length; n < nLen; n++)
 			{
-				int nReloc = mapReloc.getOrDefault(anARGB[n], -1);
+				int nReloc = mapReloc.get(anARGB[n], -1);
 				if (nReloc >= 0)
 				{
 					anARGB[n] = aARGB[nReloc].argb;
@@ -483,6 +506,59 @@ public class Bitmap32Optimizer
 		return true;
 	}
 
+	/**
+	 * Stabilizes the frames of a not yet optimized animation. A pixel, which differs in no channel
+	 * by more than the threshold from the pixel shown by the previous frame, is replaced by it.
+	 * So noise and slight fades do not count as changes for {@link #optimize(Bitmap32Sequence)},
+	 * which results in smaller difference frames. This is an in-place operation and lossy.
+	 *
+	 * @param sequence A {@link Bitmap32Sequence} object. Not optimized.
+	 * @param nThreshold An int containing the maximum difference per channel. 0 changes nothing.
+	 * @return True, if any pixel has been changed.
+	 */
+	public static boolean stabilizeFrames(final Bitmap32Sequence sequence, final int nThreshold)
+	{
+		if (nThreshold <= 0 || sequence.isOptimized()
+			|| sequence.getAnimationType() == PngAnimationType.NONE
+			|| sequence.getFramesCount() < 2)
+		{
+			return false;
+		}
+
+		final int[] anRef = sequence.getFrame(0).getPixels().clone();
+		boolean bChanged = false;
+
+		for (int nFrame = 1, nFrames = sequence.getFramesCount(); nFrame < nFrames; nFrame++)
+		{
+			final int[] anFrame = sequence.getFrame(nFrame).getPixels();
+			if (anFrame.length != anRef.length)
+			{
+				continue;
+			}
+
+			for (int n = 0, nLen = anFrame.length; n < nLen; n++)
+			{
+				final int nRef = anRef[n],
+					nPixel = anFrame[n];
+
+				if (nPixel != nRef
+					&& Math.abs((nPixel >>> 24) - (nRef >>> 24)) <= nThreshold
+					&& Math.abs(((nPixel >> 16) & 0xff) - ((nRef >> 16) & 0xff)) <= nThreshold
+					&& Math.abs(((nPixel >> 8) & 0xff) - ((nRef >> 8) & 0xff)) <= nThreshold
+					&& Math.abs((nPixel & 0xff) - (nRef & 0xff)) <= nThreshold)
+				{
+					anFrame[n] = nRef;
+					bChanged = true;
+				}
+			}
+
+			// The stabilized frame is shown next.
+			System.arraycopy(anFrame, 0, anRef, 0, anRef.length);
+		}
+
+		return bChanged;
+	}
+
 	/**
 	 * Deoptimizes an optimized Bitmap32Sequence in order to reconstruct
 	 * the original pictures.
@@ -527,8 +603,6 @@ public class Bitmap32Optimizer
 	{
 		final PngFrameControl fcTLDiff = bitmapDiff.getFrameControl();
 		final int anRef[] = bitmapRef.getPixels(),
-			anDiff[] = bitmapDiff.getPixels(),
-			nBlendOp = fcTLDiff.getBlendOp(),
 			nOffsX = fcTLDiff.getXOffset(),
 			nOffsY = fcTLDiff.getYOffset(),
 			nWidth = fcTLDiff.getWidth(),
@@ -546,47 +620,7 @@ public class Bitmap32Optimizer
 				anRefCopy = Arrays.copyOf(anRef, anRef.length);
 			}
 
-			switch (nBlendOp)
-			{
-			case PngFrameControl.BLEND_OP_SOURCE:
-				for (int nY = 0; nY < nHeight; nY++)
-				{
-					for (int nX = 0; nX < nWidth; nX++)
-					{
-						final int nSrc = nY * nWidth + nX,
-							nDest = (nY + nOffsY) * nScanlineStride + nX + nOffsX;
-
-						anRef[nDest] = anDiff[nSrc];
-					}
-				}
-				break;
-
-			case PngFrameControl.BLEND_OP_OVER:
-				for (int nY = 0; nY < nHeight; nY++)
-				{
-					for (int nX = 0; nX < nWidth; nX++)
-					{
-						final int nSrc = nY * nWidth + nX,
-							nDest = (nY + nOffsY) * nScanlineStride + nX + nOffsX,
-							nDiff = anDiff[nSrc],
-							nDiffA = (nDiff >>> 24) & 0xff,
-							nRef = anRef[nDest],
-							nRefA = (nRef >>> 24) & 0xff;
-
-						// Similar to https://www.w3.org/TR/PNG/#13Alpha-channel-processing , but without gamma for now
-						if (nRefA == 0)
-						{
-							// Background pixel is fully transparent -> overwrite with whatever the diff pixel is.
-							anRef[nDest] = nDiff;
-						}
-						else if (nDiffA > 0)
-						{
-							anRef[nDest] = ImageUtil.blendPixel(nRef, nDiff);
-						}
-					}
-				}
-				break;
-			}
+			blend(bitmapRef, bitmapDiff, fcTLDiff);
 
 			bitmapResult = bitmapRef.clone();
 			PngDelayFraction fractionResult = bitmapResult.getFrameControl().getDelayFraction();
@@ -628,4 +662,66 @@ public class Bitmap32Optimizer
 
 		return bitmapResult;
 	}
+
+	/**
+	 * Internally used method to blend a difference frame (delta) into the reference frame
+	 * according to the blend operator of its frame control.
+	 *
+	 * @param bitmapRef A Bitmap32 as reference frame.
+	 * @param bitmapDiff A Bitmap32 as difference frame (delta).
+	 * @param fcTLDiff The PngFrameControl of the difference frame.
+	 */
+	static void blend(Bitmap32 bitmapRef, Bitmap32 bitmapDiff, PngFrameControl fcTLDiff)
+	{
+		final int anRef[] = bitmapRef.getPixels(),
+			anDiff[] = bitmapDiff.getPixels(),
+			nBlendOp = fcTLDiff.getBlendOp(),
+			nOffsX = fcTLDiff.getXOffset(),
+			nOffsY = fcTLDiff.getYOffset(),
+			nWidth = fcTLDiff.getWidth(),
+			nHeight = fcTLDiff.getHeight(),
+			nScanlineStride = bitmapRef.m_nWidth;
+
+		switch (nBlendOp)
+		{
+		case PngFrameControl.BLEND_OP_SOURCE:
+			for (int nY = 0; nY < nHeight; nY++)
+			{
+				for (int nX = 0; nX < nWidth; nX++)
+				{
+					final int nSrc = nY * nWidth + nX,
+						nDest = (nY + nOffsY) * nScanlineStride + nX + nOffsX;
+
+					anRef[nDest] = anDiff[nSrc];
+				}
+			}
+			break;
+
+		case PngFrameControl.BLEND_OP_OVER:
+			for (int nY = 0; nY < nHeight; nY++)
+			{
+				for (int nX = 0; nX < nWidth; nX++)
+				{
+					final int nSrc = nY * nWidth + nX,
+						nDest = (nY + nOffsY) * nScanlineStride + nX + nOffsX,
+						nDiff = anDiff[nSrc],
+						nDiffA = (nDiff >>> 24) & 0xff,
+						nRef = anRef[nDest],
+						nRefA = (nRef >>> 24) & 0xff;
+
+					// Similar to https://www.w3.org/TR/PNG/#13Alpha-channel-processing , but without gamma for now
+					if (nRefA == 0)
+					{
+						// Background pixel is fully transparent -> overwrite with whatever the diff pixel is.
+						anRef[nDest] = nDiff;
+					}
+					else if (nDiffA > 0)
+					{
+						anRef[nDest] = ImageUtil.blendPixel(nRef, nDiff);
+					}
+				}
+			}
+			break;
+		}
+	}
 }
@@ -77,9 +77,21 @@ public class Bitmap32Sequence
 	 * @param bOptimized True if this sequence should be seen and handled as already optimized.
 	 */
 	public Bitmap32Sequence(PngHeader header, boolean bOptimized)
+	{
+		this(header, new Bitmap32(header.getWidth(), header.getHeight()), bOptimized);
+	}
+
+	/**
+	 * Package private constructor with a given header and default bitmap.
+	 *
+	 * @param header A {@link PngHeader} object.
+	 * @param bitmapDefault A {@link Bitmap32} object. May be null if provided otherwise by a derived class.
+	 * @param bOptimized True if this sequence should be seen and handled as already optimized.
+	 */
+	Bitmap32Sequence(PngHeader header, Bitmap32 bitmapDefault, boolean bOptimized)
 	{
 		m_header = new PngHeader(header.getWidth(), header.getHeight(), 8, PngColorType.TRUECOLOR_ALPHA, header.getCompressionMethod(), header.getFilterMethod(), header.getInterlaceMethod());
-		m_bitmapDefault = new Bitmap32(header.getWidth(), header.getHeight());
+		m_bitmapDefault = bitmapDefault;
 		m_bOptimized = bOptimized;
 	}
 
@@ -362,4 +374,44 @@ public class Bitmap32Sequence
 
 		return bitmapOld;
 	}
+
+	/**
+	 * Creates a deep copy of this sequence with copies of all bitmaps. Text chunks
+	 * and the transparency are shared, since they are never changed in place.
+	 *
+	 * @return A {@link Bitmap32Sequence} object.
+	 */
+	@Override
+	public Bitmap32Sequence clone()
+	{
+		final Bitmap32 bitmapDefault = getDefaultBitmap();
+		Bitmap32Sequence clone = cloneSettings(bitmapDefault.clone());
+
+		for (int n = 0, nFrames = getFramesCount(); n < nFrames; n++)
+		{
+			Bitmap32 bitmap = getFrame(n);
+			clone.m_frames.add(bitmap == bitmapDefault ? clone.m_bitmapDefault : bitmap.clone());
+		}
+
+		return clone;
+	}
+
+	/**
+	 * Creates a copy of this sequence without any frames, to add the copies of the frames to.
+	 *
+	 * @param bitmapDefault The copy of the default bitmap.
+	 * @return A {@link Bitmap32Sequence} object.
+	 */
+	Bitmap32Sequence cloneSettings(Bitmap32 bitmapDefault)
+	{
+		Bitmap32Sequence clone = new Bitmap32Sequence(m_header, bitmapDefault, m_bOptimized);
+		clone.m_header = m_header;
+		clone.m_animationControl = new PngAnimationControl(m_animationControl.getNumFrames(), m_animationControl.getNumPlays());
+		clone.m_animationType = m_animationType;
+		clone.m_textChunks.addAll(m_textChunks);
+		clone.m_palette = m_palette != null ? m_palette.clone() : null;
+		clone.m_transparency = m_transparency;
+
+		return clone;
+	}
 }
@@ -1,8 +1,10 @@
 package de.unlixx.runpng.bitmap;
 
 import de.unlixx.runpng.png.PngColorType;
+import de.unlixx.runpng.png.chunks.PngFrameControl;
 import de.unlixx.runpng.png.chunks.PngPalette;
 import de.unlixx.runpng.png.chunks.PngTransparency;
+import de.unlixx.runpng.util.ImageUtil;
 import de.unlixx.runpng.util.exceptions.Failure;
 
 /**
@@ -37,6 +39,15 @@ public abstract class Scanline32
 	PngPalette m_palette;
 	PngTransparency m_transparency;
 
+	// Subsampled writing into a reduced bitmap
+	int m_nSubsample = 1;
+	int m_nSourceWidth;
+	int m_nSourceHeight;
+	Bitmap32 m_bitmapRow;
+
+	// Composited writing into a full size canvas
+	PngFrameControl m_fcTLComposite;
+
 	/**
 	 * Package private constructor of this abstract class.
 	 *
@@ -61,6 +72,110 @@ public abstract class Scanline32
 	{
 		m_bitmap = bitmap;
 		m_nScanlineStride = m_colorType.calcScanlineStride(bitmap.getWidth(), m_nBitDepth);
+		m_nSubsample = 1;
+		m_fcTLComposite = null;
+	}
+
+	/**
+	 * Replaces the current bitmap with a reduced one for subsampled writing. The scanlines to write
+	 * are those of the source image, but only every nth pixel of every nth scanline
+	 * is written into the reduced bitmap. Scanline stride, width and height refer to the source then.
+	 *
+	 * @param bitmap A {@link Bitmap32} object of the reduced size, see {@link #calcSubsampledSize(int, int)}.
+	 * @param nSourceWidth An int containing the width of the source image.
+	 * @param nSourceHeight An int containing the height of the source image.
+	 * @param nSubsample An int containing the subsampling factor n. 1 means no subsampling.
+	 */
+	public void setSubsampledBitmap(Bitmap32 bitmap, int nSourceWidth, int nSourceHeight, int nSubsample)
+	{
+		if (nSubsample <= 1)
+		{
+			setBitmap(bitmap);
+			return;
+		}
+
+		m_bitmap = bitmap;
+		m_nScanlineStride = m_colorType.calcScanlineStride(nSourceWidth, m_nBitDepth);
+		m_nSubsample = nSubsample;
+		m_nSourceWidth = nSourceWidth;
+		m_nSourceHeight = nSourceHeight;
+		m_fcTLComposite = null;
+
+		if (m_bitmapRow == null || m_bitmapRow.getWidth() != nSourceWidth)
+		{
+			m_bitmapRow = new Bitmap32(nSourceWidth, 1);
+		}
+	}
+
+	/**
+	 * Replaces the current bitmap with a full size canvas for composited writing of an animation frame.
+	 * The scanlines to write are those of the frame, which are blended into the region of the canvas
+	 * given by the frame control, according to its blend operator. Scanline stride, width and height
+	 * refer to the frame then.
+	 *
+	 * @param bitmapCanvas A {@link Bitmap32} object of the size of the animation.
+	 * @param fcTL A {@link PngFrameControl} object of the frame to write.
+	 */
+	public void setCompositeBitmap(Bitmap32 bitmapCanvas, PngFrameControl fcTL)
+	{
+		m_bitmap = bitmapCanvas;
+		m_nScanlineStride = m_colorType.calcScanlineStride(fcTL.getWidth(), m_nBitDepth);
+		m_nSubsample = 1;
+		m_fcTLComposite = fcTL;
+
+		if (m_bitmapRow == null || m_bitmapRow.getWidth() != fcTL.getWidth())
+		{
+			m_bitmapRow = new Bitmap32(fcTL.getWidth(), 1);
+		}
+	}
+
+	/**
+	 * Gets whether the scanlines are composited into a canvas.
+	 *
+	 * @return A boolean containing true if composited.
+	 */
+	public boolean isComposite()
+	{
+		return m_fcTLComposite != null;
+	}
+
+	/**
+	 * Gets the subsampling factor.
+	 *
+	 * @return An int containing the subsampling factor. 1 if not subsampled.
+	 */
+	public int getSubsample()
+	{
+		return m_nSubsample;
+	}
+
+	/**
+	 * Calculates the reduced size of a subsampled width or height.
+	 *
+	 * @param nSize An int containing the source width or height.
+	 * @param nSubsample An int containing the subsampling factor.
+	 * @return An int containing the reduced size.
+	 */
+	public static int calcSubsampledSize(int nSize, int nSubsample)
+	{
+		return (nSize + nSubsample - 1) / nSubsample;
+	}
+
+	/**
+	 * Applies the subsampling of this scanline object to a duplicate.
+	 * The compositing is not applied, since the canvas cannot be shared.
+	 *
+	 * @param scanline A duplicate Scanline32 object.
+	 * @return The duplicate.
+	 */
+	Scanline32 inheritSubsample(Scanline32 scanline)
+	{
+		if (m_nSubsample > 1)
+		{
+			scanline.setSubsampledBitmap(scanline.m_bitmap, m_nSourceWidth, m_nSourceHeight, m_nSubsample);
+		}
+
+		return scanline;
 	}
 
 	/**
@@ -111,7 +226,12 @@ public abstract class Scanline32
 	 */
 	public int getBitmapWidth()
 	{
-		return m_bitmap.getWidth();
+		if (m_fcTLComposite != null)
+		{
+			return m_fcTLComposite.getWidth();
+		}
+
+		return m_nSubsample > 1 ? m_nSourceWidth : m_bitmap.getWidth();
 	}
 
 	/**
@@ -121,7 +241,122 @@ public abstract class Scanline32
 	 */
 	public int getBitmapHeight()
 	{
-		return m_bitmap.getHeight();
+		if (m_fcTLComposite != null)
+		{
+			return m_fcTLComposite.getHeight();
+		}
+
+		return m_nSubsample > 1 ? m_nSourceHeight : m_bitmap.getHeight();
+	}
+
+	/**
+	 * Writes a scanline of the source image, either directly by {@link #write(byte[], int, int, int, int)},
+	 * subsampled or composited. If subsampled, the scanline is converted only if it is needed in the reduced bitmap.
+	 *
+	 * @param abSrc A source byte array containing the color/greyscale components to write.
+	 * @param nSrcIdx An int containing the start index in the source byte array.
+	 * @param nOffsX An int containing the offset where to start writing.
+	 * @param nStepX An int containing the step width per pixel.
+	 * @param nLine An int containing the line number to write.
+	 */
+	public void writeLine(byte[] abSrc, int nSrcIdx, int nOffsX, int nStepX, int nLine)
+	{
+		if (m_fcTLComposite != null)
+		{
+			writeComposite(abSrc, nSrcIdx, nOffsX, nStepX, nLine);
+			return;
+		}
+
+		if (m_nSubsample == 1)
+		{
+			write(abSrc, nSrcIdx, nOffsX, nStepX, nLine);
+			return;
+		}
+
+		if (nLine % m_nSubsample != 0)
+		{
+			return;
+		}
+
+		final Bitmap32 bitmap = m_bitmap;
+
+		m_bitmap = m_bitmapRow;
+		try
+		{
+			write(abSrc, nSrcIdx, nOffsX, nStepX, 0);
+		}
+		finally
+		{
+			m_bitmap = bitmap;
+		}
+
+		final int[] anRow = m_bitmapRow.getPixels(),
+				anDest = bitmap.getPixels();
+		final int nDestOffs = nLine / m_nSubsample * bitmap.getWidth();
+
+		for (int nX = nOffsX; nX < m_nSourceWidth; nX += nStepX)
+		{
+			if (nX % m_nSubsample == 0)
+			{
+				anDest[nDestOffs + nX / m_nSubsample] = anRow[nX];
+			}
+		}
+	}
+
+	/**
+	 * Writes a scanline of a frame blended into the canvas.
+	 *
+	 * @param abSrc A source byte array containing the color/greyscale components to write.
+	 * @param nSrcIdx An int containing the start index in the source byte array.
+	 * @param nOffsX An int containing the offset where to start writing.
+	 * @param nStepX An int containing the step width per pixel.
+	 * @param nLine An int containing the line number of the frame to write.
+	 */
+	void writeComposite(byte[] abSrc, int nSrcIdx, int nOffsX, int nStepX, int nLine)
+	{
+		final Bitmap32 bitmap = m_bitmap;
+
+		m_bitmap = m_bitmapRow;
+		try
+		{
+			write(abSrc, nSrcIdx, nOffsX, nStepX, 0);
+		}
+		finally
+		{
+			m_bitmap = bitmap;
+		}
+
+		final PngFrameControl fcTL = m_fcTLComposite;
+		final int[] anRow = m_bitmapRow.getPixels(),
+				anDest = bitmap.getPixels();
+		final int nWidth = fcTL.getWidth(),
+				nDestOffs = (nLine + fcTL.getYOffset()) * bitmap.getWidth() + fcTL.getXOffset();
+
+		if (fcTL.getBlendOp() == PngFrameControl.BLEND_OP_SOURCE)
+		{
+			for (int nX = nOffsX; nX < nWidth; nX += nStepX)
+			{
+				anDest[nDestOffs + nX] = anRow[nX];
+			}
+		}
+		else
+		{
+			for (int nX = nOffsX; nX < nWidth; nX += nStepX)
+			{
+				final int nSrc = anRow[nX],
+						nDest = anDest[nDestOffs + nX];
+
+				// Same as Bitmap32Optimizer.apply()
+				if ((nDest >>> 24) == 0)
+				{
+					anDest[nDestOffs + nX] = nSrc;
+				}
+				else if ((nSrc >>> 24) != 0)
+				{
+					anDest[nDestOffs + nX] = ImageUtil.blendPixel(nDest, nSrc);
+				}
+			}
+		}
 	}
 
 	/**
@@ -155,6 +390,15 @@ public abstract class Scanline32
 	 */
 	public abstract void setTransparency(PngTransparency trans);
 
+	/**
+	 * Creates a scanline object of the same kind for another bitmap, sharing palette and
+	 * transparency with this one. The scanline objects can then be used in different threads.
+	 *
+	 * @param bitmap A {@link Bitmap32} object.
+	 * @return A Scanline32 object of the same class.
+	 */
+	public abstract Scanline32 duplicate(Bitmap32 bitmap);
+
 	/**
 	 * Creates a scanline object according color type and bit depth and sets an initial bitmap to read from or write to.
 	 *
@@ -174,11 +174,11 @@ public class Scanline32Greyscale extends Scanline32
 			switch (m_nBitDepth)
 			{
 			case 8:
-				// TODO: This needs a tRNS chunk and decision which color.
+				// Transparent pixels get the tRNS sample, if there is one.
 				for (int nX = nOffsX; nX < nWidth; nX += nStepX)
 				{
 					final int nARGB = anSrc[nLine * nWidth + nX],
-							nL = rgbToLuminosity(nARGB & 0xffffff);
+							nL = (nARGB >>> 24) == 0 && m_ntRNS >= 0 ? m_ntRNS : rgbToLuminosity(nARGB & 0xffffff);
 					abDest[nDestIdx++] = (byte)(nL & 0xff);
 				}
 				break;
@@ -195,6 +195,16 @@ public class Scanline32Greyscale extends Scanline32
 		m_ntRNS = tRNS != null ? (int)tRNS.gettRNS() : -1;
 	}
 
+	@Override
+	public Scanline32 duplicate(Bitmap32 bitmap)
+	{
+		Scanline32Greyscale scanline = new Scanline32Greyscale(m_colorType, m_nBitDepth, bitmap);
+		scanline.m_palette = m_palette;
+		scanline.m_ntRNS = m_ntRNS;
+
+		return inheritSubsample(scanline);
+	}
+
 	/**
 	 * Find the nearest index in the GREY4 array above.
 	 *
@@ -155,15 +155,42 @@ public class Scanline32Indexed extends Scanline32
 		final int[] anSrc = m_bitmap.getPixels();
 		final int nWidth = m_bitmap.getWidth();
 
-		// TODO: Lower bit depth etc.
-
 		switch (m_nBitDepth)
 		{
+		case 1:
+		case 2:
+		case 4:
+			// Packed from the most significant bits on, the last byte padded with zero bits
+			int nBit = m_nMaxBit,
+				nByte = 0;
+
+			for (int nX = nOffsX; nX < nWidth; nX += nStepX)
+			{
+				final int nIdx = findIndex(anSrc[nLine * nWidth + nX]);
+				nByte |= (nIdx & m_nBitMask) << m_anShifts[nBit];
+
+				if (nBit == 0)
+				{
+					abDest[nDestIdx++] = (byte)nByte;
+					nByte = 0;
+					nBit = m_nMaxBit;
+				}
+				else
+				{
+					nBit--;
+				}
+			}
+
+			if (nBit != m_nMaxBit)
+			{
+				abDest[nDestIdx] = (byte)nByte;
+			}
+			break;
+
 		case 8:
 			for (int nX = nOffsX; nX < nWidth; nX += nStepX)
 			{
-				final int nARGB = anSrc[nLine * nWidth + nX],
-						nIdx = m_palette.find(nARGB);
+				final int nIdx = findIndex(anSrc[nLine * nWidth + nX]);
 				abDest[nDestIdx++] = (byte)(nIdx & 0xff);
 			}
 			break;
@@ -173,12 +200,51 @@ public class Scanline32Indexed extends Scanline32
 		}
 	}
 
+	/**
+	 * Finds the index of a pixel to write. In case of greyscale this is the grey level
+	 * at the bit depth, or the tRNS sample for a transparent pixel.
+	 *
+	 * @param nARGB An int containing the ARGB value of the pixel.
+	 * @return An int containing the index.
+	 */
+	int findIndex(int nARGB)
+	{
+		if (m_colorType == PngColorType.GREYSCALE)
+		{
+			if ((nARGB >>> 24) == 0 && m_transparency != null)
+			{
+				return (int)m_transparency.gettRNS();
+			}
+
+			return (nARGB & 0xff) >> (8 - m_nBitDepth);
+		}
+
+		return m_palette.find(nARGB);
+	}
+
 	@Override
 	public void setTransparency(PngTransparency transparency)
 	{
 		m_transparency = transparency;
 	}
 
+	@Override
+	public Scanline32 duplicate(Bitmap32 bitmap)
+	{
+		// The palette is shared, so the transparency must be applied only once.
+		if (!m_bTransparencyApplied && m_palette != null)
+		{
+			applyTransparency();
+		}
+
+		Scanline32Indexed scanline = new Scanline32Indexed(m_colorType, m_nBitDepth, bitmap);
+		scanline.m_palette = m_palette;
+		scanline.m_transparency = m_transparency;
+		scanline.m_bTransparencyApplied = m_bTransparencyApplied;
+
+		return inheritSubsample(scanline);
+	}
+
 	/**
 	 * Tries to apply a transparency chunk to the palette. This all in case both exist.
 	 * @see <a href="https://www.w3.org/TR/PNG/#11PLTE">https://www.w3.org/TR/PNG/#11PLTE</a>
@@ -186,7 +252,21 @@ public class Scanline32Indexed extends Scanline32
 	 */
 	void applyTransparency()
 	{
-		if (m_transparency != null)
+		if (m_transparency != null && m_colorType == PngColorType.GREYSCALE)
+		{
+			if (m_palette == null)
+			{
+				throw new Failure("failure.missing.palette");
+			}
+
+			// The grey level of the sample is fully transparent.
+			final long ltRNS = m_transparency.gettRNS();
+			if (ltRNS >= 0 && ltRNS < m_palette.length())
+			{
+				m_palette.set((int)ltRNS, 0);
+			}
+		}
+		else if (m_transparency != null)
 		{
 			byte[] abTrans = m_transparency.getBytes();
 			int nLen = abTrans.length;
@@ -173,7 +173,9 @@ public class Scanline32TrueColor extends Scanline32
 			case 8:
 				for (int nX = nOffsX; nX < nWidth; nX += nStepX)
 				{
-					final int nRGB = anSrc[nLine * nWidth + nX];
+					// Transparent pixels get the tRNS sample, if there is one.
+					final int nARGB = anSrc[nLine * nWidth + nX],
+							nRGB = (nARGB >>> 24) == 0 && m_ltRNS >= 0 ? (int)m_ltRNS : nARGB;
 
 					// RGB to RGB
 					abDest[nDestIdx++] = (byte)((nRGB >>> 16) & 0xff);
@@ -193,4 +195,14 @@ public class Scanline32TrueColor extends Scanline32
 	{
 		m_ltRNS = tRNS != null ? tRNS.gettRNS() : -1;
 	}
+
+	@Override
+	public Scanline32 duplicate(Bitmap32 bitmap)
+	{
+		Scanline32TrueColor scanline = new Scanline32TrueColor(m_colorType, m_nBitDepth, bitmap);
+		scanline.m_palette = m_palette;
+		scanline.m_ltRNS = m_ltRNS;
+
+		return inheritSubsample(scanline);
+	}
 }
@@ -123,7 +123,7 @@ public enum PngColorType
 		int nBitsPerPixel = bitDepth * m_nComponentsPerPixel,
 			nBitsPerRow = nBitsPerPixel * nWidth;
 
-		return nBitsPerRow / 8 + (nBitsPerRow % 8 == 0 ? 0 : 8 - nBitsPerRow % 8) + 1;
+		return (nBitsPerRow + 7) / 8 + 1; // Padded to full bytes, plus the filter byte
 	}
 
 	/**
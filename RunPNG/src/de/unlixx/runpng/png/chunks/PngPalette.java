@@ -7,6 +7,7 @@ import java.util.List;
 import java.util.Map;
 
 import de.unlixx.runpng.png.PngColorType;
+import de.unlixx.runpng.util.IntHashMap;
 import de.unlixx.runpng.util.SortedList;
 import de.unlixx.runpng.util.exceptions.Failure;
 
@@ -39,6 +40,9 @@ public class PngPalette
 
 	int[] m_anARGB;
 
+	// Reverse index of the entries, built on the first find. Dropped on changes.
+	volatile IntHashMap m_mapIndex;
+
 	boolean m_bPrebuiltGreyScale;
 	static final Map<Integer, PngPalette> m_palettesGreyscale = new HashMap<>();
 
@@ -113,25 +117,35 @@ public class PngPalette
 	public void set(int nIdx, int nARGB)
 	{
 		m_anARGB[nIdx] = nARGB;
+		m_mapIndex = null;
 	}
 
 	/**
 	 * Finds the index of a specific ARGB value. Or -1 if it does not exist.
+	 * Constant time by a reverse index, since it is invoked per pixel while encoding.
 	 *
 	 * @param nARGB An int containing the ARGB value.
 	 * @return An int containing the index or -1 if it does not exist.
 	 */
 	public int find(int nARGB)
 	{
-		for (int n = 0, nLen = m_anARGB.length; n < nLen; n++)
+		IntHashMap map = m_mapIndex;
+		if (map == null)
 		{
-			if (nARGB == m_anARGB[n])
+			// Threads encoding in parallel may build it concurrently, which does no harm.
+			final int[] anARGB = m_anARGB;
+			map = new IntHashMap(anARGB.length);
+
+			// Backwards, so the first of equal entries wins
+			for (int n = anARGB.length - 1; n >= 0; n--)
 			{
-				return n;
+				map.put(anARGB[n], n);
 			}
+
+			m_mapIndex = map;
 		}
 
-		return -1;
+		return map.get(nARGB, -1);
 	}
 
 	/**
@@ -231,6 +245,7 @@ public class PngPalette
 	public PngTransparency spawnTransparency()
 	{
 		m_anARGB = sortByTransparency(m_anARGB);
+		m_mapIndex = null;
 
 		byte[] abtRNS = new byte[m_anARGB.length];
 
@@ -309,6 +324,7 @@ public class PngPalette
 	@Override
 	public PngPalette clone()
 	{
-		return new PngPalette(m_anARGB, m_bPrebuiltGreyScale);
+		// A copy of the entries, since a transparency may be applied to the clone
+		return new PngPalette(m_anARGB.clone(), m_bPrebuiltGreyScale);
 	}
 }
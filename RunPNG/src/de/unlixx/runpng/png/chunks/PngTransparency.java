@@ -60,12 +60,8 @@ public class PngTransparency
 				throw new Failure("failure.wrong.transparency.length", 2, abtRNS.length);
 			}
 
-			switch (m_nBitDepth)
-			{
-			case 8: m_ltRNS = (abtRNS[0] & 0xff); break;
-			case 16: m_ltRNS = (abtRNS[0] & 0xff) << 8 | (abtRNS[1] & 0xff); break;
-			default: break;
-			}
+			// One two byte sample, for all bit depths
+			m_ltRNS = (abtRNS[0] & 0xff) << 8 | (abtRNS[1] & 0xff);
 			break;
 
 		case TRUECOLOR:
@@ -76,7 +72,7 @@ public class PngTransparency
 
 			switch (m_nBitDepth)
 			{
-			case 8: m_ltRNS = (abtRNS[0] & 0xff) << 16 | (abtRNS[2] & 0xff) << 8 | (abtRNS[4] & 0xff); break;
+			case 8: m_ltRNS = (abtRNS[1] & 0xff) << 16 | (abtRNS[3] & 0xff) << 8 | (abtRNS[5] & 0xff); break;
 			case 16: m_ltRNS = (abtRNS[0] & 0xff) << 40 | (abtRNS[1] & 0xff) << 32 | (abtRNS[2] & 0xff) << 24
 											| (abtRNS[3] & 0xff) << 16 | (abtRNS[4] & 0xff) << 8 | (abtRNS[5] & 0xff); break;
 			default: break;
@@ -113,14 +109,16 @@ public class PngTransparency
 		{
 		case GREYSCALE:
 			m_abtRNS = new byte[2];
-			m_abtRNS[0] = (byte)(ntRNS & 0xff);
+			m_abtRNS[0] = (byte)((ntRNS >>> 8) & 0xff);
+			m_abtRNS[1] = (byte)(ntRNS & 0xff);
 			break;
 
 		case TRUECOLOR:
+			// Two byte samples, 8 bit values in the lower bytes
 			m_abtRNS = new byte[6];
-			m_abtRNS[0] = (byte)((ntRNS >>> 16) & 0xff);
-			m_abtRNS[2] = (byte)((ntRNS >>> 8) & 0xff);
-			m_abtRNS[4] = (byte)(ntRNS & 0xff);
+			m_abtRNS[1] = (byte)((ntRNS >>> 16) & 0xff);
+			m_abtRNS[3] = (byte)((ntRNS >>> 8) & 0xff);
+			m_abtRNS[5] = (byte)(ntRNS & 0xff);
 			break;
 
 		case INDEXED: // Just kidding :-)
@@ -0,0 +1,553 @@
+package de.unlixx.runpng.png.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.DataFormatException;
+
+import de.unlixx.runpng.bitmap.Bitmap32;
+import de.unlixx.runpng.bitmap.Bitmap32Analyzer;
+import de.unlixx.runpng.bitmap.Bitmap32Optimizer;
+import de.unlixx.runpng.bitmap.Bitmap32Sequence;
+import de.unlixx.runpng.png.chunks.PngPalette;
+import de.unlixx.runpng.util.Progress;
+import de.unlixx.runpng.util.exceptions.Failure;
+
+/**
+ * PngBudgetEncoder encodes a sequence into a given number of bytes with the least loss possible.
+ * The candidates are combinations of a frame stabilizing threshold for animations, see
+ * {@link Bitmap32Optimizer#stabilizeFrames(Bitmap32Sequence, int)}, and a maximum palette size,
+ * see {@link Bitmap32Optimizer#optimizeForPalette(Bitmap32Sequence, int)}. Each candidate is
+ * optimized like a normal save, so the color type is reduced as far as possible.
+ * <p>
+ * The loss of a candidate is known before it is encoded. Candidates with no less loss than the
+ * best fitting one so far are dropped right away. The size is estimated by a fast encode first.
+ * If it fits, so does the final encode. If even the best compression cannot make it fit, the
+ * candidate is dropped. Only the candidates in between are encoded with the encode options,
+ * and with stronger compression as long as it may still make the difference.
+ *
+ * @author H. Unland (https://github.com/HUnland)
+ *
+   <!--
+   Copyright 2021 H. Unland (https://github.com/HUnland)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+   -->
+ */
+public class PngBudgetEncoder
+{
+	/**
+	 * Default size budget.
+	 */
+	public static final long DEFAULT_BUDGET = 0x100000; // 1 MB
+
+	/**
+	 * The thresholds tried to stabilize the frames of an animation. 0 is lossless.
+	 */
+	static final int[] THRESHOLDS = { 0, 2, 4, 8, 16, 32 };
+
+	/**
+	 * The palette sizes tried. 0 keeps all colors.
+	 */
+	static final int[] COLORS = { 0, PngPalette.MAX_SIZE, 128, 64, 32, 16, 8, 4, 2 };
+
+	/**
+	 * The smallest ratio of the best compression to the fast estimate expected.
+	 */
+	static final double ESTIMATE_RATIO = .4;
+
+	/**
+	 * The smallest ratio of a stronger compression to the one before expected.
+	 */
+	static final double STEP_RATIO = .7;
+
+	/**
+	 * The result of an encode.
+	 */
+	public static class Result
+	{
+		final byte[] m_abData;
+		final int m_nColors;
+		final int m_nThreshold;
+		final double m_dError;
+		final int m_nEstimates;
+		final int m_nEncodes;
+
+		/**
+		 * Constructor for this Result.
+		 *
+		 * @param abData An array of bytes containing the encoded png data.
+		 * @param nColors An int containing the maximum palette size. Or 0 if all colors are kept.
+		 * @param nThreshold An int containing the frame stabilizing threshold.
+		 * @param dError A double containing the mean squared error per channel.
+		 * @param nEstimates An int containing the number of fast estimates.
+		 * @param nEncodes An int containing the number of encodes with other options.
+		 */
+		Result(byte[] abData, int nColors, int nThreshold, double dError, int nEstimates, int nEncodes)
+		{
+			m_abData = abData;
+			m_nColors = nColors;
+			m_nThreshold = nThreshold;
+			m_dError = dError;
+			m_nEstimates = nEstimates;
+			m_nEncodes = nEncodes;
+		}
+
+		/**
+		 * Gets the encoded png data.
+		 *
+		 * @return An array of bytes containing a complete png file.
+		 */
+		public byte[] getData()
+		{
+			return m_abData;
+		}
+
+		/**
+		 * Gets the size of the encoded png data.
+		 *
+		 * @return An int containing the size in bytes.
+		 */
+		public int getSize()
+		{
+			return m_abData.length;
+		}
+
+		/**
+		 * Gets the maximum palette size chosen.
+		 *
+		 * @return An int containing the number of colors. Or 0 if all colors are kept.
+		 */
+		public int getColors()
+		{
+			return m_nColors;
+		}
+
+		/**
+		 * Gets the frame stabilizing threshold chosen.
+		 *
+		 * @return An int containing the maximum difference per channel. Or 0.
+		 */
+		public int getThreshold()
+		{
+			return m_nThreshold;
+		}
+
+		/**
+		 * Gets the mean squared error per channel of all bitmaps compared to the original.
+		 *
+		 * @return A double containing the error. 0 if lossless.
+		 */
+		public double getError()
+		{
+			return m_dError;
+		}
+
+		/**
+		 * Tells whether the original bitmaps are kept exactly.
+		 *
+		 * @return A boolean containing true if lossless.
+		 */
+		public boolean isLossless()
+		{
+			return m_dError == 0;
+		}
+
+		/**
+		 * Gets the number of fast encodes done to estimate the size.
+		 *
+		 * @return An int containing the number of estimates.
+		 */
+		public int getEstimates()
+		{
+			return m_nEstimates;
+		}
+
+		/**
+		 * Gets the number of encodes done with the encode options or stronger.
+		 *
+		 * @return An int containing the number of encodes.
+		 */
+		public int getEncodes()
+		{
+			return m_nEncodes;
+		}
+	}
+
+	final long m_lBudget;
+
+	PngEncodeOptions m_options = PngEncodeOptions.MAXIMUM;
+	ForkJoinPool m_pool;
+
+	int m_nEstimates;
+	int m_nEncodes;
+
+	/**
+	 * Constructor for this PngBudgetEncoder.
+	 *
+	 * @param lBudget A long containing the maximum size of the png data in bytes.
+	 */
+	public PngBudgetEncoder(long lBudget)
+	{
+		m_lBudget = lBudget;
+	}
+
+	/**
+	 * Gets the maximum size of the png data.
+	 *
+	 * @return A long containing the size in bytes.
+	 */
+	public long getBudget()
+	{
+		return m_lBudget;
+	}
+
+	/**
+	 * Sets the encode options of the final encode.
+	 *
+	 * @param options A {@link PngEncodeOptions} object. Or null for {@link PngEncodeOptions#MAXIMUM}.
+	 */
+	public void setEncodeOptions(PngEncodeOptions options)
+	{
+		m_options = options != null ? options : PngEncodeOptions.MAXIMUM;
+	}
+
+	/**
+	 * Gets the encode options of the final encode.
+	 *
+	 * @return A {@link PngEncodeOptions} object.
+	 */
+	public PngEncodeOptions getEncodeOptions()
+	{
+		return m_options;
+	}
+
+	/**
+	 * Sets a pool to encode the bitmaps in parallel.
+	 *
+	 * @param pool A {@link ForkJoinPool} object. Or null to do it in the calling thread.
+	 */
+	public void setPool(ForkJoinPool pool)
+	{
+		m_pool = pool;
+	}
+
+	/**
+	 * Gets the pool to encode the bitmaps in parallel.
+	 *
+	 * @return A {@link ForkJoinPool} object. Or null.
+	 */
+	public ForkJoinPool getPool()
+	{
+		return m_pool;
+	}
+
+	/**
+	 * Encodes a sequence with the least loss which fits into the budget.
+	 *
+	 * @param sequence A {@link Bitmap32Sequence} object. Not optimized. It stays unchanged.
+	 * @param progress A {@link Progress} object. May be null.
+	 * @return A {@link Result} object.
+	 * @throws IOException In case of IO problems.
+	 * @throws DataFormatException In case of data format problems.
+	 * @throws Failure If even the smallest candidate does not fit.
+	 */
+	public Result encode(Bitmap32Sequence sequence, Progress<?> progress) throws IOException, DataFormatException
+	{
+		m_nEstimates = 0;
+		m_nEncodes = 0;
+
+		final boolean bAnimated = sequence.isAnimated() && sequence.getFramesCount() > 1;
+		final int nThresholds = bAnimated ? THRESHOLDS.length : 1;
+		final Bitmap32[] aOriginal = sequence.getBitmaps();
+
+		if (progress != null)
+		{
+			progress.updateProgress(0, nThresholds * COLORS.length);
+		}
+
+		Bitmap32Sequence sequenceBest = null;
+		byte[] abBest = null;
+		boolean bBestFinal = false;
+		int nBestColors = 0, nBestThreshold = 0;
+		double dBestError = Double.MAX_VALUE;
+		long lSmallest = Long.MAX_VALUE;
+
+		// The candidate with the smallest estimate, encoded with all options if nothing fits.
+		Bitmap32Sequence sequenceSmallest = null;
+		int nSmallestColors = 0, nSmallestThreshold = 0, nSmallestEstimate = Integer.MAX_VALUE;
+		double dSmallestError = 0;
+
+		for (int nT = 0; nT < nThresholds; nT++)
+		{
+			final int nThreshold = THRESHOLDS[nT];
+
+			Bitmap32Sequence sequenceStable = sequence.clone();
+			Bitmap32Optimizer.stabilizeFrames(sequenceStable, nThreshold);
+
+			// Higher thresholds do not lose less.
+			if (error(aOriginal, sequenceStable) >= dBestError)
+			{
+				break;
+			}
+
+			Bitmap32Analyzer analyzer = new Bitmap32Analyzer();
+			analyzer.analyze(sequenceStable);
+			final int nDistinct = analyzer.getDistinctColorCount();
+
+			for (int nC = 0; nC < COLORS.length; nC++)
+			{
+				PngChunkOutputStream.addProgress(progress, 1);
+
+				final int nColors = COLORS[nC];
+				if (nColors > 0 && nColors >= nDistinct)
+				{
+					continue;
+				}
+
+				Bitmap32Sequence candidate = sequenceStable.clone();
+				if (nColors > 0)
+				{
+					Bitmap32Optimizer.optimizeForPalette(candidate, nColors);
+				}
+
+				final double dError = error(aOriginal, candidate);
+				if (dError >= dBestError)
+				{
+					// Less colors do not lose less.
+					break;
+				}
+
+				optimize(candidate);
+
+				byte[] ab = encode(candidate, PngEncodeOptions.FAST);
+				m_nEstimates++;
+
+				boolean bFinal = false;
+				if (ab.length > m_lBudget)
+				{
+					lSmallest = Math.min(lSmallest, ab.length);
+
+					if (ab.length < nSmallestEstimate)
+					{
+						sequenceSmallest = candidate;
+						nSmallestEstimate = ab.length;
+						nSmallestColors = nColors;
+						nSmallestThreshold = nThreshold;
+						dSmallestError = dError;
+					}
+
+					if (ab.length * ESTIMATE_RATIO > m_lBudget)
+					{
+						continue;
+					}
+
+					ab = encodeStronger(candidate, false);
+					lSmallest = Math.min(lSmallest, ab.length);
+
+					if (ab.length > m_lBudget)
+					{
+						continue;
+					}
+
+					bFinal = true;
+				}
+
+				sequenceBest = candidate;
+				abBest = ab;
+				bBestFinal = bFinal;
+				nBestColors = nColors;
+				nBestThreshold = nThreshold;
+				dBestError = dError;
+
+				// Less colors only lose more from here.
+				break;
+			}
+
+			if (dBestError == 0)
+			{
+				break;
+			}
+		}
+
+		if (abBest == null && sequenceSmallest != null)
+		{
+			// The estimates are no minimum. So the smallest one gets the strongest compression.
+			byte[] ab = encodeStronger(sequenceSmallest, true);
+			lSmallest = Math.min(lSmallest, ab.length);
+
+			if (ab.length <= m_lBudget)
+			{
+				abBest = ab;
+				bBestFinal = true;
+				nBestColors = nSmallestColors;
+				nBestThreshold = nSmallestThreshold;
+				dBestError = dSmallestError;
+			}
+		}
+
+		if (abBest == null)
+		{
+			throw new Failure("failure.budget.unreachable", m_lBudget, lSmallest);
+		}
+
+		if (!bBestFinal)
+		{
+			// The estimate fits, but the encode options may do better.
+			byte[] ab = encode(sequenceBest, m_options);
+			m_nEncodes++;
+
+			if (ab.length < abBest.length)
+			{
+				abBest = ab;
+			}
+		}
+
+		PngChunkOutputStream.addProgress(progress, nThresholds * COLORS.length);
+
+		return new Result(abBest, nBestColors, nBestThreshold, dBestError, m_nEstimates, m_nEncodes);
+	}
+
+	/**
+	 * Internally used to encode a candidate with the encode options and stronger compression,
+	 * as long as the budget is still in reach.
+	 *
+	 * @param candidate An optimized {@link Bitmap32Sequence} object.
+	 * @param bAll A boolean containing true to try all of them, even if the budget is out of reach.
+	 * @return An array of bytes containing the smallest png data.
+	 * @throws IOException In case of IO problems.
+	 * @throws DataFormatException In case of data format problems.
+	 */
+	byte[] encodeStronger(Bitmap32Sequence candidate, boolean bAll) throws IOException, DataFormatException
+	{
+		PngEncodeOptions[] aOptions = { m_options, PngEncodeOptions.MAXIMUM,
+				PngEncodeOptions.MAXIMUM.withEngine(PngEncodeOptions.Engine.OPTIMAL) };
+
+		byte[] abSmallest = null;
+
+		for (int n = 0; n < aOptions.length; n++)
+		{
+			final PngEncodeOptions options = aOptions[n];
+			if (n > 0 && options.getPreset() == m_options.getPreset() && options.getStrategy() == m_options.getStrategy()
+					&& options.getFilterStrategy() == m_options.getFilterStrategy() && options.getEngine() == m_options.getEngine())
+			{
+				continue;
+			}
+
+			byte[] ab = encode(candidate, options);
+			m_nEncodes++;
+
+			if (abSmallest == null || ab.length < abSmallest.length)
+			{
+				abSmallest = ab;
+			}
+
+			if (abSmallest.length <= m_lBudget || (!bAll && abSmallest.length * STEP_RATIO > m_lBudget))
+			{
+				break;
+			}
+		}
+
+		return abSmallest;
+	}
+
+	/**
+	 * Internally used to optimize a candidate like a normal save.
+	 *
+	 * @param candidate A {@link Bitmap32Sequence} object. Not optimized.
+	 */
+	static void optimize(Bitmap32Sequence candidate)
+	{
+		if (candidate.isAnimated())
+		{
+			Bitmap32Optimizer.optimize(candidate);
+		}
+
+		Bitmap32Optimizer.optimizeColorType(candidate);
+	}
+
+	/**
+	 * Internally used to encode an optimized sequence into memory.
+	 *
+	 * @param candidate An optimized {@link Bitmap32Sequence} object.
+	 * @param options The {@link PngEncodeOptions} to use.
+	 * @return An array of bytes containing the png data.
+	 * @throws IOException In case of IO problems.
+	 * @throws DataFormatException In case of data format problems.
+	 */
+	byte[] encode(Bitmap32Sequence candidate, PngEncodeOptions options) throws IOException, DataFormatException
+	{
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try (PngChunkOutputStream pcos = new PngChunkOutputStream(bos))
+		{
+			pcos.setEncodePool(m_pool);
+			pcos.setEncodeOptions(options);
+			pcos.write(candidate, null);
+		}
+
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Internally used to calculate the mean squared error per channel of a not yet optimized
+	 * candidate compared to the original bitmaps. The colors of fully transparent pixels do not matter.
+	 *
+	 * @param aOriginal An array of the original {@link Bitmap32} objects.
+	 * @param candidate A {@link Bitmap32Sequence} object. Not optimized.
+	 * @return A double containing the error.
+	 */
+	static double error(Bitmap32[] aOriginal, Bitmap32Sequence candidate)
+	{
+		final Bitmap32[] aCandidate = candidate.getBitmaps();
+
+		double dSum = 0;
+		long lCount = 0;
+
+		for (int nBitmap = 0; nBitmap < aOriginal.length; nBitmap++)
+		{
+			final int[] an1 = aOriginal[nBitmap].getPixels(),
+				an2 = aCandidate[nBitmap].getPixels();
+
+			long lSum = 0;
+			for (int n = 0; n < an1.length; n++)
+			{
+				final int n1 = an1[n],
+					n2 = an2[n];
+
+				if (n1 != n2 && ((n1 | n2) >>> 24) != 0)
+				{
+					lSum += square((n1 >>> 24) - (n2 >>> 24))
+						+ square(((n1 >> 16) & 0xff) - ((n2 >> 16) & 0xff))
+						+ square(((n1 >> 8) & 0xff) - ((n2 >> 8) & 0xff))
+						+ square((n1 & 0xff) - (n2 & 0xff));
+				}
+			}
+
+			dSum += lSum;
+			lCount += an1.length * 4L;
+		}
+
+		return lCount > 0 ? dSum / lCount : 0;
+	}
+
+	/**
+	 * Internally used to square a difference.
+	 *
+	 * @param n An int containing the difference.
+	 * @return A long containing the square.
+	 */
+	static long square(int n)
+	{
+		return (long)n * n;
+	}
+}
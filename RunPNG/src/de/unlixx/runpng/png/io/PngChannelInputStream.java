@@ -0,0 +1,246 @@
+package de.unlixx.runpng.png.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * PngChannelInputStream is an input source for the {@link PngChunkInputStream}
+ * backed by a {@link FileChannel}. The file content is either memory mapped
+ * window by window or read into a large direct buffer. Thus the chunk parser
+ * reads its lengths, types and checksums straight from the buffer instead of
+ * causing a system call per byte like a bare FileInputStream does.
+ *
+ * @author H. Unland (https://github.com/HUnland)
+ *
+   <!--
+   Copyright 2021 H. Unland (https://github.com/HUnland)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+   -->
+ */
+public class PngChannelInputStream extends InputStream
+{
+	/**
+	 * Size of the direct read buffer if not mapped.
+	 */
+	public static final int BUFFER_SIZE = 0x100000; // 1 MB
+
+	/**
+	 * Files of at least this size are memory mapped by default.
+	 */
+	public static final long MAP_THRESHOLD = 0x400000; // 4 MB
+
+	/**
+	 * Maximum size of a single mapped window.
+	 */
+	public static final long MAP_WINDOW = 0x4000000; // 64 MB
+
+	final FileChannel m_channel;
+	final boolean m_bMapped;
+	final long m_lSize;
+
+	ByteBuffer m_buffer;
+	long m_lBufferPos; // File position of the buffer begin
+
+	/**
+	 * Constructor for this PngChannelInputStream. Opens a channel of the given file and
+	 * decides by the file size whether to map it or to use a direct read buffer.
+	 *
+	 * @param file The {@link File} to read from.
+	 * @throws IOException In case of IO problems.
+	 */
+	public PngChannelInputStream(File file) throws IOException
+	{
+		this(FileChannel.open(file.toPath(), StandardOpenOption.READ), file.length() >= MAP_THRESHOLD);
+	}
+
+	/**
+	 * Constructor for this PngChannelInputStream. Reading begins at the current
+	 * position of the channel. The channel will be closed by {@link #close()}.
+	 *
+	 * @param channel The {@link FileChannel} to read from.
+	 * @param bMapped A boolean containing true to map the file content, false to use a direct read buffer.
+	 * @throws IOException In case of IO problems.
+	 */
+	public PngChannelInputStream(FileChannel channel, boolean bMapped) throws IOException
+	{
+		this(channel, bMapped, BUFFER_SIZE);
+	}
+
+	/**
+	 * Constructor for this PngChannelInputStream with a given size of the direct read buffer.
+	 * A small buffer is appropriate if most of the file will be skipped anyway.
+	 *
+	 * @param channel The {@link FileChannel} to read from.
+	 * @param bMapped A boolean containing true to map the file content, false to use a direct read buffer.
+	 * @param nBufferSize An int containing the size of the direct read buffer. Not used if mapped.
+	 * @throws IOException In case of IO problems.
+	 */
+	public PngChannelInputStream(FileChannel channel, boolean bMapped, int nBufferSize) throws IOException
+	{
+		m_channel = channel;
+		m_bMapped = bMapped;
+		m_lSize = channel.size();
+		m_lBufferPos = channel.position();
+
+		if (!m_bMapped)
+		{
+			m_buffer = ByteBuffer.allocateDirect(nBufferSize);
+			m_buffer.limit(0);
+		}
+	}
+
+	/**
+	 * Gets whether the file content is memory mapped.
+	 *
+	 * @return A boolean containing true if mapped.
+	 */
+	public boolean isMapped()
+	{
+		return m_bMapped;
+	}
+
+	/**
+	 * Gets the channel in use.
+	 *
+	 * @return A {@link FileChannel} object.
+	 */
+	public FileChannel getChannel()
+	{
+		return m_channel;
+	}
+
+	/**
+	 * Gets the current read position in the file.
+	 *
+	 * @return A long containing the position.
+	 */
+	public long getPosition()
+	{
+		return m_buffer != null ? m_lBufferPos + m_buffer.position() : m_lBufferPos;
+	}
+
+	/**
+	 * Provides the next buffer content at the current position, either by
+	 * mapping the next window or by reading into the direct buffer.
+	 *
+	 * @return A boolean containing false at the end of the file.
+	 * @throws IOException In case of IO problems.
+	 */
+	boolean fill() throws IOException
+	{
+		final long lPos = getPosition();
+		if (lPos >= m_lSize)
+		{
+			return false;
+		}
+
+		m_lBufferPos = lPos;
+
+		if (m_bMapped)
+		{
+			m_buffer = m_channel.map(FileChannel.MapMode.READ_ONLY, lPos, Math.min(MAP_WINDOW, m_lSize - lPos));
+		}
+		else
+		{
+			m_buffer.clear();
+
+			while (m_buffer.hasRemaining() && m_channel.read(m_buffer, lPos + m_buffer.position()) > 0);
+
+			m_buffer.flip();
+		}
+
+		return m_buffer.hasRemaining();
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		if ((m_buffer == null || !m_buffer.hasRemaining()) && !fill())
+		{
+			return -1;
+		}
+
+		return m_buffer.get() & 0xff;
+	}
+
+	@Override
+	public int read(byte[] ab, int nOffs, int nLen) throws IOException
+	{
+		if (nLen == 0)
+		{
+			return 0;
+		}
+
+		int nRead = 0;
+
+		while (nLen > 0)
+		{
+			if ((m_buffer == null || !m_buffer.hasRemaining()) && !fill())
+			{
+				break;
+			}
+
+			final int nChunk = Math.min(nLen, m_buffer.remaining());
+			m_buffer.get(ab, nOffs, nChunk);
+
+			nOffs += nChunk;
+			nLen -= nChunk;
+			nRead += nChunk;
+		}
+
+		return nRead > 0 ? nRead : -1;
+	}
+
+	@Override
+	public long skip(long lSkip) throws IOException
+	{
+		final long lPos = getPosition(),
+				lSkipped = Math.max(0, Math.min(lSkip, m_lSize - lPos));
+
+		if (m_buffer != null && lSkipped <= m_buffer.remaining())
+		{
+			m_buffer.position(m_buffer.position() + (int)lSkipped);
+		}
+		else
+		{
+			// Invalidate the buffer, the next read fills it at the new position.
+			m_lBufferPos = lPos + lSkipped;
+
+			if (m_buffer != null)
+			{
+				m_buffer.limit(0);
+				m_buffer.position(0);
+			}
+		}
+
+		return lSkipped;
+	}
+
+	@Override
+	public int available() throws IOException
+	{
+		return (int)Math.min(Integer.MAX_VALUE, m_lSize - getPosition());
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		m_buffer = null;
+		m_channel.close();
+	}
+}
@@ -0,0 +1,260 @@
+package de.unlixx.runpng.png.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * PngChannelOutputStream is an output target for the {@link PngChunkOutputStream}
+ * backed by a {@link FileChannel}. Small writes like the lengths, types and checksums
+ * of the chunks are collected in a large direct buffer. A chunk which does not fit
+ * into the buffer anymore goes out together with the buffered data by a single
+ * gathering write. The file is synchronized to the storage device once on close.
+ * This keeps the number of system calls low, which counts most on network volumes.
+ *
+ * @author H. Unland (https://github.com/HUnland)
+ *
+   <!--
+   Copyright 2021 H. Unland (https://github.com/HUnland)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+   -->
+ */
+public class PngChannelOutputStream extends OutputStream
+{
+	/**
+	 * Default size of the direct write buffer.
+	 */
+	public static final int BUFFER_SIZE = 0x100000; // 1 MB
+
+	final FileChannel m_channel;
+	final boolean m_bSync;
+
+	ByteBuffer m_buffer;
+	final ByteBuffer m_bufferCRC = ByteBuffer.allocateDirect(4);
+	final ByteBuffer[] m_aGather = new ByteBuffer[3];
+
+	long m_lPosition; // File position of the buffer begin
+
+	/**
+	 * Constructor for this PngChannelOutputStream. Creates or truncates the given file.
+	 * The file is synchronized to the storage device on close.
+	 *
+	 * @param file The {@link File} to write to.
+	 * @throws IOException In case of IO problems.
+	 */
+	public PngChannelOutputStream(File file) throws IOException
+	{
+		this(FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), true);
+	}
+
+	/**
+	 * Constructor for this PngChannelOutputStream. Writing begins at the current
+	 * position of the channel. The channel will be closed by {@link #close()}.
+	 *
+	 * @param channel The {@link FileChannel} to write to.
+	 * @param bSync A boolean containing true to synchronize the file to the storage device on close.
+	 * @throws IOException In case of IO problems.
+	 */
+	public PngChannelOutputStream(FileChannel channel, boolean bSync) throws IOException
+	{
+		this(channel, bSync, BUFFER_SIZE);
+	}
+
+	/**
+	 * Constructor for this PngChannelOutputStream with a given size of the direct write buffer.
+	 *
+	 * @param channel The {@link FileChannel} to write to.
+	 * @param bSync A boolean containing true to synchronize the file to the storage device on close.
+	 * @param nBufferSize An int containing the size of the direct write buffer.
+	 * @throws IOException In case of IO problems.
+	 */
+	public PngChannelOutputStream(FileChannel channel, boolean bSync, int nBufferSize) throws IOException
+	{
+		m_channel = channel;
+		m_bSync = bSync;
+		m_lPosition = channel.position();
+		m_buffer = ByteBuffer.allocateDirect(nBufferSize);
+	}
+
+	/**
+	 * Gets the channel in use.
+	 *
+	 * @return A {@link FileChannel} object.
+	 */
+	public FileChannel getChannel()
+	{
+		return m_channel;
+	}
+
+	/**
+	 * Gets the current write position in the file, including the buffered data.
+	 *
+	 * @return A long containing the position.
+	 */
+	public long getPosition()
+	{
+		return m_lPosition + m_buffer.position();
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		if (!m_buffer.hasRemaining())
+		{
+			flushBuffer();
+		}
+
+		m_buffer.put((byte)b);
+	}
+
+	@Override
+	public void write(byte[] ab, int nOffs, int nLen) throws IOException
+	{
+		if (nLen <= m_buffer.remaining())
+		{
+			m_buffer.put(ab, nOffs, nLen);
+		}
+		else if (nLen < m_buffer.capacity())
+		{
+			flushBuffer();
+			m_buffer.put(ab, nOffs, nLen);
+		}
+		else
+		{
+			// Too large to be buffered at all
+			m_bufferCRC.clear().flip();
+			gather(ByteBuffer.wrap(ab, nOffs, nLen));
+		}
+	}
+
+	/**
+	 * Writes a complete chunk. If it does not fit into the buffer, the buffered data,
+	 * the head, the payload and the CRC go out by a single gathering write.
+	 * Otherwise the chunk is buffered.
+	 *
+	 * @param abHead An array of bytes containing the length and type of the chunk,
+	 * and possibly leading data which is not part of the payload, like a sequence number.
+	 * @param nHeadLen An int containing the number of head bytes to write.
+	 * @param ab An array of bytes containing the payload.
+	 * @param nOffs The offset to start at.
+	 * @param nLen The length of the payload.
+	 * @param nCRC An int containing the CRC of the chunk.
+	 * @throws IOException In case of IO problems.
+	 */
+	public void writeChunk(byte[] abHead, int nHeadLen, byte[] ab, int nOffs, int nLen, int nCRC) throws IOException
+	{
+		if (nHeadLen + nLen + 4 <= m_buffer.remaining())
+		{
+			m_buffer.put(abHead, 0, nHeadLen);
+			m_buffer.put(ab, nOffs, nLen);
+			m_buffer.putInt(nCRC);
+			return;
+		}
+
+		if (nHeadLen > m_buffer.remaining())
+		{
+			flushBuffer();
+		}
+
+		m_buffer.put(abHead, 0, nHeadLen);
+
+		m_bufferCRC.clear();
+		m_bufferCRC.putInt(nCRC);
+		m_bufferCRC.flip();
+
+		gather(ByteBuffer.wrap(ab, nOffs, nLen));
+	}
+
+	/**
+	 * Internally used to write the buffered data, the given payload and the prepared
+	 * CRC buffer in this order by gathering writes.
+	 *
+	 * @param bufferPayload A {@link ByteBuffer} containing the payload.
+	 * @throws IOException In case of IO problems.
+	 */
+	void gather(ByteBuffer bufferPayload) throws IOException
+	{
+		m_buffer.flip();
+
+		m_aGather[0] = m_buffer;
+		m_aGather[1] = bufferPayload;
+		m_aGather[2] = m_bufferCRC;
+
+		try
+		{
+			// The last buffer is done last
+			while (m_bufferCRC.hasRemaining() || bufferPayload.hasRemaining() || m_buffer.hasRemaining())
+			{
+				m_lPosition += m_channel.write(m_aGather);
+			}
+		}
+		finally
+		{
+			m_aGather[1] = null;
+			m_buffer.clear();
+		}
+	}
+
+	/**
+	 * Internally used to write the buffered data to the channel.
+	 *
+	 * @throws IOException In case of IO problems.
+	 */
+	void flushBuffer() throws IOException
+	{
+		m_buffer.flip();
+
+		try
+		{
+			while (m_buffer.hasRemaining())
+			{
+				m_lPosition += m_channel.write(m_buffer);
+			}
+		}
+		finally
+		{
+			m_buffer.clear();
+		}
+	}
+
+	@Override
+	public void flush() throws IOException
+	{
+		flushBuffer();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			if (m_channel.isOpen())
+			{
+				flushBuffer();
+
+				if (m_bSync)
+				{
+					m_channel.force(true);
+				}
+			}
+		}
+		finally
+		{
+			m_channel.close();
+		}
+	}
+}
@@ -0,0 +1,514 @@
+package de.unlixx.runpng.png.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+import de.unlixx.runpng.png.PngAnimationType;
+import de.unlixx.runpng.png.PngCRC32;
+import de.unlixx.runpng.png.PngConstants;
+import de.unlixx.runpng.png.chunks.PngAnimationControl;
+import de.unlixx.runpng.png.chunks.PngFrameControl;
+import de.unlixx.runpng.png.chunks.PngHeader;
+import de.unlixx.runpng.png.chunks.PngPalette;
+import de.unlixx.runpng.png.chunks.PngText;
+import de.unlixx.runpng.png.chunks.PngTransparency;
+import de.unlixx.runpng.util.exceptions.Failure;
+
+/**
+ * The PngChunkIndex is the result of an indexing scan by the {@link PngChunkInputStream}.
+ * It contains the ancillary chunks and the file offsets of all IDAT and fdAT chunks,
+ * grouped by bitmap, without having inflated anything. The deflated data of a single
+ * bitmap can then be read and inflated on demand.
+ *
+ * @author H. Unland (https://github.com/HUnland)
+ *
+   <!--
+   Copyright 2021 H. Unland (https://github.com/HUnland)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+   -->
+ */
+public class PngChunkIndex implements Closeable
+{
+	final File m_file;
+
+	PngHeader m_header;
+	PngPalette m_palette;
+	PngTransparency m_transparency;
+	PngAnimationControl m_animationControl;
+	PngAnimationType m_animationType = PngAnimationType.NONE;
+	final List<PngText> m_textChunks = new ArrayList<>();
+	final List<Entry> m_entries = new ArrayList<>();
+
+	PngFrameControl m_fcTLPending;
+	Entry m_entryOpen;
+
+	// Positions of the acTL and IEND chunks and the next frame sequence number, e.g. for appending
+	long m_lAnimationControlPosition = -1;
+	long m_lEndPosition = -1;
+	int m_nNextSequence;
+
+	FileChannel m_channel;
+	ByteBuffer m_buffer;
+	final PngCRC32 m_crc = new PngCRC32();
+
+	/**
+	 * An Entry describes the location of the deflated data of a single bitmap.
+	 * This may consist of multiple IDAT or fdAT chunks.
+	 */
+	public static class Entry
+	{
+		final int m_nChunkType;
+		final PngFrameControl m_fcTL;
+
+		long[] m_alOffsets = new long[4];
+		int[] m_anLengths = new int[4];
+		int[] m_anCRCs = new int[4];
+		int m_nChunks;
+		long m_lDataLength;
+
+		/**
+		 * Constructor for this Entry.
+		 *
+		 * @param nChunkType Either IDAT or fdAT.
+		 * @param fcTL A {@link PngFrameControl} object. Or null for a default image which is not part of the animation.
+		 */
+		Entry(int nChunkType, PngFrameControl fcTL)
+		{
+			m_nChunkType = nChunkType;
+			m_fcTL = fcTL;
+		}
+
+		/**
+		 * Adds the location of a data chunk.
+		 *
+		 * @param lOffset A long containing the file offset of the chunk data.
+		 * @param nLen An int containing the chunk length.
+		 * @param nCRC An int containing the checksum read from the chunk.
+		 */
+		void addChunk(long lOffset, int nLen, int nCRC)
+		{
+			if (m_nChunks == m_alOffsets.length)
+			{
+				m_alOffsets = Arrays.copyOf(m_alOffsets, m_nChunks * 2);
+				m_anLengths = Arrays.copyOf(m_anLengths, m_nChunks * 2);
+				m_anCRCs = Arrays.copyOf(m_anCRCs, m_nChunks * 2);
+			}
+
+			m_alOffsets[m_nChunks] = lOffset;
+			m_anLengths[m_nChunks] = nLen;
+			m_anCRCs[m_nChunks] = nCRC;
+			m_nChunks++;
+
+			m_lDataLength += m_nChunkType == PngConstants.fdAT ? nLen - 4 : nLen;
+		}
+
+		/**
+		 * Gets the chunk type of this entry.
+		 *
+		 * @return An int containing either IDAT or fdAT.
+		 */
+		public int getChunkType()
+		{
+			return m_nChunkType;
+		}
+
+		/**
+		 * Gets the frame control of this entry.
+		 *
+		 * @return A {@link PngFrameControl} object.
+		 * Or null in case of a default image which is not part of the animation.
+		 */
+		public PngFrameControl getFrameControl()
+		{
+			return m_fcTL;
+		}
+
+		/**
+		 * Gets the number of data chunks of this entry.
+		 *
+		 * @return An int containing the number of chunks.
+		 */
+		public int getChunksCount()
+		{
+			return m_nChunks;
+		}
+
+		/**
+		 * Gets the length of the deflated data, not including the sequence numbers of fdAT chunks.
+		 *
+		 * @return A long containing the data length.
+		 */
+		public long getDataLength()
+		{
+			return m_lDataLength;
+		}
+	}
+
+	/**
+	 * Constructor for this PngChunkIndex.
+	 *
+	 * @param file The {@link File} indexed. May be null if the data will never be read.
+	 */
+	public PngChunkIndex(File file)
+	{
+		m_file = file;
+	}
+
+	/**
+	 * Gets the file indexed.
+	 *
+	 * @return A {@link File} object. Or null if none was given.
+	 */
+	public File getFile()
+	{
+		return m_file;
+	}
+
+	/**
+	 * Sets the header chunk (IHDR).
+	 *
+	 * @param header A {@link PngHeader} object.
+	 */
+	void setHeader(PngHeader header)
+	{
+		m_header = header;
+	}
+
+	/**
+	 * Gets the header chunk (IHDR).
+	 *
+	 * @return A {@link PngHeader} object.
+	 */
+	public PngHeader getHeader()
+	{
+		return m_header;
+	}
+
+	/**
+	 * Sets the palette chunk (PLTE).
+	 *
+	 * @param palette A {@link PngPalette} object.
+	 */
+	void setPalette(PngPalette palette)
+	{
+		m_palette = palette;
+	}
+
+	/**
+	 * Gets the palette chunk (PLTE).
+	 *
+	 * @return A {@link PngPalette} object. Or null if none was read.
+	 */
+	public PngPalette getPalette()
+	{
+		return m_palette;
+	}
+
+	/**
+	 * Sets the transparency chunk (tRNS).
+	 *
+	 * @param transparency A {@link PngTransparency} object.
+	 */
+	void setTransparency(PngTransparency transparency)
+	{
+		m_transparency = transparency;
+	}
+
+	/**
+	 * Gets the transparency chunk (tRNS).
+	 *
+	 * @return A {@link PngTransparency} object. Or null if none was read.
+	 */
+	public PngTransparency getTransparency()
+	{
+		return m_transparency;
+	}
+
+	/**
+	 * Sets the animation control chunk (acTL).
+	 *
+	 * @param acTL A {@link PngAnimationControl} object.
+	 */
+	void setAnimationControl(PngAnimationControl acTL)
+	{
+		m_animationControl = acTL;
+	}
+
+	/**
+	 * Gets the animation control chunk (acTL).
+	 *
+	 * @return A {@link PngAnimationControl} object. Or null if none was read.
+	 */
+	public PngAnimationControl getAnimationControl()
+	{
+		return m_animationControl;
+	}
+
+	/**
+	 * Sets the file position of the animation control chunk (acTL).
+	 *
+	 * @param lPosition A long containing the position of the chunk length.
+	 */
+	void setAnimationControlPosition(long lPosition)
+	{
+		m_lAnimationControlPosition = lPosition;
+	}
+
+	/**
+	 * Gets the file position of the animation control chunk (acTL).
+	 *
+	 * @return A long containing the position of the chunk length. Or -1 if none was read.
+	 */
+	public long getAnimationControlPosition()
+	{
+		return m_lAnimationControlPosition;
+	}
+
+	/**
+	 * Sets the file position of the end chunk (IEND).
+	 *
+	 * @param lPosition A long containing the position of the chunk length.
+	 */
+	void setEndPosition(long lPosition)
+	{
+		m_lEndPosition = lPosition;
+	}
+
+	/**
+	 * Gets the file position of the end chunk (IEND).
+	 *
+	 * @return A long containing the position of the chunk length. Or -1 if none was read.
+	 */
+	public long getEndPosition()
+	{
+		return m_lEndPosition;
+	}
+
+	/**
+	 * Sets the sequence number following the last fcTL or fdAT chunk.
+	 *
+	 * @param nSequence An int containing the sequence number.
+	 */
+	void setNextSequence(int nSequence)
+	{
+		m_nNextSequence = nSequence;
+	}
+
+	/**
+	 * Gets the sequence number following the last fcTL or fdAT chunk.
+	 *
+	 * @return An int containing the sequence number. 0 if not animated.
+	 */
+	public int getNextSequence()
+	{
+		return m_nNextSequence;
+	}
+
+	/**
+	 * Sets the animation type.
+	 *
+	 * @param animType A {@link PngAnimationType} enum type.
+	 */
+	void setAnimationType(PngAnimationType animType)
+	{
+		m_animationType = animType;
+	}
+
+	/**
+	 * Gets the animation type.
+	 *
+	 * @return A {@link PngAnimationType} enum type.
+	 */
+	public PngAnimationType getAnimationType()
+	{
+		return m_animationType;
+	}
+
+	/**
+	 * Adds a text chunk.
+	 *
+	 * @param text A {@link PngText} object.
+	 */
+	void addTextChunk(PngText text)
+	{
+		m_textChunks.add(text);
+	}
+
+	/**
+	 * Gets the text chunk count.
+	 *
+	 * @return An int containing the number of text chunks.
+	 */
+	public int getTextChunksCount()
+	{
+		return m_textChunks.size();
+	}
+
+	/**
+	 * Gets a text chunk by index.
+	 *
+	 * @param nIdx An int containing the index.
+	 * @return A {@link PngText} object.
+	 */
+	public PngText getTextChunk(int nIdx)
+	{
+		return m_textChunks.get(nIdx);
+	}
+
+	/**
+	 * Sets a frame control read. The following data chunks belong to it.
+	 *
+	 * @param fcTL A {@link PngFrameControl} object.
+	 */
+	void setFrameControl(PngFrameControl fcTL)
+	{
+		m_fcTLPending = fcTL;
+		m_entryOpen = null;
+	}
+
+	/**
+	 * Adds the location of an IDAT or fdAT chunk.
+	 *
+	 * @param nChunkType Either IDAT or fdAT.
+	 * @param lOffset A long containing the file offset of the chunk data.
+	 * @param nLen An int containing the chunk length.
+	 * @param nCRC An int containing the checksum read from the chunk.
+	 */
+	void addDataChunk(int nChunkType, long lOffset, int nLen, int nCRC)
+	{
+		if (m_entryOpen == null || m_entryOpen.m_nChunkType != nChunkType)
+		{
+			m_entryOpen = new Entry(nChunkType, m_fcTLPending);
+			m_entries.add(m_entryOpen);
+			m_fcTLPending = null;
+		}
+
+		m_entryOpen.addChunk(lOffset, nLen, nCRC);
+	}
+
+	/**
+	 * Gets the count of indexed bitmaps, including a default image
+	 * which is not part of the animation.
+	 *
+	 * @return An int containing the number of entries.
+	 */
+	public int getEntriesCount()
+	{
+		return m_entries.size();
+	}
+
+	/**
+	 * Gets an entry by index.
+	 *
+	 * @param nIdx An int containing the index.
+	 * @return An {@link Entry} object.
+	 */
+	public Entry getEntry(int nIdx)
+	{
+		return m_entries.get(nIdx);
+	}
+
+	/**
+	 * Gets the index of the IDAT entry.
+	 *
+	 * @return An int containing the index. Or -1 if there is none.
+	 */
+	public int getDefaultEntryIndex()
+	{
+		for (int n = 0, nSize = m_entries.size(); n < nSize; n++)
+		{
+			if (m_entries.get(n).m_nChunkType == PngConstants.IDAT)
+			{
+				return n;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Reads the deflated data of the given entry from the file, checks the
+	 * chunk checksums and passes the data to the incremental inflation
+	 * of the given PngIOCore object. The inflation needs to be begun and
+	 * ended by the caller.
+	 *
+	 * @param entry The {@link Entry} to read.
+	 * @param pngIOCore A {@link PngIOCore} object in the state of an incremental inflation.
+	 * @throws IOException In case of IO problems.
+	 * @throws DataFormatException In case of problems with the data format.
+	 */
+	public synchronized void inflate(Entry entry, PngIOCore pngIOCore) throws IOException, DataFormatException
+	{
+		if (m_channel == null)
+		{
+			m_channel = FileChannel.open(m_file.toPath(), StandardOpenOption.READ);
+			m_buffer = ByteBuffer.allocate(0x100000); // Maximum chunk length read by PngChunkInputStream
+		}
+
+		final int nSkip = entry.m_nChunkType == PngConstants.fdAT ? 4 : 0; // Sequence number
+
+		for (int n = 0; n < entry.m_nChunks; n++)
+		{
+			final long lOffset = entry.m_alOffsets[n];
+			final int nLen = entry.m_anLengths[n];
+
+			m_buffer.clear();
+			m_buffer.limit(nLen);
+
+			while (m_buffer.hasRemaining())
+			{
+				if (m_channel.read(m_buffer, lOffset + m_buffer.position()) < 0)
+				{
+					throw new Failure("failure.unexpected.eof", m_file.getName());
+				}
+			}
+
+			final byte[] ab = m_buffer.array();
+
+			m_crc.reset();
+			m_crc.updateInt(entry.m_nChunkType);
+			m_crc.update(ab, 0, nLen);
+
+			if ((int)m_crc.getValue() != entry.m_anCRCs[n])
+			{
+				throw new Failure("failure.checksum.error.chunk", PngConstants.chunkTypeName(entry.m_nChunkType),
+						entry.m_anCRCs[n], (int)m_crc.getValue());
+			}
+
+			if (nLen > nSkip)
+			{
+				pngIOCore.inflate(ab, nSkip, nLen - nSkip);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (m_channel != null)
+		{
+			m_channel.close();
+			m_channel = null;
+			m_buffer = null;
+		}
+	}
+}
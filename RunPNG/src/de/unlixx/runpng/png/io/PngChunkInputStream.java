@@ -3,10 +3,12 @@ package de.unlixx.runpng.png.io;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ForkJoinPool;
 import java.util.zip.DataFormatException;
 
 import de.unlixx.runpng.bitmap.Bitmap32Manager;
@@ -51,6 +53,8 @@ import de.unlixx.runpng.util.exceptions.Failure;
 public class PngChunkInputStream extends DataInputStream
 {
 	Bitmap32Manager m_manager;
+	PngChunkIndex m_index;
+	PngHeader m_header;
 
 	int m_nIdatCount = 0;
 	int m_nFrameSequenceExpected = 0;
@@ -62,10 +66,36 @@ public class PngChunkInputStream extends DataInputStream
 
 	byte[] m_abBuffer = new byte[PngConstants.BUFFER_32K];
 
-	// Collects the deflated IDAT or fdAT chunks
+	// Collects the deflated IDAT or fdAT chunks if not streaming
 	final ByteArrayOutputStream m_bosDataLingering = new ByteArrayOutputStream();
 	int m_nChunkTypeLingering; // IDAT or fdAT
 
+	// Inflates the IDAT or fdAT chunks immediately while reading
+	boolean m_bStreaming = true;
+	boolean m_bInflating;
+
+	// Inflates the bitmaps of an animation in parallel
+	ForkJoinPool m_pool;
+
+	// Reduced resolution
+	int m_nSubsample = 1;
+
+	// Progressive decoding of interlaced bitmaps
+	PngPassListener m_passListener;
+
+	// Composited frames of animations
+	boolean m_bComposite;
+
+	// Takes the original deflated data of the bitmaps
+	PngFrameCache m_cache;
+
+	// File position of the current chunk
+	long m_lPosition;
+	// Data chunk skipped while indexing
+	boolean m_bDataSkipped;
+	// Chunks read but not applied, like gAMA or unknown ones
+	int m_nIgnoredChunks;
+
 	/**
 	 * Constructor for this PngChunkInputStream.
 	 *
@@ -76,6 +106,124 @@ public class PngChunkInputStream extends DataInputStream
 		super(is);
 	}
 
+	/**
+	 * Sets the streaming mode. If streaming, the data of the IDAT and fdAT chunks is
+	 * inflated chunk by chunk while reading and the scanlines are written as soon as
+	 * they are complete. Otherwise the deflated data of a bitmap is collected completely
+	 * before inflating. Streaming is the default.
+	 *
+	 * @param bStreaming A boolean containing true for streaming.
+	 */
+	public void setStreaming(boolean bStreaming)
+	{
+		m_bStreaming = bStreaming;
+	}
+
+	/**
+	 * Gets whether the streaming mode is set.
+	 *
+	 * @return A boolean containing true if streaming.
+	 */
+	public boolean isStreaming()
+	{
+		return m_bStreaming;
+	}
+
+	/**
+	 * Sets a pool to decode the bitmaps of an animation in parallel. Each frame is a zlib
+	 * stream of its own, so the deflated data of a frame is collected completely and then
+	 * inflated, unfiltered and converted by a pool thread, while the reading proceeds with
+	 * the next frame. The frames are added to the sequence in their original order.
+	 * The streaming mode remains in effect for non-animated images only.
+	 *
+	 * @param pool A {@link ForkJoinPool} object. Or null to decode in the reading thread, which is the default.
+	 */
+	public void setDecodePool(ForkJoinPool pool)
+	{
+		m_pool = pool;
+	}
+
+	/**
+	 * Gets the pool to decode the bitmaps of an animation in parallel.
+	 *
+	 * @return A {@link ForkJoinPool} object. Or null if none is set.
+	 */
+	public ForkJoinPool getDecodePool()
+	{
+		return m_pool;
+	}
+
+	/**
+	 * Sets a subsampling factor n for reading. Then the sequence read contains only every nth
+	 * pixel of every nth scanline, and the frame controls are reduced accordingly. This is
+	 * intended for previews and thumbnails, which cost a fraction of memory and time then.
+	 * Not applicable to {@link #readIndex(File, Progress)}.
+	 *
+	 * @param nSubsample An int containing the subsampling factor. 1 means full resolution, which is the default.
+	 */
+	public void setSubsample(int nSubsample)
+	{
+		m_nSubsample = Math.max(1, nSubsample);
+	}
+
+	/**
+	 * Sets a listener to get a coarse preview after every completed Adam7 pass of an
+	 * interlaced bitmap. The listener may stop decoding of a bitmap after any pass.
+	 * Frames decoded by a decode pool are not previewed.
+	 *
+	 * @param listener A {@link PngPassListener} object. Or null to remove it.
+	 */
+	public void setPassListener(PngPassListener listener)
+	{
+		m_passListener = listener;
+	}
+
+	/**
+	 * Gets the subsampling factor.
+	 *
+	 * @return An int containing the subsampling factor.
+	 */
+	public int getSubsample()
+	{
+		return m_nSubsample;
+	}
+
+	/**
+	 * Sets the composite mode. Then the frames of an animation are composited while reading
+	 * according to their dispose and blend operators. The sequence read is not optimized then
+	 * and needs no {@link de.unlixx.runpng.bitmap.Bitmap32Optimizer#deoptimize(Bitmap32Sequence)}.
+	 * Not applicable in case of subsampling.
+	 *
+	 * @param bComposite A boolean containing true to composite.
+	 */
+	public void setComposite(boolean bComposite)
+	{
+		m_bComposite = bComposite;
+	}
+
+	/**
+	 * Sets a cache to put the original deflated data of the bitmaps into. A {@link PngChunkOutputStream}
+	 * with the same cache then copies the data of bitmaps still unchanged instead of deflating them again.
+	 * The frames of an animation are put as decoded, before compositing. Not applicable in case
+	 * of subsampling or with a pass listener.
+	 *
+	 * @param cache A {@link PngFrameCache} object. Or null, which is the default.
+	 */
+	public void setFrameCache(PngFrameCache cache)
+	{
+		m_cache = cache;
+	}
+
+	/**
+	 * Gets whether the composite mode is set.
+	 *
+	 * @return A boolean containing true if set.
+	 */
+	public boolean isComposite()
+	{
+		return m_bComposite;
+	}
+
 	/**
 	 * Reads a byte from input stream with CRC update.
 	 *
@@ -173,17 +321,92 @@ public class PngChunkInputStream extends DataInputStream
     /**
      * Reads a Bitmap32Sequence from the input stream.
      *
-     * @param progress A {@link Progress} object to update the visual progress indicator.
-     * @return A decompressed but still optimized {@link Bitmap32Sequence} object.
+     * @param progress A {@link Progress} object to update the visual progress indicator. May be null.
+     * @return A decompressed {@link Bitmap32Sequence} object. Still optimized, unless composited.
 	 * @throws IOException In case of an IO problem.
 	 * @throws DataFormatException In case of problems with the data format.
      */
 	public Bitmap32Sequence read(Progress<?> progress) throws IOException, DataFormatException
 	{
 		m_manager = new Bitmap32Manager();
+		m_manager.setDecodePool(m_pool);
+		m_manager.setSubsample(m_nSubsample);
+		m_manager.setPassListener(m_passListener);
+		m_manager.setComposite(m_bComposite);
+		m_manager.setFrameCache(m_cache);
+
+		try
+		{
+			readChunks(progress);
+
+			m_manager.finishDeflatedBitmaps();
+		}
+		finally
+		{
+			m_manager.cancelDeflatedBitmaps();
+		}
+
+		return m_manager.getSequence();
+	}
+
+	/**
+	 * Reads the chunks from the input stream and builds an index of them, without inflating
+	 * anything. The data of the IDAT and fdAT chunks is skipped and its checksums are not
+	 * checked before the data is read from the index.
+	 *
+	 * @param file The {@link File} this stream is reading from. It is needed later by the index
+	 * to read the data of a bitmap. May be null if the data will never be read.
+	 * @param progress A {@link Progress} object to update the visual progress indicator. May be null.
+	 * @return A {@link PngChunkIndex} object.
+	 * @throws IOException In case of an IO problem.
+	 * @throws DataFormatException In case of problems with the data format.
+	 */
+	public PngChunkIndex readIndex(File file, Progress<?> progress) throws IOException, DataFormatException
+	{
+		m_index = new PngChunkIndex(file);
+
+		readChunks(progress);
+
+		m_index.setNextSequence(m_nFrameSequenceExpected);
+
+		return m_index;
+	}
+
+	/**
+	 * Convenience method to build an index of a png file.
+	 *
+	 * @param file The {@link File} to index.
+	 * @param progress A {@link Progress} object to update the visual progress indicator. May be null.
+	 * @return A {@link PngChunkIndex} object.
+	 * @throws IOException In case of an IO problem.
+	 * @throws DataFormatException In case of problems with the data format.
+	 *
+	 * @see #readIndex(File, Progress)
+	 */
+	public static PngChunkIndex index(File file, Progress<?> progress) throws IOException, DataFormatException
+	{
+		try (PngChunkInputStream pcis = new PngChunkInputStream(new PngChannelInputStream(file)))
+		{
+			return pcis.readIndex(file, progress);
+		}
+	}
 
+	/**
+	 * Reads all chunks from signature up to IEND.
+	 *
+	 * @param progress A {@link Progress} object to update the visual progress indicator. May be null.
+	 * @throws IOException In case of an IO problem.
+	 * @throws DataFormatException In case of problems with the data format.
+	 */
+	void readChunks(Progress<?> progress) throws IOException, DataFormatException
+	{
 		readSignature();
-		progress.addProgress(PngConstants.PNG_SIGNATURE.length);
+		m_lPosition = PngConstants.PNG_SIGNATURE.length;
+
+		if (progress != null)
+		{
+			progress.addProgress(PngConstants.PNG_SIGNATURE.length);
+		}
 
 		boolean bFinished = false;
 		while (!bFinished)
@@ -193,10 +416,35 @@ public class PngChunkInputStream extends DataInputStream
 
 			bFinished = chunkWedge(nChunkType, nLen);
 
-			progress.addProgress(4 + nLen + 4); // Chunk type length + chunk length + checksum length
+			m_lPosition += 4 + 4 + nLen + 4; // Chunk length + chunk type + data + checksum
+
+			if (progress != null)
+			{
+				progress.addProgress(4 + 4 + nLen + 4); // Chunk length + chunk type + data + checksum
+			}
 		}
+	}
 
-		return m_manager.getSequence();
+	/**
+	 * Gets the position in the input stream, which is the number of bytes read
+	 * from the signature up to the end of the last complete chunk.
+	 *
+	 * @return A long containing the position.
+	 */
+	public long getPosition()
+	{
+		return m_lPosition;
+	}
+
+	/**
+	 * Gets the number of chunks read but ignored, since they are not applied to the sequence.
+	 * These are all ancillary chunks besides tRNS and the text chunks, and unknown ones.
+	 *
+	 * @return An int containing the number of chunks.
+	 */
+	public int getIgnoredChunksCount()
+	{
+		return m_nIgnoredChunks;
 	}
 
 	/**
@@ -206,7 +454,14 @@ public class PngChunkInputStream extends DataInputStream
 	 */
 	void applyLingeringData() throws DataFormatException
 	{
-		if (m_bosDataLingering.size() > 0)
+		if (m_bInflating)
+		{
+			m_manager.endDeflatedBitmap(m_nChunkTypeLingering);
+
+			m_bInflating = false;
+			m_nChunkTypeLingering = 0;
+		}
+		else if (m_bosDataLingering.size() > 0)
 		{
 			m_manager.applyDeflatedBitmap(m_nChunkTypeLingering, m_bosDataLingering.toByteArray());
 
@@ -294,6 +549,11 @@ public class PngChunkInputStream extends DataInputStream
 			applyLingeringData();
 			nCRCCalc = PngConstants.CHECKSUM_IEND; // Does never change
 
+			if (m_index != null)
+			{
+				m_index.setEndPosition(m_lPosition);
+			}
+
 			// Nothing further to read
 			// TODO: But what the hell is after IEND? Approx. 40 bytes left over sometimes.
 			break;
@@ -304,7 +564,18 @@ public class PngChunkInputStream extends DataInputStream
 		}
 
 		int nCRCRead = readInt();
-		handleChunkCRC(nChunkType, nCRCCalc, nCRCRead);
+
+		if (m_bDataSkipped)
+		{
+			// Checked later while reading from the index
+			m_index.addDataChunk(nChunkType, m_lPosition + 8, nLen, nCRCRead);
+			m_bDataSkipped = false;
+		}
+		else
+		{
+			handleChunkCRC(nChunkType, nCRCCalc, nCRCRead);
+		}
+
 		return nChunkType == PngConstants.IEND;
 	}
 
@@ -364,8 +635,16 @@ public class PngChunkInputStream extends DataInputStream
 				readByte_crc());	// Interlace method
 
 		m_bGotHeader = true;
+		m_header = header;
 
-		m_manager.setHeader(header);
+		if (m_index != null)
+		{
+			m_index.setHeader(header);
+		}
+		else
+		{
+			m_manager.setHeader(header);
+		}
 
 		return (int)m_crc.getValue();
 	}
@@ -385,9 +664,16 @@ public class PngChunkInputStream extends DataInputStream
 		byte[] abTrans = new byte[nLen];
 		readFully_crc(abTrans);
 
-		PngHeader header = m_manager.getHeader();
+		PngTransparency transparency = new PngTransparency(m_header.getColorType(), m_header.getBitDepth(), abTrans);
 
-		m_manager.setTransparency(new PngTransparency(header.getColorType(), header.getBitDepth(), abTrans));
+		if (m_index != null)
+		{
+			m_index.setTransparency(transparency);
+		}
+		else
+		{
+			m_manager.setTransparency(transparency);
+		}
 
 		return (int)m_crc.getValue();
 	}
@@ -434,21 +720,44 @@ public class PngChunkInputStream extends DataInputStream
 
 		byte[] abPLTE = new byte[nLen];
 		readFully_crc(abPLTE);
-		m_manager.setPalette(PngPalette.createPalette(abPLTE));
+		if (m_index != null)
+		{
+			m_index.setPalette(PngPalette.createPalette(abPLTE));
+		}
+		else
+		{
+			m_manager.setPalette(PngPalette.createPalette(abPLTE));
+		}
 
 		return (int)m_crc.getValue();
 	}
 
 	/**
-	 * Collects image data for the IDAT and fdAT chunk and puts it
-	 * to the lingering data.
+	 * Collects image data for the IDAT and fdAT chunk and either passes it
+	 * immediately to the inflation if streaming, or puts it to the lingering data.
+	 * While indexing the data is skipped.
 	 *
 	 * @param nLen The length of the chunk.
 	 * @return The CRC32 checksum.
 	 * @throws IOException In case of IO problems.
+	 * @throws DataFormatException In case of problems with the data format.
 	 */
-	int collectImageData(int nLen) throws IOException
+	int collectImageData(int nLen) throws IOException, DataFormatException
 	{
+		if (m_index != null)
+		{
+			skipFully(nLen);
+			m_bDataSkipped = true;
+
+			return 0;
+		}
+
+		if (m_bStreaming && (m_pool == null || m_animationType == PngAnimationType.NONE) && !m_bInflating && nLen > 0)
+		{
+			m_manager.beginDeflatedBitmap();
+			m_bInflating = true;
+		}
+
 		while (nLen > 0)
 		{
 			int nRead = read_crc(m_abBuffer, 0, Math.min(nLen, m_abBuffer.length));
@@ -457,7 +766,15 @@ public class PngChunkInputStream extends DataInputStream
 				throw new EOFException(Loc.getString("exception.unexpected.end", "collectImageData"));
 			}
 
-			m_bosDataLingering.write(m_abBuffer, 0, nRead);
+			if (m_bInflating)
+			{
+				m_manager.applyDeflatedData(m_abBuffer, 0, nRead);
+			}
+			else
+			{
+				m_bosDataLingering.write(m_abBuffer, 0, nRead);
+			}
+
 			nLen -= nRead;
 		}
 
@@ -470,8 +787,9 @@ public class PngChunkInputStream extends DataInputStream
 	 * @param nLen The length of the chunk.
 	 * @return The CRC32 checksum.
 	 * @throws IOException In case of IO problems.
+	 * @throws DataFormatException In case of problems with the data format.
 	 */
-	int read_IDAT(int nLen) throws IOException
+	int read_IDAT(int nLen) throws IOException, DataFormatException
 	{
 		m_crc.reset();
 		m_crc.updateInt(PngConstants.IDAT);
@@ -479,7 +797,14 @@ public class PngChunkInputStream extends DataInputStream
        if (m_nIdatCount == 0 && m_nFrameSequenceExpected == 0)
         {
             m_animationType = PngAnimationType.NONE;
-            m_manager.setAnimationType(m_animationType);
+            if (m_index != null)
+            {
+                m_index.setAnimationType(m_animationType);
+            }
+            else
+            {
+                m_manager.setAnimationType(m_animationType);
+            }
         }
 
         m_nIdatCount++;
@@ -506,7 +831,15 @@ public class PngChunkInputStream extends DataInputStream
 				readInt_crc()	// Number of loops
 			);
 
-		m_manager.setAnimationControl(animControl);
+		if (m_index != null)
+		{
+			m_index.setAnimationControl(animControl);
+			m_index.setAnimationControlPosition(m_lPosition);
+		}
+		else
+		{
+			m_manager.setAnimationControl(animControl);
+		}
 
 		return (int)m_crc.getValue();
 	}
@@ -556,10 +889,24 @@ public class PngChunkInputStream extends DataInputStream
 				m_animationType = PngAnimationType.SKIPFIRST;
 			}
 
-			m_manager.setAnimationType(m_animationType);
+			if (m_index != null)
+			{
+				m_index.setAnimationType(m_animationType);
+			}
+			else
+			{
+				m_manager.setAnimationType(m_animationType);
+			}
 		}
 
-		m_manager.setFrameControl(fcTL);
+		if (m_index != null)
+		{
+			m_index.setFrameControl(fcTL);
+		}
+		else
+		{
+			m_manager.setFrameControl(fcTL);
+		}
 
 		return (int)m_crc.getValue();
 	}
@@ -570,8 +917,9 @@ public class PngChunkInputStream extends DataInputStream
 	 * @param nLen The length of the chunk.
 	 * @return The CRC32 checksum.
 	 * @throws IOException In case of IO problems.
+	 * @throws DataFormatException In case of problems with the data format.
 	 */
-	int read_fdAT(int nLen) throws IOException
+	int read_fdAT(int nLen) throws IOException, DataFormatException
 	{
 		m_crc.reset();
 		m_crc.updateInt(PngConstants.fdAT);
@@ -726,12 +1074,40 @@ public class PngChunkInputStream extends DataInputStream
 
 		if (textChunk != null)
 		{
-			m_manager.addTextChunk(textChunk);
+			if (m_index != null)
+			{
+				m_index.addTextChunk(textChunk);
+			}
+			else
+			{
+				m_manager.addTextChunk(textChunk);
+			}
 		}
 
 		return (int)m_crc.getValue();
 	}
 
+	/**
+	 * Skips the given number of bytes.
+	 *
+	 * @param nLen An int containing the number of bytes to skip.
+	 * @throws IOException In case of IO problems.
+	 */
+	void skipFully(int nLen) throws IOException
+	{
+		while (nLen > 0)
+		{
+			int nSkipped = skipBytes(nLen);
+			if (nSkipped <= 0)
+			{
+				readByte(); // Throws EOFException at the end
+				nSkipped = 1;
+			}
+
+			nLen -= nSkipped;
+		}
+	}
+
 	/**
 	 * Ignores a chunk.
 	 *
@@ -742,6 +1118,8 @@ public class PngChunkInputStream extends DataInputStream
 	 */
 	int skipIgnoredChunk(int nChunkType, int nLen) throws IOException
 	{
+		m_nIgnoredChunks++;
+
 		m_crc.reset();
 		m_crc.updateInt(nChunkType);
 
@@ -2,16 +2,25 @@ package de.unlixx.runpng.png.io;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.zip.DataFormatException;
 
 import de.unlixx.runpng.bitmap.Bitmap32;
 import de.unlixx.runpng.bitmap.Bitmap32Manager;
 import de.unlixx.runpng.bitmap.Bitmap32Sequence;
+import de.unlixx.runpng.bitmap.Scanline32;
 import de.unlixx.runpng.png.PngAnimationType;
 import de.unlixx.runpng.png.PngCRC32;
+import de.unlixx.runpng.png.PngColorType;
 import de.unlixx.runpng.png.PngConstants;
 import de.unlixx.runpng.png.chunks.PngAnimationControl;
 import de.unlixx.runpng.png.chunks.PngFrameControl;
@@ -21,6 +30,7 @@ import de.unlixx.runpng.png.chunks.PngText;
 import de.unlixx.runpng.png.chunks.PngTransparency;
 import de.unlixx.runpng.util.Progress;
 import de.unlixx.runpng.util.Util;
+import de.unlixx.runpng.util.exceptions.Failure;
 
 /**
  * PngChunkOutputStream based on DataOutputStream. This class writes
@@ -53,14 +63,199 @@ public class PngChunkOutputStream extends DataOutputStream
 
 	PngCRC32 m_crc = new PngCRC32();
 
+	// Deflates the bitmaps of an animation in parallel
+	ForkJoinPool m_pool;
+
+	PngEncodeOptions m_options = PngEncodeOptions.MAXIMUM;
+
+	// Searches the smallest deflated data per bitmap
+	PngSqueezer m_squeezer;
+
+	// Holds the deflated data of the bitmaps between saves
+	PngFrameCache m_cache;
+
+	// Writes the data chunks while deflating
+	final DataChunkSink m_sink = new DataChunkSink();
+
+	// Set if writing to a channel, which takes data chunks as a whole
+	final PngChannelOutputStream m_channel;
+	final byte[] m_abHead = new byte[12];
+
+	/**
+	 * DataChunkSink collects the deflated data of a bitmap and writes an IDAT or fdAT chunk
+	 * every time 32 kBytes are complete. So the deflated bitmap is never held as a whole,
+	 * unless a copy is kept for the frame cache.
+	 */
+	class DataChunkSink extends OutputStream
+	{
+		final byte[] m_abChunk = new byte[PngConstants.BUFFER_32K];
+		int m_nFill;
+		ByteArrayOutputStream m_bosCopy; // Or null
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			if (m_bosCopy != null)
+			{
+				m_bosCopy.write(b);
+			}
+
+			m_abChunk[m_nFill++] = (byte)b;
+
+			if (m_nFill == m_abChunk.length)
+			{
+				writeChunk();
+			}
+		}
+
+		@Override
+		public void write(byte[] ab, int nOffs, int nLen) throws IOException
+		{
+			if (m_bosCopy != null)
+			{
+				m_bosCopy.write(ab, nOffs, nLen);
+			}
+
+			while (nLen > 0)
+			{
+				final int nSize = Math.min(nLen, m_abChunk.length - m_nFill);
+
+				System.arraycopy(ab, nOffs, m_abChunk, m_nFill, nSize);
+				m_nFill += nSize;
+				nOffs += nSize;
+				nLen -= nSize;
+
+				if (m_nFill == m_abChunk.length)
+				{
+					writeChunk();
+				}
+			}
+		}
+
+		/**
+		 * Writes the data collected so far as a chunk.
+		 *
+		 * @throws IOException In case of IO problems.
+		 */
+		void writeChunk() throws IOException
+		{
+			writeDataChunk(m_abChunk, 0, m_nFill);
+			m_nFill = 0;
+		}
+
+		/**
+		 * Writes the remaining data of a bitmap.
+		 *
+		 * @throws IOException In case of IO problems.
+		 */
+		void finish() throws IOException
+		{
+			if (m_nFill > 0)
+			{
+				writeChunk();
+			}
+
+			m_bIdatWritten = true;
+		}
+	}
+
 	/**
 	 * Constructor for this PngChunkOutputStream.
 	 *
-	 * @param os The {@link OutputStream} to write to.
+	 * @param os The {@link OutputStream} to write to. If this is a {@link PngChannelOutputStream},
+	 * each data chunk is handed over as a whole.
 	 */
 	public PngChunkOutputStream(OutputStream os)
 	{
 		super(os);
+
+		m_channel = os instanceof PngChannelOutputStream ? (PngChannelOutputStream)os : null;
+	}
+
+	/**
+	 * Sets a pool to encode the bitmaps in parallel. Each bitmap is filtered and deflated
+	 * by a pool thread then, while the chunks are written in the original order of the bitmaps,
+	 * those of the bitmap in turn as soon as they are deflated. If there are fewer bitmaps than threads in the pool,
+	 * large bitmaps are deflated in parallel blocks instead.
+	 *
+	 * @param pool A {@link ForkJoinPool} object. Or null to encode in the writing thread, which is the default.
+	 */
+	public void setEncodePool(ForkJoinPool pool)
+	{
+		m_pool = pool;
+	}
+
+	/**
+	 * Gets the pool to encode the bitmaps in parallel.
+	 *
+	 * @return A {@link ForkJoinPool} object. Or null if none is set.
+	 */
+	public ForkJoinPool getEncodePool()
+	{
+		return m_pool;
+	}
+
+	/**
+	 * Sets the options for deflating the bitmaps, like compression preset and strategy.
+	 *
+	 * @param options A {@link PngEncodeOptions} object. {@link PngEncodeOptions#MAXIMUM} is the default.
+	 */
+	public void setEncodeOptions(PngEncodeOptions options)
+	{
+		m_options = options != null ? options : PngEncodeOptions.MAXIMUM;
+	}
+
+	/**
+	 * Gets the options for deflating the bitmaps.
+	 *
+	 * @return A {@link PngEncodeOptions} object.
+	 */
+	public PngEncodeOptions getEncodeOptions()
+	{
+		return m_options;
+	}
+
+	/**
+	 * Sets a cache for the deflated data of the bitmaps. Bitmaps which did not change
+	 * since the last save with the same cache are written from it then. Not used while squeezing.
+	 *
+	 * @param cache A {@link PngFrameCache} object. Or null to deflate all bitmaps, which is the default.
+	 */
+	public void setFrameCache(PngFrameCache cache)
+	{
+		m_cache = cache;
+	}
+
+	/**
+	 * Gets the cache for the deflated data of the bitmaps.
+	 *
+	 * @return A {@link PngFrameCache} object. Or null if none is set.
+	 */
+	public PngFrameCache getFrameCache()
+	{
+		return m_cache;
+	}
+
+	/**
+	 * Sets a squeezer to search the smallest deflated data of each bitmap within its time budget.
+	 * The encode options are tried first then. The bitmaps are squeezed one after another,
+	 * each by the pool of the squeezer.
+	 *
+	 * @param squeezer A {@link PngSqueezer} object. Or null to deflate with the encode options only.
+	 */
+	public void setSqueezer(PngSqueezer squeezer)
+	{
+		m_squeezer = squeezer;
+	}
+
+	/**
+	 * Gets the squeezer, which holds the results after writing.
+	 *
+	 * @return A {@link PngSqueezer} object. Or null if none is set.
+	 */
+	public PngSqueezer getSqueezer()
+	{
+		return m_squeezer;
 	}
 
 	/**
@@ -177,87 +372,466 @@ public class PngChunkOutputStream extends DataOutputStream
 	 * Writes a Bitmap32Sequence to the output stream.
 	 *
 	 * @param sequence A {@link Bitmap32Sequence} object.
-     * @param progress A {@link Progress} object to update the visual progress indicator.
+     * @param progress A {@link Progress} object to update the visual progress indicator. May be null.
 	 * @throws IOException In case of IO problems.
 	 * @throws DataFormatException In case of data format problems.
 	 */
 	public void write(Bitmap32Sequence sequence, Progress<?> progress) throws IOException, DataFormatException
 	{
 		m_manager = new Bitmap32Manager(sequence);
+		m_manager.setEncodeOptions(m_options);
 		m_bIdatWritten = false;
 
-		progress.updateProgress(0);
+		if (progress != null)
+		{
+			progress.updateProgress(0);
+		}
+
+		// The bitmaps in order of their data chunks
+		List<Bitmap32> listBitmaps = new ArrayList<>();
+		PngAnimationType animType = sequence.getAnimationType();
+
+		switch (animType)
+		{
+		case NONE:
+		case SKIPFIRST:
+			listBitmaps.add(sequence.getDefaultBitmap());
+			//...
+		default: break;
+		}
+
+		final int nFirstFrame = listBitmaps.size();
+
+		if (animType != PngAnimationType.NONE) // Just to be sure
+		{
+			for (int nFrame = 0, nFrames = sequence.getFramesCount(); nFrame < nFrames; nFrame++)
+			{
+				listBitmaps.add(sequence.getFrame(nFrame));
+			}
+		}
+
+		PngHeader header = sequence.getHeader();
+		byte[] abSqueezedFirst = null;
+
+		if (m_squeezer != null && !listBitmaps.isEmpty())
+		{
+			// The interlace method may change by squeezing the first bitmap.
+			m_squeezer.begin(header, m_options, listBitmaps.size());
+			abSqueezedFirst = m_squeezer.squeeze(m_manager.createScanline(listBitmaps.get(0)));
+			header = m_squeezer.getHeader();
+		}
+
+		final int nBitmaps = listBitmaps.size();
+		int nDeflate = nBitmaps;
+
+		// The deflated data of unchanged bitmaps is taken from the cache
+		final boolean bCache = m_cache != null && m_squeezer == null;
+		final PngFrameCache.Key[] aKeys = bCache ? new PngFrameCache.Key[nBitmaps] : null;
+		final byte[][] aabCached = bCache ? new byte[nBitmaps][] : null;
+
+		if (bCache)
+		{
+			m_cache.begin();
+
+			final long lSettings = PngFrameCache.hashSettings(header, sequence.getPalette(), sequence.getTransparency(), m_options),
+					lOriginal = PngFrameCache.hashSettings(header, sequence.getPalette(), sequence.getTransparency(), null);
+
+			for (int n = 0; n < nBitmaps; n++)
+			{
+				aKeys[n] = PngFrameCache.createKey(lSettings, listBitmaps.get(n));
+				aabCached[n] = m_cache.get(aKeys[n], PngFrameCache.createKey(lOriginal, aKeys[n]));
+
+				if (aabCached[n] != null)
+				{
+					nDeflate--;
+				}
+			}
+		}
 
 		write(PngConstants.PNG_SIGNATURE);
-		progress.addProgress(1);
+		addProgress(progress, 1);
 
-		write_IHDR(sequence.getHeader());
-		progress.addProgress(1);
+		write_IHDR(header);
+		addProgress(progress, 1);
 
 		for (int n = 0, nTexts = sequence.getTextChunksCount(); n < nTexts; n++)
 		{
 			write_text(sequence.getTextChunk(n));
-			progress.addProgress(1);
+			addProgress(progress, 1);
 		}
 
 		PngPalette palette = sequence.getPalette();
 		if (palette != null)
 		{
 			write_PLTE(palette);
-			progress.addProgress(1);
+			addProgress(progress, 1);
 		}
 
 		PngTransparency transparency = sequence.getTransparency();
 		if (transparency != null)
 		{
 			write_tRNS(transparency);
-			progress.addProgress(1);
+			addProgress(progress, 1);
 		}
 
 		if (sequence.isAnimated())
 		{
 			write_acTL(sequence.getAnimationControl());
-			progress.addProgress(1);
+			addProgress(progress, 1);
 		}
 
-		ByteArrayOutputStream bos = new ByteArrayOutputStream(PngConstants.BUFFER_32K);
-		PngAnimationType animType = sequence.getAnimationType();
+		m_nFrameSequence = 0;
 
-		switch (animType)
+		// The number of bitmaps deflated ahead is limited to keep the memory usage bounded.
+		// Only these are held as a whole, the one in turn is written while deflating.
+		final int nWindow = m_pool != null && m_squeezer == null ? m_pool.getParallelism() * 2 : 0;
+
+		m_manager.setEncodePool(m_pool);
+		m_manager.setDeflateBlocks(m_pool != null && nDeflate < m_pool.getParallelism());
+
+		try
 		{
-		case NONE:
-		case SKIPFIRST:
-			m_manager.deflateBitmap(bos, sequence.getDefaultBitmap());
-			writeDataChunks(bos.toByteArray());
-			progress.addProgress(1);
-			//...
-		default: break;
+			for (int n = 0, nNext = 0; n < nBitmaps; n++)
+			{
+				while (nNext < nBitmaps && m_manager.getSubmittedBitmapsCount() < nWindow)
+				{
+					if (!bCache || aabCached[nNext] == null)
+					{
+						m_manager.submitBitmap(listBitmaps.get(nNext));
+					}
+
+					nNext++;
+				}
+
+				if (n >= nFirstFrame)
+				{
+					PngFrameControl fcTL = listBitmaps.get(n).getFrameControl();
+
+					write_fcTL(fcTL);
+					addProgress(progress, 1);
+				}
+
+				if (m_squeezer != null)
+				{
+					writeDataChunks(n == 0 ? abSqueezedFirst : m_squeezer.squeeze(m_manager.createScanline(listBitmaps.get(n))));
+				}
+				else if (bCache && aabCached[n] != null)
+				{
+					writeDataChunks(aabCached[n]);
+				}
+				else
+				{
+					// Written while deflating, also if deflated by the pool.
+					m_sink.m_bosCopy = bCache ? new ByteArrayOutputStream(PngConstants.BUFFER_32K) : null;
+
+					if (nWindow > 0)
+					{
+						m_manager.takeDeflatedBitmap(m_sink);
+					}
+					else
+					{
+						m_manager.deflateBitmap(m_sink, listBitmaps.get(n));
+					}
+
+					m_sink.finish();
+
+					if (bCache)
+					{
+						m_cache.put(aKeys[n], m_sink.m_bosCopy.toByteArray());
+					}
+				}
+
+				addProgress(progress, 1);
+			}
 		}
+		finally
+		{
+			m_manager.cancelSubmittedBitmaps();
+			m_sink.m_bosCopy = null;
 
-		if (animType != PngAnimationType.NONE) // Just to be sure
+			if (bCache)
+			{
+				m_cache.end();
+			}
+		}
+
+		write_IEND();
+
+		flush();
+
+		addProgress(progress, 1);
+	}
+
+	/**
+	 * Internally used to update the progress, if any.
+	 *
+	 * @param progress A {@link Progress} object. Or null.
+	 * @param lWorked The incremental value added to the workDone property.
+	 */
+	static void addProgress(Progress<?> progress, long lWorked)
+	{
+		if (progress != null)
 		{
-			m_nFrameSequence = 0;
+			progress.addProgress(lWorked);
+		}
+	}
 
-			for (int nFrame = 0, nFrames = sequence.getFramesCount(); nFrame < nFrames; nFrame++)
+	/**
+	 * Appends frames to an animated png file in place, without decoding or re-encoding the frames
+	 * already there. The new frames are written as fcTL and fdAT chunks with continued sequence
+	 * numbers in place of the IEND chunk, which follows them again. Then the number of frames
+	 * in the acTL chunk is patched. The file is not touched if a frame cannot be appended.
+	 * If writing fails, the file is cut back to the former frames and ended by IEND again.
+	 *
+	 * @param file The {@link File} of an animated png.
+	 * @param listFrames A list of {@link Bitmap32} objects to append. A frame without {@link PngFrameControl}
+	 * is placed at the upper left corner with the delay of the last frame of the file. Each frame must fit
+	 * into the canvas and its colors must be lossless representable by the color type, bit depth and
+	 * palette of the file.
+	 * @param options A {@link PngEncodeOptions} object. Or null for {@link PngEncodeOptions#MAXIMUM}.
+	 * @param progress A {@link Progress} object to update the visual progress indicator. May be null.
+	 * @throws IOException In case of IO problems.
+	 * @throws DataFormatException In case of data format problems.
+	 */
+	public static void append(File file, List<Bitmap32> listFrames, PngEncodeOptions options, Progress<?> progress) throws IOException, DataFormatException
+	{
+		final PngChunkIndex index = PngChunkInputStream.index(file, null);
+		final PngAnimationControl acTL = index.getAnimationControl();
+
+		if (acTL == null || index.getAnimationType() == PngAnimationType.NONE || index.getEndPosition() < 0)
+		{
+			throw new Failure("failure.append.notanimated");
+		}
+
+		final PngHeader header = index.getHeader();
+		final PngTransparency transparency = index.getTransparency();
+		PngPalette palette = index.getPalette();
+
+		if (header.getColorType() == PngColorType.INDEXED && palette != null)
+		{
+			// The palette of a sequence carries the alpha values of the transparency.
+			palette = palette.clone();
+
+			if (transparency != null)
+			{
+				byte[] abtRNS = transparency.getBytes();
+				for (int n = 0, nLen = Math.min(abtRNS.length, palette.length()); n < nLen; n++)
+				{
+					palette.set(n, (abtRNS[n] & 0xff) << 24 | palette.get(n) & 0x00ffffff);
+				}
+			}
+		}
+
+		final Bitmap32Sequence sequence = new Bitmap32Sequence(header, true);
+		sequence.setHeader(header);
+		sequence.setPalette(palette);
+		sequence.setTransparency(transparency);
+
+		final Bitmap32Manager manager = new Bitmap32Manager(sequence);
+		final PngFrameControl fcTLLast = index.getEntry(index.getEntriesCount() - 1).getFrameControl();
+		final List<PngFrameControl> listFrameControls = new ArrayList<>();
+
+		// All frames are checked before the file is touched.
+		for (int n = 0, nFrames = listFrames.size(); n < nFrames; n++)
+		{
+			final Bitmap32 bitmap = listFrames.get(n);
+			PngFrameControl fcTL = bitmap.getFrameControl();
+
+			if (fcTL == null)
+			{
+				fcTL = new PngFrameControl(bitmap.getWidth(), bitmap.getHeight(), 0, 0,
+						fcTLLast != null ? fcTLLast.getDelayNum() : 1, fcTLLast != null ? fcTLLast.getDelayDen() : 10);
+			}
+
+			if (fcTL.getWidth() != bitmap.getWidth() || fcTL.getHeight() != bitmap.getHeight()
+					|| fcTL.getXOffset() < 0 || fcTL.getYOffset() < 0
+					|| fcTL.getXOffset() + fcTL.getWidth() > header.getWidth()
+					|| fcTL.getYOffset() + fcTL.getHeight() > header.getHeight())
+			{
+				throw new Failure("failure.append.framesize", n + 1, header.getWidth(), header.getHeight());
+			}
+
+			if (!isLossless(manager, bitmap))
+			{
+				throw new Failure("failure.append.colors", n + 1);
+			}
+
+			listFrameControls.add(fcTL);
+		}
+
+		index.close();
+
+		if (progress != null)
+		{
+			progress.updateProgress(0, listFrames.size() + 1);
+		}
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			channel.position(index.getEndPosition());
+
+			try
 			{
-				Bitmap32 bitmap = sequence.getFrame(nFrame);
-				PngFrameControl fcTL = bitmap.getFrameControl();
+				// Not closed in case of a failure, so the data still buffered is dropped.
+				PngChunkOutputStream pcos = new PngChunkOutputStream(new PngChannelOutputStream(channel, true));
+				pcos.setEncodeOptions(options);
+				pcos.writeFrames(manager, index.getNextSequence(), listFrames, listFrameControls, progress);
+
+				// The new frames are complete, so the number of frames may follow.
+				writeAt(channel, index.getAnimationControlPosition(),
+						encode_acTL(new PngAnimationControl(acTL.getNumFrames() + listFrames.size(), acTL.getNumPlays())));
 
-				write_fcTL(fcTL);
-				progress.addProgress(1);
+				// Drops whatever followed the former IEND chunk.
+				channel.truncate(channel.position());
 
-				bos.reset();
-				m_manager.deflateBitmap(bos, bitmap);
-				writeDataChunks(bos.toByteArray());
-				progress.addProgress(1);
+				// Also closes the channel.
+				pcos.close();
 			}
+			catch (Throwable t)
+			{
+				try
+				{
+					ByteBuffer bufferIEND = ByteBuffer.allocate(PngConstants.LENGTH_IEND + 12);
+					bufferIEND.putInt(PngConstants.LENGTH_IEND);
+					bufferIEND.putInt(PngConstants.IEND);
+					bufferIEND.putInt(PngConstants.CHECKSUM_IEND);
+					bufferIEND.flip();
+
+					writeAt(channel, index.getAnimationControlPosition(), encode_acTL(acTL));
+					writeAt(channel, index.getEndPosition(), bufferIEND);
+					channel.truncate(index.getEndPosition() + bufferIEND.limit());
+				}
+				catch (IOException e)
+				{
+					t.addSuppressed(e);
+				}
+
+				throw t;
+			}
+		}
+
+		addProgress(progress, 1);
+	}
+
+	/**
+	 * Internally used to encode an acTL chunk to patch a file with.
+	 *
+	 * @param acTL A {@link PngAnimationControl} object.
+	 * @return A {@link ByteBuffer} containing the complete chunk.
+	 * @throws IOException In case of IO problems.
+	 */
+	static ByteBuffer encode_acTL(PngAnimationControl acTL) throws IOException
+	{
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try (PngChunkOutputStream pcos = new PngChunkOutputStream(bos))
+		{
+			pcos.write_acTL(acTL);
+		}
+
+		return ByteBuffer.wrap(bos.toByteArray());
+	}
+
+	/**
+	 * Internally used to write to a position of a file without moving the position of the channel.
+	 *
+	 * @param channel The {@link FileChannel} of the file.
+	 * @param lPos A long containing the position to write to.
+	 * @param buffer A {@link ByteBuffer} containing the data to write.
+	 * @throws IOException In case of IO problems.
+	 */
+	static void writeAt(FileChannel channel, long lPos, ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			lPos += channel.write(buffer, lPos);
+		}
+	}
+
+	/**
+	 * Internally used to write the frames to append with continued sequence numbers, followed by IEND.
+	 *
+	 * @param manager A {@link Bitmap32Manager} object prepared with the header, palette and transparency of the file.
+	 * @param nSequence An int containing the first sequence number.
+	 * @param listFrames A list of {@link Bitmap32} objects.
+	 * @param listFrameControls A list of the {@link PngFrameControl} objects of the frames.
+	 * @param progress A {@link Progress} object to update the visual progress indicator.
+	 * @throws IOException In case of IO problems.
+	 */
+	void writeFrames(Bitmap32Manager manager, int nSequence, List<Bitmap32> listFrames,
+			List<PngFrameControl> listFrameControls, Progress<?> progress) throws IOException
+	{
+		m_manager = manager;
+		m_manager.setEncodeOptions(m_options);
+		m_bIdatWritten = true;
+		m_nFrameSequence = nSequence;
+
+		for (int n = 0, nFrames = listFrames.size(); n < nFrames; n++)
+		{
+			write_fcTL(listFrameControls.get(n));
+			writeDataChunks(listFrames.get(n));
+
+			addProgress(progress, 1);
 		}
 
 		write_IEND();
 
 		flush();
+	}
 
-		progress.addProgress(1);
+	/**
+	 * Internally used to check whether a bitmap survives the encoding by the given manager unchanged.
+	 * Each encoded scanline is decoded again and compared. The color of fully transparent pixels
+	 * does not matter.
+	 *
+	 * @param manager A {@link Bitmap32Manager} object.
+	 * @param bitmap A {@link Bitmap32} object.
+	 * @return A boolean containing true if lossless.
+	 */
+	static boolean isLossless(Bitmap32Manager manager, Bitmap32 bitmap)
+	{
+		final PngHeader header = manager.getHeader();
+		final PngPalette palette = manager.getPalette();
+		final int[] anPixels = bitmap.getPixels();
+
+		if (header.getColorType() == PngColorType.INDEXED)
+		{
+			// Unknown colors would be encoded as arbitrary indices.
+			for (int nARGB : anPixels)
+			{
+				if (palette == null || palette.find(nARGB) < 0)
+				{
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		final int nWidth = bitmap.getWidth();
+		final Bitmap32 bitmapLine = new Bitmap32(nWidth, 1);
+		final int[] anLine = bitmapLine.getPixels();
+
+		final Scanline32 scanline = manager.createScanline(bitmap);
+		final Scanline32 scanlineBack = Scanline32.getScanlineFor(header.getColorType(), header.getBitDepth(), bitmapLine);
+		scanlineBack.setTransparency(manager.getTransparency());
+
+		final byte[] abLine = new byte[scanline.getScanlineStride()];
+
+		for (int nY = 0, nHeight = bitmap.getHeight(); nY < nHeight; nY++)
+		{
+			scanline.read(abLine, 1, 0, 1, nY);
+			scanlineBack.write(abLine, 1, 0, 1, 0);
+
+			for (int nX = 0, nIdx = nY * nWidth; nX < nWidth; nX++, nIdx++)
+			{
+				if (anPixels[nIdx] != anLine[nX] && ((anPixels[nIdx] | anLine[nX]) >>> 24) != 0)
+				{
+					return false;
+				}
+			}
+		}
+
+		return true;
 	}
 
 	/**
@@ -271,21 +845,46 @@ public class PngChunkOutputStream extends DataOutputStream
 	{
 		for (int n = 0, nLen = abData.length; n < nLen; n += PngConstants.BUFFER_32K)
 		{
-			int nSize = Math.min(nLen - n, PngConstants.BUFFER_32K);
-
-			if (!m_bIdatWritten)
-			{
-				write_IDAT(abData, n, nSize);
-			}
-			else
-			{
-				write_fdAT(abData, n, nSize);
-			}
+			writeDataChunk(abData, n, Math.min(nLen - n, PngConstants.BUFFER_32K));
 		}
 
 		m_bIdatWritten = true;
 	}
 
+	/**
+	 * Deflates a bitmap and writes the deflated data in blocks of 32 kBytes
+	 * as IDAT or fdAT chunks while deflating.
+	 *
+	 * @param bitmap A {@link Bitmap32} object to deflate.
+	 * @throws IOException In case of IO problems.
+	 */
+	void writeDataChunks(Bitmap32 bitmap) throws IOException
+	{
+		m_manager.deflateBitmap(m_sink, bitmap);
+		m_sink.finish();
+	}
+
+	/**
+	 * Writes a block of deflated bitmap data as IDAT chunk,
+	 * or as fdAT chunk if the IDAT chunks have been written.
+	 *
+	 * @param ab An array of bytes.
+	 * @param nOffs The offset to start at.
+	 * @param nLen The length to write.
+	 * @throws IOException In case of IO problems.
+	 */
+	void writeDataChunk(byte[] ab, int nOffs, int nLen) throws IOException
+	{
+		if (!m_bIdatWritten)
+		{
+			write_IDAT(ab, nOffs, nLen);
+		}
+		else
+		{
+			write_fdAT(ab, nOffs, nLen);
+		}
+	}
+
 	/**
 	 * Writes the initial header chunk (IHDR).
 	 *
@@ -352,6 +951,47 @@ public class PngChunkOutputStream extends DataOutputStream
 		writeInt((int)m_crc.getValue());
 	}
 
+	/**
+	 * Writes a data chunk to the channel by a single call. The head holds the length,
+	 * the type and possibly a sequence number already put at offset 8.
+	 *
+	 * @param nType An int containing the chunk type.
+	 * @param nChunkLen An int containing the length of the chunk data, including a sequence number.
+	 * @param nHeadLen An int containing the length of the head, 8 or 12.
+	 * @param ab An array of bytes.
+	 * @param nOffs The offset to start at.
+	 * @param nLen The length to write.
+	 * @throws IOException In case of IO problems.
+	 */
+	void writeChunk(int nType, int nChunkLen, int nHeadLen, byte[] ab, int nOffs, int nLen) throws IOException
+	{
+		putInt(m_abHead, 0, nChunkLen);
+		putInt(m_abHead, 4, nType);
+
+		m_crc.reset();
+		m_crc.update(m_abHead, 4, nHeadLen - 4);
+		m_crc.update(ab, nOffs, nLen);
+
+		m_channel.writeChunk(m_abHead, nHeadLen, ab, nOffs, nLen, (int)m_crc.getValue());
+
+		written += nHeadLen + nLen + 4;
+	}
+
+	/**
+	 * Puts an int in big endian order into an array of bytes.
+	 *
+	 * @param ab An array of bytes.
+	 * @param nOffs The offset to put at.
+	 * @param n An int containing the value.
+	 */
+	static void putInt(byte[] ab, int nOffs, int n)
+	{
+		ab[nOffs] = (byte)(n >>> 24);
+		ab[nOffs + 1] = (byte)(n >>> 16);
+		ab[nOffs + 2] = (byte)(n >>> 8);
+		ab[nOffs + 3] = (byte)n;
+	}
+
 	/**
 	 * Writes an image data chunk (IDAT).
 	 *
@@ -364,6 +1004,12 @@ public class PngChunkOutputStream extends DataOutputStream
 	{
 		//System.out.println("write IDAT len=" + nLen);
 
+		if (m_channel != null)
+		{
+			writeChunk(PngConstants.IDAT, nLen, 8, ab, nOffs, nLen);
+			return;
+		}
+
 		m_crc.reset();
 
 		writeInt(nLen);
@@ -384,13 +1030,21 @@ public class PngChunkOutputStream extends DataOutputStream
 	{
 		//System.out.println("write fDAT len=" + nLen);
 
-		m_crc.reset();
+		if (m_channel != null)
+		{
+			putInt(m_abHead, 8, m_nFrameSequence);
+			writeChunk(PngConstants.fdAT, nLen + 4, 12, ab, nOffs, nLen);
+		}
+		else
+		{
+			m_crc.reset();
 
-		writeInt(nLen + 4); // + 4 for the additional sequence number
-		writeInt_crc(PngConstants.fdAT);
-		writeInt_crc(m_nFrameSequence);
-		write_crc(ab, nOffs, nLen);
-		writeInt((int)m_crc.getValue());
+			writeInt(nLen + 4); // + 4 for the additional sequence number
+			writeInt_crc(PngConstants.fdAT);
+			writeInt_crc(m_nFrameSequence);
+			write_crc(ab, nOffs, nLen);
+			writeInt((int)m_crc.getValue());
+		}
 
 		m_nFrameSequence++;
 	}
@@ -0,0 +1,1660 @@
+package de.unlixx.runpng.png.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import de.unlixx.runpng.png.PngConstants;
+
+/**
+ * PngDeflater is a deflate compressor written in Java, as an alternative to the
+ * {@link java.util.zip.Deflater} of the JDK. It writes standard zlib data streams
+ * and offers two modes:
+ * <ul>
+ * <li>{@link PngEncodeOptions.Engine#GREEDY}: A fast greedy parse with a short hash chain and one step
+ * of lazy evaluation. Runs of the preceding byte are preferred, which are common in filtered scanlines.</li>
+ * <li>{@link PngEncodeOptions.Engine#OPTIMAL}: An iterative optimal parse like zopfli. The matches of all
+ * positions are searched once, then the cheapest path through them is found repeatedly with the symbol costs
+ * of the previous parse. The result is split into blocks where this saves space.</li>
+ * </ul>
+ * The data is processed in master blocks, which can be parsed in parallel by a pool.
+ * The matches may reach back into the preceding master block anyway.
+ *
+ * @author H. Unland (https://github.com/HUnland)
+ *
+   <!--
+   Copyright 2021 H. Unland (https://github.com/HUnland)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+   -->
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc1951">https://tools.ietf.org/html/rfc1951</a>
+ * @see <a href="https://github.com/google/zopfli">https://github.com/google/zopfli</a>
+ */
+public class PngDeflater
+{
+	/**
+	 * Size of the input parsed as a unit.
+	 */
+	public static final int MASTER_BLOCK_SIZE = 0x40000; // 256 KB
+
+	static final int WINDOW_SIZE = 0x8000;
+	static final int WINDOW_MASK = WINDOW_SIZE - 1;
+	static final int HASH_BITS = 15;
+	static final int HASH_SIZE = 1 << HASH_BITS;
+	static final int HASH_MASK = HASH_SIZE - 1;
+
+	static final int MIN_MATCH = 3;
+	static final int MAX_MATCH = 258;
+	static final int TOO_FAR = 4096; // Greedy: Matches of minimum length are not worth a larger distance
+	static final int LAZY_LIMIT = 32; // Greedy: Matches of this length are taken without looking ahead
+	static final int MAX_STORED = 0xffff;
+
+	static final int END_OF_BLOCK = 256;
+	static final int LITLEN_CODES = 288;
+	static final int DIST_CODES = 30;
+	static final int CODELENGTH_CODES = 19;
+	static final int MAX_BITS = 15;
+	static final int MAX_CODELENGTH_BITS = 7;
+
+	static final int GREEDY_BLOCK_SYMBOLS = 0x4000;
+	static final int MIN_SPLIT_SYMBOLS = 0x400;
+	static final int MAX_SPLIT_DEPTH = 12;
+
+	static final int[] LENGTH_BASE = { 3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31,
+			35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258 };
+	static final int[] LENGTH_EXTRA = { 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2,
+			3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0 };
+	static final int[] DIST_BASE = { 1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193,
+			257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577 };
+	static final int[] DIST_EXTRA = { 0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6,
+			7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13 };
+	static final int[] CODELENGTH_ORDER = { 16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15 };
+
+	static final int[] LENGTH_CODE = new int[MAX_MATCH + 1];
+	static final int[] DIST_CODE = new int[512];
+
+	static final int[] FIXED_LITLEN_LENGTHS = new int[LITLEN_CODES];
+	static final int[] FIXED_DIST_LENGTHS = new int[DIST_CODES];
+	static final int[] FIXED_LITLEN_CODES = new int[LITLEN_CODES];
+	static final int[] FIXED_DIST_CODES = new int[DIST_CODES];
+
+	static
+	{
+		for (int nCode = 0; nCode < LENGTH_BASE.length; nCode++)
+		{
+			for (int n = 0; n < (1 << LENGTH_EXTRA[nCode]) && LENGTH_BASE[nCode] + n <= MAX_MATCH; n++)
+			{
+				LENGTH_CODE[LENGTH_BASE[nCode] + n] = nCode;
+			}
+		}
+
+		// Like zlib: Distances - 1 below 256 directly, above by their upper bits.
+		int nDist = 0, nCode = 0;
+		for ( ; nCode < 16; nCode++)
+		{
+			for (int n = 0; n < (1 << DIST_EXTRA[nCode]); n++)
+			{
+				DIST_CODE[nDist++] = nCode;
+			}
+		}
+
+		nDist >>= 7;
+		for ( ; nCode < DIST_CODES; nCode++)
+		{
+			for (int n = 0; n < (1 << (DIST_EXTRA[nCode] - 7)); n++)
+			{
+				DIST_CODE[256 + nDist++] = nCode;
+			}
+		}
+
+		for (int n = 0; n < LITLEN_CODES; n++)
+		{
+			FIXED_LITLEN_LENGTHS[n] = n < 144 ? 8 : n < 256 ? 9 : n < 280 ? 7 : 8;
+		}
+
+		Arrays.fill(FIXED_DIST_LENGTHS, 5);
+
+		buildCodes(FIXED_LITLEN_LENGTHS, FIXED_LITLEN_CODES);
+		buildCodes(FIXED_DIST_LENGTHS, FIXED_DIST_CODES);
+	}
+
+	/**
+	 * LzStore contains the parsed symbols of a master block: literals with distance 0
+	 * and matches with their length and distance.
+	 */
+	static class LzStore
+	{
+		final int m_nStart;
+		final int m_nEnd;
+		int[] m_anLitLen = new int[1024];
+		int[] m_anDist = new int[1024];
+		int m_nSize;
+
+		/**
+		 * Constructor for this LzStore.
+		 *
+		 * @param nStart An int containing the start of the input range.
+		 * @param nEnd An int containing the end of the input range (exclusive).
+		 */
+		LzStore(int nStart, int nEnd)
+		{
+			m_nStart = nStart;
+			m_nEnd = nEnd;
+		}
+
+		/**
+		 * Adds a symbol.
+		 *
+		 * @param nLitLen An int containing the literal byte or the match length.
+		 * @param nDist An int containing the match distance or 0 for a literal.
+		 */
+		void add(int nLitLen, int nDist)
+		{
+			if (m_nSize == m_anLitLen.length)
+			{
+				m_anLitLen = Arrays.copyOf(m_anLitLen, m_nSize * 2);
+				m_anDist = Arrays.copyOf(m_anDist, m_nSize * 2);
+			}
+
+			m_anLitLen[m_nSize] = nLitLen;
+			m_anDist[m_nSize++] = nDist;
+		}
+
+		/**
+		 * Calculates the input positions of the symbols.
+		 *
+		 * @return An int array with the input position of each symbol plus the end position.
+		 */
+		int[] calcPositions()
+		{
+			int[] anPos = new int[m_nSize + 1];
+			int nPos = m_nStart;
+
+			for (int n = 0; n < m_nSize; n++)
+			{
+				anPos[n] = nPos;
+				nPos += m_anDist[n] == 0 ? 1 : m_anLitLen[n];
+			}
+
+			anPos[m_nSize] = nPos;
+
+			return anPos;
+		}
+	}
+
+	/**
+	 * BlockStats contains the symbol frequencies of a range of symbols.
+	 */
+	static class BlockStats
+	{
+		final int[] m_anLitLenFreqs = new int[LITLEN_CODES];
+		final int[] m_anDistFreqs = new int[DIST_CODES];
+		long m_lExtraBits;
+		int m_nInputLen;
+
+		/**
+		 * Counts the symbols of a range.
+		 *
+		 * @param store The {@link LzStore} object.
+		 * @param nFrom An int containing the first symbol.
+		 * @param nTo An int containing the end symbol (exclusive).
+		 */
+		void count(LzStore store, int nFrom, int nTo)
+		{
+			Arrays.fill(m_anLitLenFreqs, 0);
+			Arrays.fill(m_anDistFreqs, 0);
+			m_lExtraBits = 0;
+			m_nInputLen = 0;
+
+			for (int n = nFrom; n < nTo; n++)
+			{
+				final int nLitLen = store.m_anLitLen[n],
+						nDist = store.m_anDist[n];
+
+				if (nDist == 0)
+				{
+					m_anLitLenFreqs[nLitLen]++;
+					m_nInputLen++;
+				}
+				else
+				{
+					final int nLenCode = LENGTH_CODE[nLitLen],
+							nDistCode = distCode(nDist);
+
+					m_anLitLenFreqs[257 + nLenCode]++;
+					m_anDistFreqs[nDistCode]++;
+					m_lExtraBits += LENGTH_EXTRA[nLenCode] + DIST_EXTRA[nDistCode];
+					m_nInputLen += nLitLen;
+				}
+			}
+
+			m_anLitLenFreqs[END_OF_BLOCK] = 1;
+		}
+	}
+
+	/**
+	 * DynamicCode contains the Huffman codes of a dynamic block and its encoded header.
+	 */
+	static class DynamicCode
+	{
+		final int[] m_anLitLenLengths = new int[LITLEN_CODES];
+		final int[] m_anDistLengths = new int[DIST_CODES];
+		final int[] m_anCodeLengthLengths = new int[CODELENGTH_CODES];
+		int[] m_anCodeLengthSymbols;
+		int m_nCodeLengthSymbols;
+		int m_nHLit;
+		int m_nHDist;
+		int m_nHCLen;
+		long m_lHeaderBits;
+
+		/**
+		 * Builds the codes for the given frequencies and the encoded header.
+		 *
+		 * @param stats A {@link BlockStats} object.
+		 */
+		void build(BlockStats stats)
+		{
+			buildLengths(stats.m_anLitLenFreqs, MAX_BITS, m_anLitLenLengths);
+			buildLengths(stats.m_anDistFreqs, MAX_BITS, m_anDistLengths);
+
+			m_nHLit = LITLEN_CODES - 2;
+			while (m_nHLit > 257 && m_anLitLenLengths[m_nHLit - 1] == 0)
+			{
+				m_nHLit--;
+			}
+
+			m_nHDist = DIST_CODES;
+			while (m_nHDist > 1 && m_anDistLengths[m_nHDist - 1] == 0)
+			{
+				m_nHDist--;
+			}
+
+			int[] anLengths = new int[m_nHLit + m_nHDist];
+			System.arraycopy(m_anLitLenLengths, 0, anLengths, 0, m_nHLit);
+			System.arraycopy(m_anDistLengths, 0, anLengths, m_nHLit, m_nHDist);
+
+			m_anCodeLengthSymbols = new int[anLengths.length];
+			m_nCodeLengthSymbols = encodeCodeLengths(anLengths, m_anCodeLengthSymbols);
+
+			int[] anFreqs = new int[CODELENGTH_CODES];
+			for (int n = 0; n < m_nCodeLengthSymbols; n++)
+			{
+				anFreqs[m_anCodeLengthSymbols[n] & 0xff]++;
+			}
+
+			buildLengths(anFreqs, MAX_CODELENGTH_BITS, m_anCodeLengthLengths);
+
+			m_nHCLen = CODELENGTH_CODES;
+			while (m_nHCLen > 4 && m_anCodeLengthLengths[CODELENGTH_ORDER[m_nHCLen - 1]] == 0)
+			{
+				m_nHCLen--;
+			}
+
+			m_lHeaderBits = 5 + 5 + 4 + 3 * m_nHCLen;
+			for (int n = 0; n < m_nCodeLengthSymbols; n++)
+			{
+				final int nSymbol = m_anCodeLengthSymbols[n] & 0xff;
+				m_lHeaderBits += m_anCodeLengthLengths[nSymbol] + (nSymbol == 16 ? 2 : nSymbol == 17 ? 3 : nSymbol == 18 ? 7 : 0);
+			}
+		}
+	}
+
+	/**
+	 * MatchFinder finds the matches at a position by hash chains over the preceding 32K.
+	 * The positions have to be inserted in increasing order after searching them.
+	 */
+	static class MatchFinder
+	{
+		final byte[] m_ab;
+		final int m_nEnd;
+		final int[] m_anHead = new int[HASH_SIZE];
+		final int[] m_anPrev = new int[WINDOW_SIZE];
+		int m_nLength;
+		int m_nDist;
+
+		/**
+		 * Constructor for this MatchFinder.
+		 *
+		 * @param ab A byte array containing the input.
+		 * @param nEnd An int containing the end of the input.
+		 */
+		MatchFinder(byte[] ab, int nEnd)
+		{
+			m_ab = ab;
+			m_nEnd = nEnd;
+
+			Arrays.fill(m_anHead, -1);
+		}
+
+		/**
+		 * Calculates the hash of the three bytes at a position.
+		 *
+		 * @param nPos An int containing the position.
+		 * @return An int containing the hash.
+		 */
+		int hash(int nPos)
+		{
+			return (((m_ab[nPos] & 0xff) << 10) ^ ((m_ab[nPos + 1] & 0xff) << 5) ^ (m_ab[nPos + 2] & 0xff)) & HASH_MASK;
+		}
+
+		/**
+		 * Inserts a position into the hash chains.
+		 *
+		 * @param nPos An int containing the position.
+		 */
+		void insert(int nPos)
+		{
+			if (nPos + 2 < m_nEnd)
+			{
+				final int nHash = hash(nPos);
+
+				m_anPrev[nPos & WINDOW_MASK] = m_anHead[nHash];
+				m_anHead[nHash] = nPos;
+			}
+		}
+
+		/**
+		 * Searches the matches at a position, nearest first. Every match longer than the ones before
+		 * is recorded, so the distance of a recorded match applies to all lengths up to its length.
+		 * The longest match is kept in m_nLength and m_nDist.
+		 *
+		 * @param nPos An int containing the position.
+		 * @param nMaxLen An int containing the maximum length, at least MIN_MATCH.
+		 * @param nMaxChain An int containing the maximum number of chain entries to visit.
+		 * @param anLens An int array to record the lengths. Or null.
+		 * @param anDists An int array to record the distances. Or null.
+		 * @param nOffs An int containing the offset to record at.
+		 * @return An int containing the number of matches recorded.
+		 */
+		int find(int nPos, int nMaxLen, int nMaxChain, int[] anLens, int[] anDists, int nOffs)
+		{
+			final byte[] ab = m_ab;
+			final int nLimit = nPos - WINDOW_SIZE;
+
+			int nBest = MIN_MATCH - 1,
+				nCount = 0,
+				nChain = nMaxChain,
+				nCand = m_anHead[hash(nPos)];
+
+			m_nLength = 0;
+			m_nDist = 0;
+
+			while (nCand >= 0 && nCand >= nLimit && nChain-- > 0)
+			{
+				if (ab[nCand + nBest] == ab[nPos + nBest])
+				{
+					int nLen = 0;
+					while (nLen < nMaxLen && ab[nCand + nLen] == ab[nPos + nLen])
+					{
+						nLen++;
+					}
+
+					if (nLen > nBest)
+					{
+						nBest = nLen;
+						m_nLength = nLen;
+						m_nDist = nPos - nCand;
+
+						if (anLens != null)
+						{
+							anLens[nOffs + nCount] = nLen;
+							anDists[nOffs + nCount] = m_nDist;
+						}
+
+						nCount++;
+
+						if (nLen >= nMaxLen)
+						{
+							break;
+						}
+					}
+				}
+
+				final int nNext = m_anPrev[nCand & WINDOW_MASK];
+				if (nNext >= nCand)
+				{
+					break;
+				}
+
+				nCand = nNext;
+			}
+
+			return nCount;
+		}
+	}
+
+	/**
+	 * BitWriter writes bits in deflate order, the least significant bit first.
+	 */
+	static class BitWriter
+	{
+		final OutputStream m_os;
+		final byte[] m_abBuffer = new byte[PngConstants.BUFFER_32K];
+		int m_nFill;
+		long m_lBits;
+		int m_nBits;
+
+		/**
+		 * Constructor for this BitWriter.
+		 *
+		 * @param os The {@link OutputStream} to write to.
+		 */
+		BitWriter(OutputStream os)
+		{
+			m_os = os;
+		}
+
+		/**
+		 * Writes bits.
+		 *
+		 * @param nValue An int containing the bits in its lower part.
+		 * @param nCount An int containing the number of bits, up to 24.
+		 * @throws IOException In case of IO problems.
+		 */
+		void writeBits(int nValue, int nCount) throws IOException
+		{
+			m_lBits |= (nValue & ((1L << nCount) - 1)) << m_nBits;
+			m_nBits += nCount;
+
+			while (m_nBits >= 8)
+			{
+				put((int)m_lBits);
+				m_lBits >>>= 8;
+				m_nBits -= 8;
+			}
+		}
+
+		/**
+		 * Fills up the current byte with zero bits.
+		 *
+		 * @throws IOException In case of IO problems.
+		 */
+		void alignToByte() throws IOException
+		{
+			if (m_nBits > 0)
+			{
+				put((int)m_lBits);
+				m_lBits = 0;
+				m_nBits = 0;
+			}
+		}
+
+		/**
+		 * Writes bytes, which requires byte alignment.
+		 *
+		 * @param ab A byte array.
+		 * @param nOffs An int containing the offset.
+		 * @param nLen An int containing the length.
+		 * @throws IOException In case of IO problems.
+		 */
+		void writeBytes(byte[] ab, int nOffs, int nLen) throws IOException
+		{
+			for (int n = 0; n < nLen; n++)
+			{
+				put(ab[nOffs + n]);
+			}
+		}
+
+		/**
+		 * Puts a byte into the buffer.
+		 *
+		 * @param nByte An int containing the byte in its lower 8 bits.
+		 * @throws IOException In case of IO problems.
+		 */
+		void put(int nByte) throws IOException
+		{
+			if (m_nFill == m_abBuffer.length)
+			{
+				m_os.write(m_abBuffer, 0, m_nFill);
+				m_nFill = 0;
+			}
+
+			m_abBuffer[m_nFill++] = (byte)nByte;
+		}
+
+		/**
+		 * Aligns to a byte and writes the buffer.
+		 *
+		 * @throws IOException In case of IO problems.
+		 */
+		void flush() throws IOException
+		{
+			alignToByte();
+
+			m_os.write(m_abBuffer, 0, m_nFill);
+			m_nFill = 0;
+		}
+	}
+
+	/**
+	 * ParseTask parses a master block in a pool thread.
+	 */
+	class ParseTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		final byte[] m_ab;
+		final int m_nStart;
+		final int m_nEnd;
+		final int m_nLen;
+		LzStore m_store;
+
+		/**
+		 * Constructor for this ParseTask.
+		 *
+		 * @param ab A byte array containing the input.
+		 * @param nStart An int containing the start of the master block.
+		 * @param nEnd An int containing the end of the master block (exclusive).
+		 * @param nLen An int containing the length of the whole input.
+		 */
+		ParseTask(byte[] ab, int nStart, int nEnd, int nLen)
+		{
+			m_ab = ab;
+			m_nStart = nStart;
+			m_nEnd = nEnd;
+			m_nLen = nLen;
+		}
+
+		@Override
+		protected void compute()
+		{
+			m_store = parse(m_ab, m_nStart, m_nEnd, m_nLen);
+		}
+	}
+
+	final PngEncodeOptions.Engine m_engine;
+	final boolean m_bLiteralsOnly;
+	final int m_nMaxChain;
+	final int m_nIterations;
+	final int m_nZlibHeader;
+
+	ForkJoinPool m_pool;
+
+	/**
+	 * Constructor for this PngDeflater.
+	 *
+	 * @param options The {@link PngEncodeOptions}. The engine has to be GREEDY or OPTIMAL.
+	 * Its preset determines the effort, the strategy HUFFMAN_ONLY is supported.
+	 */
+	public PngDeflater(PngEncodeOptions options)
+	{
+		m_engine = options.getEngine() == PngEncodeOptions.Engine.GREEDY ? PngEncodeOptions.Engine.GREEDY : PngEncodeOptions.Engine.OPTIMAL;
+		m_bLiteralsOnly = options.getStrategy() == PngEncodeOptions.Strategy.HUFFMAN_ONLY;
+		m_nZlibHeader = options.getZlibHeader();
+
+		switch (options.getPreset())
+		{
+		case FAST:
+			m_nMaxChain = m_engine == PngEncodeOptions.Engine.GREEDY ? 8 : 128;
+			m_nIterations = 3;
+			break;
+
+		case BALANCED:
+			m_nMaxChain = m_engine == PngEncodeOptions.Engine.GREEDY ? 32 : 512;
+			m_nIterations = 8;
+			break;
+
+		default:
+			m_nMaxChain = m_engine == PngEncodeOptions.Engine.GREEDY ? 128 : 2048;
+			m_nIterations = 15;
+			break;
+		}
+	}
+
+	/**
+	 * Sets a pool to parse the master blocks in parallel.
+	 *
+	 * @param pool A {@link ForkJoinPool} object. Or null to parse in the calling thread.
+	 */
+	public void setPool(ForkJoinPool pool)
+	{
+		m_pool = pool;
+	}
+
+	/**
+	 * Deflates the input to a zlib data stream.
+	 *
+	 * @param ab A byte array containing the input.
+	 * @param nLen An int containing the length of the input.
+	 * @param os The {@link OutputStream} to write to.
+	 * @throws IOException In case of IO problems.
+	 */
+	public void deflate(byte[] ab, int nLen, OutputStream os) throws IOException
+	{
+		BitWriter bw = new BitWriter(os);
+
+		bw.writeBits(m_nZlibHeader >>> 8, 8);
+		bw.writeBits(m_nZlibHeader & 0xff, 8);
+
+		final int nBlocks = (nLen + MASTER_BLOCK_SIZE - 1) / MASTER_BLOCK_SIZE;
+
+		if (nBlocks == 0)
+		{
+			// Final fixed block with the end of block code only
+			bw.writeBits(1, 1);
+			bw.writeBits(1, 2);
+			bw.writeBits(FIXED_LITLEN_CODES[END_OF_BLOCK], FIXED_LITLEN_LENGTHS[END_OF_BLOCK]);
+		}
+		else if (m_pool != null && nBlocks > 1)
+		{
+			// The number of master blocks parsed ahead is limited to keep the memory usage bounded.
+			final int nWindow = m_pool.getParallelism() + 1;
+			final ArrayDeque<ParseTask> deque = new ArrayDeque<>();
+
+			try
+			{
+				for (int n = 0, nNext = 0; n < nBlocks; n++)
+				{
+					while (nNext < nBlocks && deque.size() < nWindow)
+					{
+						ParseTask task = new ParseTask(ab, nNext * MASTER_BLOCK_SIZE, Math.min(nLen, (nNext + 1) * MASTER_BLOCK_SIZE), nLen);
+						m_pool.execute(task);
+						deque.add(task);
+						nNext++;
+					}
+
+					ParseTask task = deque.poll();
+					task.join();
+
+					writeStore(bw, ab, task.m_store, n == nBlocks - 1);
+				}
+			}
+			finally
+			{
+				for (ParseTask task : deque)
+				{
+					task.cancel(false);
+				}
+			}
+		}
+		else
+		{
+			for (int n = 0; n < nBlocks; n++)
+			{
+				final int nStart = n * MASTER_BLOCK_SIZE;
+
+				writeStore(bw, ab, parse(ab, nStart, Math.min(nLen, nStart + MASTER_BLOCK_SIZE), nLen), n == nBlocks - 1);
+			}
+		}
+
+		bw.alignToByte();
+
+		final long lAdler = adler32(1, ab, 0, nLen);
+		bw.writeBits((int)(lAdler >>> 24), 8);
+		bw.writeBits((int)(lAdler >>> 16), 8);
+		bw.writeBits((int)(lAdler >>> 8), 8);
+		bw.writeBits((int)lAdler, 8);
+
+		bw.flush();
+	}
+
+	/**
+	 * Parses a master block according to the engine.
+	 *
+	 * @param ab A byte array containing the input.
+	 * @param nStart An int containing the start of the master block.
+	 * @param nEnd An int containing the end of the master block (exclusive).
+	 * @param nLen An int containing the length of the whole input.
+	 * @return An {@link LzStore} object.
+	 */
+	LzStore parse(byte[] ab, int nStart, int nEnd, int nLen)
+	{
+		MatchFinder finder = new MatchFinder(ab, nLen);
+
+		// The matches may reach back into the preceding data.
+		for (int nPos = Math.max(0, nStart - WINDOW_SIZE); nPos < nStart; nPos++)
+		{
+			finder.insert(nPos);
+		}
+
+		return m_engine == PngEncodeOptions.Engine.GREEDY ? parseGreedy(ab, nStart, nEnd, finder) : parseOptimal(ab, nStart, nEnd, finder);
+	}
+
+	/**
+	 * Parses greedily with one step of lazy evaluation like zlib: The longest match at a position
+	 * is taken, unless the next position has a longer one.
+	 *
+	 * @param ab A byte array containing the input.
+	 * @param nStart An int containing the start of the master block.
+	 * @param nEnd An int containing the end of the master block (exclusive).
+	 * @param finder A {@link MatchFinder} object prepared for the start.
+	 * @return An {@link LzStore} object.
+	 */
+	LzStore parseGreedy(byte[] ab, int nStart, int nEnd, MatchFinder finder)
+	{
+		LzStore store = new LzStore(nStart, nEnd);
+
+		int nPos = nStart,
+			nMatch = findMatch(ab, nPos, nEnd, finder);
+
+		while (nPos < nEnd)
+		{
+			final int nLen = nMatch & 0xffff;
+
+			if (nLen >= MIN_MATCH)
+			{
+				finder.insert(nPos);
+
+				final int nNext = nLen < LAZY_LIMIT ? findMatch(ab, nPos + 1, nEnd, finder) : 0;
+				if ((nNext & 0xffff) > nLen)
+				{
+					store.add(ab[nPos++] & 0xff, 0);
+					nMatch = nNext;
+					continue;
+				}
+
+				store.add(nLen, nMatch >>> 16);
+
+				for (int n = 1; n < nLen; n++)
+				{
+					finder.insert(nPos + n);
+				}
+
+				nPos += nLen;
+			}
+			else
+			{
+				store.add(ab[nPos] & 0xff, 0);
+				finder.insert(nPos++);
+			}
+
+			nMatch = findMatch(ab, nPos, nEnd, finder);
+		}
+
+		return store;
+	}
+
+	/**
+	 * Finds the longest match at a position for the greedy parse. A run of the preceding
+	 * byte is preferred if it is at most one byte shorter, because of its cheap distance.
+	 *
+	 * @param ab A byte array containing the input.
+	 * @param nPos An int containing the position.
+	 * @param nEnd An int containing the end of the master block (exclusive).
+	 * @param finder The {@link MatchFinder} object.
+	 * @return An int containing the length in the lower 16 bits and the distance in the upper ones.
+	 * The length is 0 if there is no match.
+	 */
+	int findMatch(byte[] ab, int nPos, int nEnd, MatchFinder finder)
+	{
+		final int nMaxLen = Math.min(MAX_MATCH, nEnd - nPos);
+
+		if (m_bLiteralsOnly || nMaxLen < MIN_MATCH)
+		{
+			return 0;
+		}
+
+		finder.find(nPos, nMaxLen, m_nMaxChain, null, null, 0);
+
+		int nLen = finder.m_nLength,
+			nDist = finder.m_nDist;
+
+		if (nLen == MIN_MATCH && nDist > TOO_FAR)
+		{
+			nLen = 0;
+		}
+
+		if (nPos > 0 && nDist != 1)
+		{
+			final byte bPrev = ab[nPos - 1];
+
+			int nRun = 0;
+			while (nRun < nMaxLen && ab[nPos + nRun] == bPrev)
+			{
+				nRun++;
+			}
+
+			if (nRun >= MIN_MATCH && nRun + 1 >= nLen)
+			{
+				nLen = nRun;
+				nDist = 1;
+			}
+		}
+
+		return nLen >= MIN_MATCH ? nLen | (nDist << 16) : 0;
+	}
+
+	/**
+	 * Parses optimally for a cost model, iteratively: The matches of all positions are searched once.
+	 * Each iteration takes the cheapest path through them with the symbol costs of the previous parse.
+	 * The first cost model comes from a greedy parse.
+	 *
+	 * @param ab A byte array containing the input.
+	 * @param nStart An int containing the start of the master block.
+	 * @param nEnd An int containing the end of the master block (exclusive).
+	 * @param finder A {@link MatchFinder} object prepared for the start.
+	 * @return An {@link LzStore} object.
+	 */
+	LzStore parseOptimal(byte[] ab, int nStart, int nEnd, MatchFinder finder)
+	{
+		final int nCount = nEnd - nStart;
+
+		// Match cache: Lengths and distances recorded per position
+		final int[] anOffs = new int[nCount + 1];
+		int[] anLens = new int[Math.max(1024, nCount)],
+			anDists = new int[anLens.length];
+		int nCached = 0;
+
+		if (!m_bLiteralsOnly)
+		{
+			for (int n = 0; n < nCount; n++)
+			{
+				final int nPos = nStart + n,
+						nMaxLen = Math.min(MAX_MATCH, nEnd - nPos);
+
+				anOffs[n] = nCached;
+
+				if (nMaxLen >= MIN_MATCH)
+				{
+					if (nCached + MAX_MATCH > anLens.length)
+					{
+						anLens = Arrays.copyOf(anLens, anLens.length * 2);
+						anDists = Arrays.copyOf(anDists, anDists.length * 2);
+					}
+
+					nCached += finder.find(nPos, nMaxLen, m_nMaxChain, anLens, anDists, nCached);
+				}
+
+				finder.insert(nPos);
+			}
+		}
+
+		anOffs[nCount] = nCached;
+
+		// Runs of equal bytes
+		final int[] anSame = new int[nCount + 1];
+		for (int n = nCount - 1; n >= 0; n--)
+		{
+			anSame[n] = (n + 1 < nCount && ab[nStart + n] == ab[nStart + n + 1]) ? anSame[n + 1] + 1 : 1;
+		}
+
+		// Greedy parse from the cache for the first cost model
+		LzStore storeBest = new LzStore(nStart, nEnd);
+		for (int n = 0; n < nCount; )
+		{
+			final int nLast = anOffs[n + 1] - 1;
+
+			if (nLast >= anOffs[n])
+			{
+				storeBest.add(anLens[nLast], anDists[nLast]);
+				n += anLens[nLast];
+			}
+			else
+			{
+				storeBest.add(ab[nStart + n] & 0xff, 0);
+				n++;
+			}
+		}
+
+		final BlockStats stats = new BlockStats();
+		final DynamicCode code = new DynamicCode();
+
+		stats.count(storeBest, 0, storeBest.m_nSize);
+		long lBitsBest = calcDynamicBits(stats, code);
+
+		double[] adLitLenStats = toDoubles(stats.m_anLitLenFreqs),
+			adDistStats = toDoubles(stats.m_anDistFreqs);
+
+		final float[] afLitLenCosts = new float[LITLEN_CODES],
+				afDistCosts = new float[DIST_CODES],
+				afLenCosts = new float[MAX_MATCH + 1],
+				afCosts = new float[nCount + 1];
+		final int[] anLenTo = new int[nCount + 1],
+				anDistTo = new int[nCount + 1];
+
+		int nNoGain = 0;
+
+		for (int nIter = 0; nIter < m_nIterations && nNoGain < 3; nIter++)
+		{
+			calcCosts(adLitLenStats, afLitLenCosts);
+			calcCosts(adDistStats, afDistCosts);
+
+			for (int nLen = MIN_MATCH; nLen <= MAX_MATCH; nLen++)
+			{
+				final int nLenCode = LENGTH_CODE[nLen];
+				afLenCosts[nLen] = afLitLenCosts[257 + nLenCode] + LENGTH_EXTRA[nLenCode];
+			}
+
+			// Shortest path
+			Arrays.fill(afCosts, Float.MAX_VALUE);
+			afCosts[0] = 0;
+
+			int n = 0;
+			while (n < nCount)
+			{
+				int nPos = nStart + n;
+
+				// Long runs are taken as matches of maximum length at once, like zopfli does.
+				if (nPos > 0 && ab[nPos - 1] == ab[nPos] && anSame[n] > MAX_MATCH * 2 && anOffs[n + 1] > anOffs[n])
+				{
+					final float fCost = afLenCosts[MAX_MATCH] + afDistCosts[0];
+
+					while (anSame[n] > MAX_MATCH * 2)
+					{
+						afCosts[n + MAX_MATCH] = afCosts[n] + fCost;
+						anLenTo[n + MAX_MATCH] = MAX_MATCH;
+						anDistTo[n + MAX_MATCH] = 1;
+						n += MAX_MATCH;
+					}
+
+					nPos = nStart + n;
+				}
+
+				final float fCost = afCosts[n],
+						fLiteral = fCost + afLitLenCosts[ab[nPos] & 0xff];
+
+				if (fLiteral < afCosts[n + 1])
+				{
+					afCosts[n + 1] = fLiteral;
+					anLenTo[n + 1] = 1;
+				}
+
+				int nLen = MIN_MATCH;
+				for (int m = anOffs[n], mEnd = anOffs[n + 1]; m < mEnd; m++)
+				{
+					final int nDist = anDists[m],
+							nDistCode = distCode(nDist),
+							nMaxLen = anLens[m];
+					final float fDist = fCost + afDistCosts[nDistCode] + DIST_EXTRA[nDistCode];
+
+					for ( ; nLen <= nMaxLen; nLen++)
+					{
+						final float fMatch = fDist + afLenCosts[nLen];
+						if (fMatch < afCosts[n + nLen])
+						{
+							afCosts[n + nLen] = fMatch;
+							anLenTo[n + nLen] = nLen;
+							anDistTo[n + nLen] = nDist;
+						}
+					}
+				}
+
+				n++;
+			}
+
+			// Trace back
+			int nSteps = 0;
+			for (int m = nCount; m > 0; m -= anLenTo[m])
+			{
+				nSteps++;
+			}
+
+			final int[] anStepEnds = new int[nSteps];
+			for (int m = nCount, k = nSteps; m > 0; m -= anLenTo[m])
+			{
+				anStepEnds[--k] = m;
+			}
+
+			LzStore store = new LzStore(nStart, nEnd);
+			for (int k = 0; k < nSteps; k++)
+			{
+				final int m = anStepEnds[k],
+						nLen2 = anLenTo[m];
+
+				if (nLen2 == 1)
+				{
+					store.add(ab[nStart + m - 1] & 0xff, 0);
+				}
+				else
+				{
+					store.add(nLen2, anDistTo[m]);
+				}
+			}
+
+			stats.count(store, 0, store.m_nSize);
+			final long lBits = calcDynamicBits(stats, code);
+
+			if (lBits < lBitsBest)
+			{
+				lBitsBest = lBits;
+				storeBest = store;
+				nNoGain = 0;
+			}
+			else
+			{
+				nNoGain++;
+			}
+
+			// The next cost model is based on this parse, weighed with the previous one.
+			double[] adLitLen = toDoubles(stats.m_anLitLenFreqs),
+				adDist = toDoubles(stats.m_anDistFreqs);
+
+			if (nIter > 0)
+			{
+				for (int m = 0; m < LITLEN_CODES; m++)
+				{
+					adLitLen[m] += adLitLenStats[m] * .5;
+				}
+
+				for (int m = 0; m < DIST_CODES; m++)
+				{
+					adDist[m] += adDistStats[m] * .5;
+				}
+			}
+
+			adLitLenStats = adLitLen;
+			adDistStats = adDist;
+		}
+
+		return storeBest;
+	}
+
+	/**
+	 * Writes the symbols of a master block as one or more deflate blocks. The optimal
+	 * parse is split where this saves space, the greedy parse in fixed portions.
+	 *
+	 * @param bw The {@link BitWriter} to write to.
+	 * @param ab A byte array containing the input.
+	 * @param store The {@link LzStore} object.
+	 * @param bLast A boolean containing true if it is the last master block.
+	 * @throws IOException In case of IO problems.
+	 */
+	void writeStore(BitWriter bw, byte[] ab, LzStore store, boolean bLast) throws IOException
+	{
+		final int[] anPos = store.calcPositions();
+		final BlockStats stats = new BlockStats();
+		final DynamicCode code = new DynamicCode();
+
+		List<Integer> listSplits = new ArrayList<>();
+		listSplits.add(0);
+
+		if (m_engine == PngEncodeOptions.Engine.GREEDY)
+		{
+			for (int n = GREEDY_BLOCK_SYMBOLS; n < store.m_nSize; n += GREEDY_BLOCK_SYMBOLS)
+			{
+				listSplits.add(n);
+			}
+		}
+		else
+		{
+			split(store, 0, store.m_nSize, listSplits, stats, code, 0);
+		}
+
+		listSplits.add(store.m_nSize);
+
+		for (int n = 0, nBlocks = listSplits.size() - 1; n < nBlocks; n++)
+		{
+			final int nFrom = listSplits.get(n),
+					nTo = listSplits.get(n + 1);
+
+			writeBlock(bw, ab, store, nFrom, nTo, anPos[nFrom], anPos[nTo], bLast && n == nBlocks - 1, stats, code);
+		}
+	}
+
+	/**
+	 * Searches recursively for split points of a range of symbols, which save space.
+	 * The split points are added in increasing order.
+	 *
+	 * @param store The {@link LzStore} object.
+	 * @param nFrom An int containing the first symbol.
+	 * @param nTo An int containing the end symbol (exclusive).
+	 * @param listSplits A list to add the split points to.
+	 * @param stats A {@link BlockStats} object to reuse.
+	 * @param code A {@link DynamicCode} object to reuse.
+	 * @param nDepth An int containing the depth of the recursion.
+	 */
+	void split(LzStore store, int nFrom, int nTo, List<Integer> listSplits, BlockStats stats, DynamicCode code, int nDepth)
+	{
+		if (nTo - nFrom < MIN_SPLIT_SYMBOLS * 2 || nDepth > MAX_SPLIT_DEPTH)
+		{
+			return;
+		}
+
+		final long lBitsWhole = calcBestBits(store, nFrom, nTo, stats, code);
+
+		long lBitsBest = Long.MAX_VALUE;
+		int nSplitBest = -1;
+
+		for (int n = 1; n < 10; n++)
+		{
+			final int nSplit = nFrom + (int)((long)(nTo - nFrom) * n / 10);
+
+			if (nSplit - nFrom >= MIN_SPLIT_SYMBOLS && nTo - nSplit >= MIN_SPLIT_SYMBOLS)
+			{
+				final long lBits = calcBestBits(store, nFrom, nSplit, stats, code) + calcBestBits(store, nSplit, nTo, stats, code);
+				if (lBits < lBitsBest)
+				{
+					lBitsBest = lBits;
+					nSplitBest = nSplit;
+				}
+			}
+		}
+
+		if (nSplitBest >= 0 && lBitsBest + 64 < lBitsWhole)
+		{
+			split(store, nFrom, nSplitBest, listSplits, stats, code, nDepth + 1);
+			listSplits.add(nSplitBest);
+			split(store, nSplitBest, nTo, listSplits, stats, code, nDepth + 1);
+		}
+	}
+
+	/**
+	 * Calculates the size of a range of symbols as the cheapest block type.
+	 *
+	 * @param store The {@link LzStore} object.
+	 * @param nFrom An int containing the first symbol.
+	 * @param nTo An int containing the end symbol (exclusive).
+	 * @param stats A {@link BlockStats} object to reuse.
+	 * @param code A {@link DynamicCode} object to reuse.
+	 * @return A long containing the size in bits.
+	 */
+	static long calcBestBits(LzStore store, int nFrom, int nTo, BlockStats stats, DynamicCode code)
+	{
+		stats.count(store, nFrom, nTo);
+
+		return Math.min(calcDynamicBits(stats, code), Math.min(calcFixedBits(stats), calcStoredBits(stats)));
+	}
+
+	/**
+	 * Calculates the size of a dynamic block and builds its code.
+	 *
+	 * @param stats A {@link BlockStats} object counted.
+	 * @param code A {@link DynamicCode} object to build.
+	 * @return A long containing the size in bits.
+	 */
+	static long calcDynamicBits(BlockStats stats, DynamicCode code)
+	{
+		code.build(stats);
+
+		long lBits = 3 + code.m_lHeaderBits + stats.m_lExtraBits;
+
+		for (int n = 0; n < LITLEN_CODES; n++)
+		{
+			lBits += (long)stats.m_anLitLenFreqs[n] * code.m_anLitLenLengths[n];
+		}
+
+		for (int n = 0; n < DIST_CODES; n++)
+		{
+			lBits += (long)stats.m_anDistFreqs[n] * code.m_anDistLengths[n];
+		}
+
+		return lBits;
+	}
+
+	/**
+	 * Calculates the size of a fixed block.
+	 *
+	 * @param stats A {@link BlockStats} object counted.
+	 * @return A long containing the size in bits.
+	 */
+	static long calcFixedBits(BlockStats stats)
+	{
+		long lBits = 3 + stats.m_lExtraBits;
+
+		for (int n = 0; n < LITLEN_CODES; n++)
+		{
+			lBits += (long)stats.m_anLitLenFreqs[n] * FIXED_LITLEN_LENGTHS[n];
+		}
+
+		for (int n = 0; n < DIST_CODES; n++)
+		{
+			lBits += (long)stats.m_anDistFreqs[n] * FIXED_DIST_LENGTHS[n];
+		}
+
+		return lBits;
+	}
+
+	/**
+	 * Calculates the size of stored blocks, including the worst case alignment.
+	 *
+	 * @param stats A {@link BlockStats} object counted.
+	 * @return A long containing the size in bits.
+	 */
+	static long calcStoredBits(BlockStats stats)
+	{
+		final long lBlocks = Math.max(1, (stats.m_nInputLen + MAX_STORED - 1) / MAX_STORED);
+
+		return lBlocks * (3 + 7 + 32) + 8L * stats.m_nInputLen;
+	}
+
+	/**
+	 * Writes a range of symbols as a single deflate block of the cheapest type.
+	 *
+	 * @param bw The {@link BitWriter} to write to.
+	 * @param ab A byte array containing the input.
+	 * @param store The {@link LzStore} object.
+	 * @param nFrom An int containing the first symbol.
+	 * @param nTo An int containing the end symbol (exclusive).
+	 * @param nInStart An int containing the input position of the first symbol.
+	 * @param nInEnd An int containing the input position of the end symbol.
+	 * @param bFinal A boolean containing true if it is the final block.
+	 * @param stats A {@link BlockStats} object to reuse.
+	 * @param code A {@link DynamicCode} object to reuse.
+	 * @throws IOException In case of IO problems.
+	 */
+	static void writeBlock(BitWriter bw, byte[] ab, LzStore store, int nFrom, int nTo, int nInStart, int nInEnd,
+			boolean bFinal, BlockStats stats, DynamicCode code) throws IOException
+	{
+		stats.count(store, nFrom, nTo);
+
+		final long lStored = calcStoredBits(stats),
+				lFixed = calcFixedBits(stats),
+				lDynamic = calcDynamicBits(stats, code);
+
+		if (lStored <= lFixed && lStored <= lDynamic)
+		{
+			int nPos = nInStart;
+			do
+			{
+				final int nLen = Math.min(MAX_STORED, nInEnd - nPos);
+
+				bw.writeBits(bFinal && nPos + nLen == nInEnd ? 1 : 0, 1);
+				bw.writeBits(0, 2);
+				bw.alignToByte();
+				bw.writeBits(nLen, 16);
+				bw.writeBits(~nLen, 16);
+				bw.writeBytes(ab, nPos, nLen);
+
+				nPos += nLen;
+			}
+			while (nPos < nInEnd);
+		}
+		else if (lFixed <= lDynamic)
+		{
+			bw.writeBits(bFinal ? 1 : 0, 1);
+			bw.writeBits(1, 2);
+
+			writeSymbols(bw, store, nFrom, nTo, FIXED_LITLEN_LENGTHS, FIXED_LITLEN_CODES, FIXED_DIST_LENGTHS, FIXED_DIST_CODES);
+		}
+		else
+		{
+			bw.writeBits(bFinal ? 1 : 0, 1);
+			bw.writeBits(2, 2);
+
+			bw.writeBits(code.m_nHLit - 257, 5);
+			bw.writeBits(code.m_nHDist - 1, 5);
+			bw.writeBits(code.m_nHCLen - 4, 4);
+
+			for (int n = 0; n < code.m_nHCLen; n++)
+			{
+				bw.writeBits(code.m_anCodeLengthLengths[CODELENGTH_ORDER[n]], 3);
+			}
+
+			final int[] anCodeLengthCodes = new int[CODELENGTH_CODES];
+			buildCodes(code.m_anCodeLengthLengths, anCodeLengthCodes);
+
+			for (int n = 0; n < code.m_nCodeLengthSymbols; n++)
+			{
+				final int nSymbol = code.m_anCodeLengthSymbols[n] & 0xff,
+						nExtra = code.m_anCodeLengthSymbols[n] >>> 8;
+
+				bw.writeBits(anCodeLengthCodes[nSymbol], code.m_anCodeLengthLengths[nSymbol]);
+
+				switch (nSymbol)
+				{
+				case 16: bw.writeBits(nExtra, 2); break;
+				case 17: bw.writeBits(nExtra, 3); break;
+				case 18: bw.writeBits(nExtra, 7); break;
+				}
+			}
+
+			final int[] anLitLenCodes = new int[LITLEN_CODES],
+					anDistCodes = new int[DIST_CODES];
+
+			buildCodes(code.m_anLitLenLengths, anLitLenCodes);
+			buildCodes(code.m_anDistLengths, anDistCodes);
+
+			writeSymbols(bw, store, nFrom, nTo, code.m_anLitLenLengths, anLitLenCodes, code.m_anDistLengths, anDistCodes);
+		}
+	}
+
+	/**
+	 * Writes a range of symbols with the given codes, followed by the end of block code.
+	 *
+	 * @param bw The {@link BitWriter} to write to.
+	 * @param store The {@link LzStore} object.
+	 * @param nFrom An int containing the first symbol.
+	 * @param nTo An int containing the end symbol (exclusive).
+	 * @param anLitLenLengths An int array with the literal/length code lengths.
+	 * @param anLitLenCodes An int array with the literal/length codes, bit reversed.
+	 * @param anDistLengths An int array with the distance code lengths.
+	 * @param anDistCodes An int array with the distance codes, bit reversed.
+	 * @throws IOException In case of IO problems.
+	 */
+	static void writeSymbols(BitWriter bw, LzStore store, int nFrom, int nTo,
+			int[] anLitLenLengths, int[] anLitLenCodes, int[] anDistLengths, int[] anDistCodes) throws IOException
+	{
+		for (int n = nFrom; n < nTo; n++)
+		{
+			final int nLitLen = store.m_anLitLen[n],
+					nDist = store.m_anDist[n];
+
+			if (nDist == 0)
+			{
+				bw.writeBits(anLitLenCodes[nLitLen], anLitLenLengths[nLitLen]);
+			}
+			else
+			{
+				final int nLenCode = LENGTH_CODE[nLitLen],
+						nDistCode = distCode(nDist);
+
+				bw.writeBits(anLitLenCodes[257 + nLenCode], anLitLenLengths[257 + nLenCode]);
+				bw.writeBits(nLitLen - LENGTH_BASE[nLenCode], LENGTH_EXTRA[nLenCode]);
+				bw.writeBits(anDistCodes[nDistCode], anDistLengths[nDistCode]);
+				bw.writeBits(nDist - DIST_BASE[nDistCode], DIST_EXTRA[nDistCode]);
+			}
+		}
+
+		bw.writeBits(anLitLenCodes[END_OF_BLOCK], anLitLenLengths[END_OF_BLOCK]);
+	}
+
+	/**
+	 * Gets the distance code of a distance.
+	 *
+	 * @param nDist An int containing the distance 1 - 32768.
+	 * @return An int containing the distance code 0 - 29.
+	 */
+	static int distCode(int nDist)
+	{
+		final int n = nDist - 1;
+
+		return n < 256 ? DIST_CODE[n] : DIST_CODE[256 + (n >>> 7)];
+	}
+
+	/**
+	 * Builds length limited Huffman code lengths. The code is always complete,
+	 * so less than two symbols in use get company.
+	 *
+	 * @param anFreqs An int array with the symbol frequencies.
+	 * @param nMaxBits An int containing the maximum code length.
+	 * @param anLengths An int array to receive the code lengths.
+	 */
+	static void buildLengths(int[] anFreqs, int nMaxBits, int[] anLengths)
+	{
+		final int nSymbols = anFreqs.length;
+
+		Arrays.fill(anLengths, 0);
+
+		long[] alKeys = new long[nSymbols];
+		int nUsed = 0;
+
+		for (int n = 0; n < nSymbols; n++)
+		{
+			if (anFreqs[n] > 0)
+			{
+				alKeys[nUsed++] = ((long)anFreqs[n] << 16) | n;
+			}
+		}
+
+		if (nUsed < 2)
+		{
+			final int nSymbol = nUsed == 0 ? 0 : (int)(alKeys[0] & 0xffff);
+
+			anLengths[nSymbol] = 1;
+			anLengths[nSymbol == 0 ? 1 : 0] = 1;
+			return;
+		}
+
+		Arrays.sort(alKeys, 0, nUsed);
+
+		// Huffman tree by two queues: The leaves sorted, the inner nodes in order of creation.
+		final long[] alWeights = new long[nUsed * 2 - 1];
+		final int[] anParents = new int[nUsed * 2 - 1];
+
+		for (int n = 0; n < nUsed; n++)
+		{
+			alWeights[n] = alKeys[n] >>> 16;
+		}
+
+		int nLeaf = 0,
+			nInner = nUsed;
+
+		for (int nNode = nUsed; nNode < nUsed * 2 - 1; nNode++)
+		{
+			int nA, nB;
+
+			if (nLeaf < nUsed && (nInner >= nNode || alWeights[nLeaf] <= alWeights[nInner]))
+			{
+				nA = nLeaf++;
+			}
+			else
+			{
+				nA = nInner++;
+			}
+
+			if (nLeaf < nUsed && (nInner >= nNode || alWeights[nLeaf] <= alWeights[nInner]))
+			{
+				nB = nLeaf++;
+			}
+			else
+			{
+				nB = nInner++;
+			}
+
+			alWeights[nNode] = alWeights[nA] + alWeights[nB];
+			anParents[nA] = anParents[nB] = nNode;
+		}
+
+		final int nRoot = nUsed * 2 - 2;
+		final int[] anDepths = new int[nUsed * 2 - 1];
+		final int[] anCounts = new int[Math.max(nMaxBits, nUsed) + 1];
+
+		for (int n = nRoot - 1; n >= 0; n--)
+		{
+			anDepths[n] = anDepths[anParents[n]] + 1;
+		}
+
+		// Clamp to the maximum length, then restore the Kraft equality like zlib does:
+		// Each step moves a leaf one level down and another one from the bottom up to pair with it.
+		long lKraft = 0;
+		for (int n = 0; n < nUsed; n++)
+		{
+			final int nDepth = Math.min(anDepths[n], nMaxBits);
+
+			anCounts[nDepth]++;
+			lKraft += 1L << (nMaxBits - nDepth);
+		}
+
+		for (long lExcess = lKraft - (1L << nMaxBits); lExcess > 0; lExcess--)
+		{
+			int nBits = nMaxBits - 1;
+			while (anCounts[nBits] == 0)
+			{
+				nBits--;
+			}
+
+			anCounts[nBits]--;
+			anCounts[nBits + 1] += 2;
+			anCounts[nMaxBits]--;
+		}
+
+		// The longest codes to the least frequent symbols
+		int nIdx = 0;
+		for (int nBits = nMaxBits; nBits >= 1; nBits--)
+		{
+			for (int n = 0; n < anCounts[nBits]; n++)
+			{
+				anLengths[(int)(alKeys[nIdx++] & 0xffff)] = nBits;
+			}
+		}
+	}
+
+	/**
+	 * Builds the canonical Huffman codes of code lengths, bit reversed for writing.
+	 *
+	 * @param anLengths An int array with the code lengths.
+	 * @param anCodes An int array to receive the codes.
+	 */
+	static void buildCodes(int[] anLengths, int[] anCodes)
+	{
+		final int[] anCounts = new int[MAX_BITS + 1],
+				anNext = new int[MAX_BITS + 1];
+
+		for (int nLen : anLengths)
+		{
+			anCounts[nLen]++;
+		}
+
+		anCounts[0] = 0;
+
+		for (int nBits = 1, nCode = 0; nBits <= MAX_BITS; nBits++)
+		{
+			nCode = (nCode + anCounts[nBits - 1]) << 1;
+			anNext[nBits] = nCode;
+		}
+
+		for (int n = 0; n < anLengths.length; n++)
+		{
+			final int nLen = anLengths[n];
+			if (nLen > 0)
+			{
+				anCodes[n] = Integer.reverse(anNext[nLen]++) >>> (32 - nLen);
+			}
+		}
+	}
+
+	/**
+	 * Encodes code lengths with the run length symbols 16, 17 and 18.
+	 *
+	 * @param anLengths An int array with the code lengths.
+	 * @param anSymbols An int array to receive the symbols, with the extra bits value shifted left by 8.
+	 * @return An int containing the number of symbols.
+	 */
+	static int encodeCodeLengths(int[] anLengths, int[] anSymbols)
+	{
+		final int nCount = anLengths.length;
+
+		int nSymbols = 0;
+
+		for (int n = 0; n < nCount; )
+		{
+			final int nLen = anLengths[n];
+
+			int nRun = 1;
+			while (n + nRun < nCount && anLengths[n + nRun] == nLen)
+			{
+				nRun++;
+			}
+
+			n += nRun;
+
+			if (nLen == 0)
+			{
+				while (nRun >= 11)
+				{
+					final int nRep = Math.min(nRun, 138);
+
+					anSymbols[nSymbols++] = 18 | ((nRep - 11) << 8);
+					nRun -= nRep;
+				}
+
+				if (nRun >= 3)
+				{
+					anSymbols[nSymbols++] = 17 | ((nRun - 3) << 8);
+					nRun = 0;
+				}
+			}
+			else
+			{
+				anSymbols[nSymbols++] = nLen;
+				nRun--;
+
+				while (nRun >= 3)
+				{
+					final int nRep = Math.min(nRun, 6);
+
+					anSymbols[nSymbols++] = 16 | ((nRep - 3) << 8);
+					nRun -= nRep;
+				}
+			}
+
+			while (nRun-- > 0)
+			{
+				anSymbols[nSymbols++] = nLen;
+			}
+		}
+
+		return nSymbols;
+	}
+
+	/**
+	 * Calculates the symbol costs in bits from the symbol statistics.
+	 * Symbols not used are treated as used once.
+	 *
+	 * @param adStats A double array with the weighed symbol frequencies.
+	 * @param afCosts A float array to receive the costs.
+	 */
+	static void calcCosts(double[] adStats, float[] afCosts)
+	{
+		double dSum = 0;
+		for (double d : adStats)
+		{
+			dSum += d;
+		}
+
+		final double dLog2Sum = dSum > 0 ? Math.log(dSum) / Math.log(2) : 0;
+
+		for (int n = 0; n < adStats.length; n++)
+		{
+			afCosts[n] = (float)(adStats[n] > 1 ? dLog2Sum - Math.log(adStats[n]) / Math.log(2) : dLog2Sum);
+		}
+	}
+
+	/**
+	 * Converts int frequencies to doubles.
+	 *
+	 * @param anFreqs An int array.
+	 * @return A double array.
+	 */
+	static double[] toDoubles(int[] anFreqs)
+	{
+		double[] ad = new double[anFreqs.length];
+		for (int n = 0; n < anFreqs.length; n++)
+		{
+			ad[n] = anFreqs[n];
+		}
+
+		return ad;
+	}
+
+	/**
+	 * Calculates the Adler-32 checksum.
+	 *
+	 * @param lAdler A long containing the checksum so far. 1 to begin with.
+	 * @param ab A byte array.
+	 * @param nOffs An int containing the offset.
+	 * @param nLen An int containing the length.
+	 * @return A long containing the checksum.
+	 */
+	static long adler32(long lAdler, byte[] ab, int nOffs, int nLen)
+	{
+		long lA = lAdler & 0xffff,
+			lB = (lAdler >>> 16) & 0xffff;
+
+		while (nLen > 0)
+		{
+			// Far below overflow of a long
+			final int nChunk = Math.min(nLen, 0x100000);
+
+			for (int n = nOffs, nEnd = nOffs + nChunk; n < nEnd; n++)
+			{
+				lA += ab[n] & 0xff;
+				lB += lA;
+			}
+
+			lA %= 65521;
+			lB %= 65521;
+
+			nOffs += nChunk;
+			nLen -= nChunk;
+		}
+
+		return (lB << 16) | lA;
+	}
+}
@@ -0,0 +1,375 @@
+package de.unlixx.runpng.png.io;
+
+import java.util.zip.Deflater;
+
+/**
+ * PngEncodeOptions contains the options for deflating the bitmaps of a png file:
+ * a compression preset, which determines the deflate level, a deflate strategy,
+ * a strategy to select the filter per scanline and the deflate engine.
+ * The objects are immutable, so they can be shared between threads.
+ *
+ * @author H. Unland (https://github.com/HUnland)
+ *
+   <!--
+   Copyright 2021 H. Unland (https://github.com/HUnland)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+   -->
+ */
+public class PngEncodeOptions
+{
+	/**
+	 * This enum depicts a compression preset
+	 * with one of FAST, BALANCED or MAXIMUM.
+	 */
+	public static enum Preset
+	{
+		FAST(1),
+		BALANCED(6),
+		MAXIMUM(9);
+
+		final int m_nLevel;
+
+		/**
+		 * Constructor of a preset.
+		 *
+		 * @param nLevel An int containing the deflate level.
+		 */
+		Preset(int nLevel)
+		{
+			m_nLevel = nLevel;
+		}
+
+		/**
+		 * Gets the deflate level of this preset.
+		 *
+		 * @return An int containing the level 1 - 9.
+		 */
+		public int getLevel()
+		{
+			return m_nLevel;
+		}
+	};
+
+	/**
+	 * This enum depicts a deflate strategy
+	 * with one of DEFAULT, FILTERED or HUFFMAN_ONLY.
+	 */
+	public static enum Strategy
+	{
+		DEFAULT(Deflater.DEFAULT_STRATEGY),
+		FILTERED(Deflater.FILTERED),
+		HUFFMAN_ONLY(Deflater.HUFFMAN_ONLY);
+
+		final int m_nStrategy;
+
+		/**
+		 * Constructor of a strategy.
+		 *
+		 * @param nStrategy An int containing the {@link Deflater} strategy.
+		 */
+		Strategy(int nStrategy)
+		{
+			m_nStrategy = nStrategy;
+		}
+
+		/**
+		 * Gets the {@link Deflater} strategy.
+		 *
+		 * @return An int containing the strategy.
+		 */
+		public int getDeflaterStrategy()
+		{
+			return m_nStrategy;
+		}
+	};
+
+	/**
+	 * This enum depicts the selection of the filter type per scanline.
+	 * The strategies are ordered by increasing encode time, except the fixed filters,
+	 * which are the fastest. Usually the smaller output comes with the longer encode time.
+	 *
+	 * @see <a href="https://www.w3.org/TR/PNG/#12Filter-selection">https://www.w3.org/TR/PNG/#12Filter-selection</a>
+	 */
+	public static enum FilterStrategy
+	{
+		/**
+		 * The recommendation of w3.org: No filter for indexed images and bit depths below 8,
+		 * the minimum sum of absolute differences else. This is the default.
+		 */
+		ADAPTIVE(-1),
+
+		/**
+		 * Always filter type None. The fastest.
+		 */
+		NONE(PngIOCore.FILTER_NONE),
+
+		/**
+		 * Always filter type Sub.
+		 */
+		SUB(PngIOCore.FILTER_SUB),
+
+		/**
+		 * Always filter type Up.
+		 */
+		UP(PngIOCore.FILTER_UP),
+
+		/**
+		 * Always filter type Average.
+		 */
+		AVERAGE(PngIOCore.FILTER_AVERAGE),
+
+		/**
+		 * Always filter type Paeth.
+		 */
+		PAETH(PngIOCore.FILTER_PAETH),
+
+		/**
+		 * The filter with the minimum sum of absolute differences, for all color types.
+		 */
+		MINSUM(-1),
+
+		/**
+		 * The filter with the lowest entropy of the filtered bytes, for all color types.
+		 */
+		ENTROPY(-1),
+
+		/**
+		 * The filter with the smallest output of a trial deflate per scanline,
+		 * for all color types. The slowest.
+		 */
+		TRIAL(-1);
+
+		final int m_nFilter;
+
+		/**
+		 * Constructor of a filter strategy.
+		 *
+		 * @param nFilter An int containing the fixed filter type. Or -1 if it is selected per scanline.
+		 */
+		FilterStrategy(int nFilter)
+		{
+			m_nFilter = nFilter;
+		}
+
+		/**
+		 * Gets the fixed filter type.
+		 *
+		 * @return An int containing the filter type 0 - 4. Or -1 if the filter is selected per scanline.
+		 */
+		public int getFixedFilter()
+		{
+			return m_nFilter;
+		}
+	};
+
+	/**
+	 * This enum depicts the deflate engine.
+	 */
+	public static enum Engine
+	{
+		/**
+		 * The {@link Deflater} of the JDK. This is the default.
+		 */
+		ZLIB,
+
+		/**
+		 * The {@link PngDeflater} with a fast greedy parse, which prefers runs. For quick saves.
+		 */
+		GREEDY,
+
+		/**
+		 * The {@link PngDeflater} with an iterative optimal parse. The smallest output, but very slow.
+		 * For final exports.
+		 */
+		OPTIMAL
+	};
+
+	/**
+	 * Fastest compression, e.g. for interactive saves.
+	 */
+	public static final PngEncodeOptions FAST = new PngEncodeOptions(Preset.FAST, Strategy.DEFAULT);
+
+	/**
+	 * Good compression in reasonable time.
+	 */
+	public static final PngEncodeOptions BALANCED = new PngEncodeOptions(Preset.BALANCED, Strategy.DEFAULT);
+
+	/**
+	 * Best compression of the deflate levels, e.g. for final exports. This is the default.
+	 */
+	public static final PngEncodeOptions MAXIMUM = new PngEncodeOptions(Preset.MAXIMUM, Strategy.DEFAULT);
+
+	final Preset m_preset;
+	final Strategy m_strategy;
+	final FilterStrategy m_filterStrategy;
+	final Engine m_engine;
+
+	/**
+	 * Constructor for this PngEncodeOptions with the adaptive filter strategy.
+	 *
+	 * @param preset A {@link Preset} enum type.
+	 * @param strategy A {@link Strategy} enum type.
+	 */
+	public PngEncodeOptions(Preset preset, Strategy strategy)
+	{
+		this(preset, strategy, FilterStrategy.ADAPTIVE);
+	}
+
+	/**
+	 * Constructor for this PngEncodeOptions.
+	 *
+	 * @param preset A {@link Preset} enum type.
+	 * @param strategy A {@link Strategy} enum type.
+	 * @param filterStrategy A {@link FilterStrategy} enum type.
+	 */
+	public PngEncodeOptions(Preset preset, Strategy strategy, FilterStrategy filterStrategy)
+	{
+		this(preset, strategy, filterStrategy, Engine.ZLIB);
+	}
+
+	/**
+	 * Constructor for this PngEncodeOptions.
+	 *
+	 * @param preset A {@link Preset} enum type.
+	 * @param strategy A {@link Strategy} enum type.
+	 * @param filterStrategy A {@link FilterStrategy} enum type.
+	 * @param engine An {@link Engine} enum type.
+	 */
+	public PngEncodeOptions(Preset preset, Strategy strategy, FilterStrategy filterStrategy, Engine engine)
+	{
+		m_preset = preset;
+		m_strategy = strategy;
+		m_filterStrategy = filterStrategy;
+		m_engine = engine;
+	}
+
+	/**
+	 * Creates a copy of these options with another filter strategy.
+	 *
+	 * @param filterStrategy A {@link FilterStrategy} enum type.
+	 * @return A new PngEncodeOptions object.
+	 */
+	public PngEncodeOptions withFilterStrategy(FilterStrategy filterStrategy)
+	{
+		return new PngEncodeOptions(m_preset, m_strategy, filterStrategy, m_engine);
+	}
+
+	/**
+	 * Creates a copy of these options with another deflate engine.
+	 *
+	 * @param engine An {@link Engine} enum type.
+	 * @return A new PngEncodeOptions object.
+	 */
+	public PngEncodeOptions withEngine(Engine engine)
+	{
+		return new PngEncodeOptions(m_preset, m_strategy, m_filterStrategy, engine);
+	}
+
+	/**
+	 * Gets the compression preset.
+	 *
+	 * @return A {@link Preset} enum type.
+	 */
+	public Preset getPreset()
+	{
+		return m_preset;
+	}
+
+	/**
+	 * Gets the deflate strategy.
+	 *
+	 * @return A {@link Strategy} enum type.
+	 */
+	public Strategy getStrategy()
+	{
+		return m_strategy;
+	}
+
+	/**
+	 * Gets the strategy to select the filter per scanline.
+	 *
+	 * @return A {@link FilterStrategy} enum type.
+	 */
+	public FilterStrategy getFilterStrategy()
+	{
+		return m_filterStrategy;
+	}
+
+	/**
+	 * Gets the deflate engine.
+	 *
+	 * @return An {@link Engine} enum type.
+	 */
+	public Engine getEngine()
+	{
+		return m_engine;
+	}
+
+	/**
+	 * Gets the deflate level of the preset.
+	 *
+	 * @return An int containing the level 1 - 9.
+	 */
+	public int getLevel()
+	{
+		return m_preset.getLevel();
+	}
+
+	/**
+	 * Creates a {@link Deflater} according to these options. The deflater
+	 * should be ended after use to release its native resources at once.
+	 *
+	 * @param bNoWrap A boolean containing true for raw deflate data without zlib header and checksum.
+	 * @return A {@link Deflater} object.
+	 */
+	public Deflater createDeflater(boolean bNoWrap)
+	{
+		Deflater def = new Deflater(getLevel(), bNoWrap);
+		def.setStrategy(m_strategy.getDeflaterStrategy());
+
+		return def;
+	}
+
+	/**
+	 * Gets the two byte zlib header matching the deflate level, or the engine if it is not ZLIB,
+	 * for a 32K window and without preset dictionary.
+	 *
+	 * @return An int containing the header in the lower 16 bits.
+	 * @see <a href="https://tools.ietf.org/html/rfc1950">https://tools.ietf.org/html/rfc1950</a>
+	 */
+	public int getZlibHeader()
+	{
+		final int nLevel = getLevel();
+
+		if (m_engine != Engine.ZLIB)
+		{
+			return m_engine == Engine.GREEDY ? 0x7801 : 0x78da;
+		}
+
+		if (nLevel < 2)
+		{
+			return 0x7801;
+		}
+		else if (nLevel < 6)
+		{
+			return 0x785e;
+		}
+		else if (nLevel == 6)
+		{
+			return 0x789c;
+		}
+
+		return 0x78da;
+	}
+}
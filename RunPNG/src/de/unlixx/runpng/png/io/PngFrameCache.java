@@ -0,0 +1,404 @@
+package de.unlixx.runpng.png.io;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+import de.unlixx.runpng.bitmap.Bitmap32;
+import de.unlixx.runpng.png.chunks.PngHeader;
+import de.unlixx.runpng.png.chunks.PngPalette;
+import de.unlixx.runpng.png.chunks.PngTransparency;
+
+/**
+ * PngFrameCache holds the deflated data of the bitmaps written by a {@link PngChunkOutputStream}
+ * for the duration of a session. The key is a content hash of the pixels together with the
+ * dimension of the bitmap and a hash of everything else the deflated data depends on: header,
+ * palette, transparency and encode options. So a bitmap which did not change since the last save
+ * is written from the cache instead of being filtered and deflated again. Delays, offsets and
+ * the like are not part of the data chunks and do not invalidate the cache.
+ * <p>
+ * A reader may seed the cache with the original deflated data of the bitmaps it decodes, see
+ * {@link #putOriginal(PngHeader, PngPalette, PngTransparency, Bitmap32, byte[])}. These entries
+ * do not depend on the encode options. So a bitmap of an imported file is copied verbatim as long
+ * as the bitmap written has exactly the decoded content. An edit invalidates it by its content,
+ * which is also true for the bitmaps depending on it, like the composited frames of an animation.
+ * <p>
+ * Saves may be nested by {@link #begin()} and {@link #end()}, e.g. for the sequences of a project.
+ * The entries not used by the outermost save are dropped at its end, so the cache never holds more
+ * than the deflated data of the last save.
+ *
+ * @author H. Unland (https://github.com/HUnland)
+ *
+   <!--
+   Copyright 2021 H. Unland (https://github.com/HUnland)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+   -->
+ */
+public class PngFrameCache
+{
+	static final long PRIME1 = 0x9e3779b97f4a7c15L;
+	static final long PRIME2 = 0xc2b2ae3d27d4eb4fL;
+
+	/**
+	 * Key of a cached bitmap.
+	 */
+	static class Key
+	{
+		final long m_lSettings;
+		final long m_lPixels;
+		final int m_nWidth;
+		final int m_nHeight;
+
+		/**
+		 * Constructor for this Key.
+		 *
+		 * @param lSettings A long containing the hash of the settings.
+		 * @param lPixels A long containing the hash of the pixels.
+		 * @param nWidth An int containing the width of the bitmap.
+		 * @param nHeight An int containing the height of the bitmap.
+		 */
+		Key(long lSettings, long lPixels, int nWidth, int nHeight)
+		{
+			m_lSettings = lSettings;
+			m_lPixels = lPixels;
+			m_nWidth = nWidth;
+			m_nHeight = nHeight;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (int)(m_lPixels ^ (m_lPixels >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof Key))
+			{
+				return false;
+			}
+
+			Key key = (Key)obj;
+
+			return m_lPixels == key.m_lPixels && m_lSettings == key.m_lSettings
+					&& m_nWidth == key.m_nWidth && m_nHeight == key.m_nHeight;
+		}
+	}
+
+	/**
+	 * Deflated data of a cached bitmap.
+	 */
+	static class Entry
+	{
+		final byte[] m_abData;
+		int m_nGeneration;
+
+		/**
+		 * Constructor for this Entry.
+		 *
+		 * @param abData An array of bytes containing the deflated data.
+		 * @param nGeneration An int containing the save generation.
+		 */
+		Entry(byte[] abData, int nGeneration)
+		{
+			m_abData = abData;
+			m_nGeneration = nGeneration;
+		}
+	}
+
+	final HashMap<Key, Entry> m_map = new HashMap<>();
+
+	int m_nGeneration;
+	int m_nDepth;
+
+	int m_nHits;
+	int m_nMisses;
+	long m_lBytes;
+
+	/**
+	 * Begins a save. Only the outermost of nested saves begins a new generation
+	 * and resets the counters.
+	 */
+	public synchronized void begin()
+	{
+		if (m_nDepth++ == 0)
+		{
+			m_nGeneration++;
+			m_nHits = 0;
+			m_nMisses = 0;
+		}
+	}
+
+	/**
+	 * Ends a save. The outermost save drops all entries not used by it.
+	 */
+	public synchronized void end()
+	{
+		if (m_nDepth > 0 && --m_nDepth == 0)
+		{
+			Iterator<Entry> it = m_map.values().iterator();
+			while (it.hasNext())
+			{
+				Entry entry = it.next();
+				if (entry.m_nGeneration != m_nGeneration)
+				{
+					m_lBytes -= entry.m_abData.length;
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the deflated data of a bitmap and marks it as used by the current save.
+	 * The data deflated with the current encode options is preferred to the original data.
+	 *
+	 * @param key A {@link Key} object including the encode options.
+	 * @param keyOriginal A {@link Key} object of the original data. Or null.
+	 * @return An array of bytes containing the deflated data. Or null if not cached.
+	 */
+	synchronized byte[] get(Key key, Key keyOriginal)
+	{
+		Entry entry = m_map.get(key);
+		if (entry == null && keyOriginal != null)
+		{
+			entry = m_map.get(keyOriginal);
+		}
+
+		if (entry == null)
+		{
+			m_nMisses++;
+			return null;
+		}
+
+		m_nHits++;
+		entry.m_nGeneration = m_nGeneration;
+
+		return entry.m_abData;
+	}
+
+	/**
+	 * Puts the deflated data of a bitmap.
+	 *
+	 * @param key A {@link Key} object.
+	 * @param abData An array of bytes containing the deflated data. It must not be modified afterwards.
+	 */
+	synchronized void put(Key key, byte[] abData)
+	{
+		Entry entry = m_map.put(key, new Entry(abData, m_nGeneration));
+		if (entry != null)
+		{
+			m_lBytes -= entry.m_abData.length;
+		}
+
+		m_lBytes += abData.length;
+	}
+
+	/**
+	 * Puts the original deflated data of a bitmap read from a file. The bitmap must have
+	 * exactly the content decoded from the data, so not cropped, subsampled or blended.
+	 *
+	 * @param header The {@link PngHeader} of the file.
+	 * @param palette The {@link PngPalette} of the file. Or null.
+	 * @param transparency The {@link PngTransparency} of the file. Or null.
+	 * @param bitmap The {@link Bitmap32} decoded.
+	 * @param abData An array of bytes containing the complete deflated data of the bitmap. It must not be modified afterwards.
+	 */
+	public void putOriginal(PngHeader header, PngPalette palette, PngTransparency transparency, Bitmap32 bitmap, byte[] abData)
+	{
+		put(createKey(hashSettings(header, palette, transparency, null), bitmap), abData);
+	}
+
+	/**
+	 * Removes all entries.
+	 */
+	public synchronized void clear()
+	{
+		m_map.clear();
+		m_lBytes = 0;
+	}
+
+	/**
+	 * Gets the number of cached bitmaps.
+	 *
+	 * @return An int containing the number of entries.
+	 */
+	public synchronized int size()
+	{
+		return m_map.size();
+	}
+
+	/**
+	 * Gets the total size of the cached data.
+	 *
+	 * @return A long containing the number of bytes.
+	 */
+	public synchronized long getBytes()
+	{
+		return m_lBytes;
+	}
+
+	/**
+	 * Gets the number of bitmaps taken from the cache by the current or last save.
+	 *
+	 * @return An int containing the number of hits.
+	 */
+	public synchronized int getHits()
+	{
+		return m_nHits;
+	}
+
+	/**
+	 * Gets the number of bitmaps not found in the cache by the current or last save.
+	 *
+	 * @return An int containing the number of misses.
+	 */
+	public synchronized int getMisses()
+	{
+		return m_nMisses;
+	}
+
+	/**
+	 * Calculates the hash of everything besides the bitmap the deflated data depends on.
+	 *
+	 * @param header A {@link PngHeader} object.
+	 * @param palette A {@link PngPalette} object. Or null.
+	 * @param transparency A {@link PngTransparency} object. Or null.
+	 * @param options A {@link PngEncodeOptions} object. Or null for original data.
+	 * @return A long containing the hash.
+	 */
+	static long hashSettings(PngHeader header, PngPalette palette, PngTransparency transparency, PngEncodeOptions options)
+	{
+		long lHash = mix(0, header.getColorType().getType());
+		lHash = mix(lHash, header.getBitDepth());
+		lHash = mix(lHash, header.getInterlaceMethod());
+		lHash = mix(lHash, header.getFilterMethod());
+
+		if (options != null)
+		{
+			lHash = mix(lHash, options.getPreset().ordinal());
+			lHash = mix(lHash, options.getStrategy().ordinal());
+			lHash = mix(lHash, options.getFilterStrategy().ordinal());
+			lHash = mix(lHash, options.getEngine().ordinal());
+		}
+		else
+		{
+			lHash = mix(lHash, 0x6f726967);
+		}
+
+		if (palette != null)
+		{
+			lHash = mix(lHash, palette.length());
+			for (int n = 0, nLen = palette.length(); n < nLen; n++)
+			{
+				lHash = mix(lHash, palette.get(n));
+			}
+		}
+
+		lHash = mix(lHash, -1);
+
+		if (transparency != null)
+		{
+			byte[] abtRNS = transparency.getBytes();
+			lHash = mix(lHash, abtRNS.length);
+			for (byte b : abtRNS)
+			{
+				lHash = mix(lHash, b);
+			}
+		}
+
+		return finish(lHash);
+	}
+
+	/**
+	 * Creates the key of a bitmap.
+	 *
+	 * @param lSettings A long containing the hash calculated by {@link #hashSettings(PngHeader, PngPalette, PngTransparency, PngEncodeOptions)}.
+	 * @param bitmap A {@link Bitmap32} object.
+	 * @return A {@link Key} object.
+	 */
+	static Key createKey(long lSettings, Bitmap32 bitmap)
+	{
+		return new Key(lSettings, hashPixels(bitmap), bitmap.getWidth(), bitmap.getHeight());
+	}
+
+	/**
+	 * Creates the key of a bitmap for other settings.
+	 *
+	 * @param lSettings A long containing the hash of the other settings.
+	 * @param key A {@link Key} object of the bitmap.
+	 * @return A {@link Key} object.
+	 */
+	static Key createKey(long lSettings, Key key)
+	{
+		return new Key(lSettings, key.m_lPixels, key.m_nWidth, key.m_nHeight);
+	}
+
+	/**
+	 * Calculates the content hash of the pixels of a bitmap.
+	 *
+	 * @param bitmap A {@link Bitmap32} object.
+	 * @return A long containing the hash.
+	 */
+	static long hashPixels(Bitmap32 bitmap)
+	{
+		final int[] anPixels = bitmap.getPixels();
+
+		// Two lanes for speed
+		long lHash0 = PRIME1, lHash1 = PRIME2;
+
+		int n = 0;
+		for (final int nLen = anPixels.length & ~1; n < nLen; n += 2)
+		{
+			lHash0 = mix(lHash0, anPixels[n]);
+			lHash1 = mix(lHash1, anPixels[n + 1]);
+		}
+
+		if (n < anPixels.length)
+		{
+			lHash0 = mix(lHash0, anPixels[n]);
+		}
+
+		return finish(lHash0 ^ Long.rotateLeft(lHash1, 29) ^ anPixels.length);
+	}
+
+	/**
+	 * Internally used to mix a value into a hash.
+	 *
+	 * @param lHash A long containing the hash so far.
+	 * @param n An int containing the value.
+	 * @return A long containing the new hash.
+	 */
+	static long mix(long lHash, int n)
+	{
+		return Long.rotateLeft(lHash + (n & 0xffffffffL) * PRIME2, 31) * PRIME1;
+	}
+
+	/**
+	 * Internally used to spread the bits of a hash finally.
+	 *
+	 * @param lHash A long containing the hash.
+	 * @return A long containing the final hash.
+	 */
+	static long finish(long lHash)
+	{
+		lHash ^= lHash >>> 33;
+		lHash *= 0xff51afd7ed558ccdL;
+		lHash ^= lHash >>> 33;
+		lHash *= 0xc4ceb9fe1a85ec53L;
+		lHash ^= lHash >>> 33;
+
+		return lHash;
+	}
+}
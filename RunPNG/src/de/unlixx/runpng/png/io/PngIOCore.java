@@ -1,15 +1,21 @@
 package de.unlixx.runpng.png.io;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.Adler32;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.Inflater;
 
+import de.unlixx.runpng.bitmap.Bitmap32;
 import de.unlixx.runpng.bitmap.Scanline32;
 import de.unlixx.runpng.png.PngColorType;
+import de.unlixx.runpng.png.PngConstants;
 import de.unlixx.runpng.png.chunks.PngHeader;
 import de.unlixx.runpng.util.exceptions.Failure;
 
@@ -45,6 +51,12 @@ public class PngIOCore
 	static final int FILTER_AVERAGE = 3;
 	static final int FILTER_PAETH = 4;
 
+	/**
+	 * Minimum size of the filtered data of a block deflated in parallel.
+	 */
+	public static final int DEFLATE_BLOCK_SIZE = 0x40000; // 256 KB
+
+	final PngHeader m_header;
 	final byte[] m_abBuffer;
 	final byte[] m_abPrevLine;
 
@@ -57,6 +69,158 @@ public class PngIOCore
 	final int m_nBitsPerPixel;
 	final int m_nInterlaceMethod;
 
+	// State of an incremental inflation
+	Inflater m_inflater;
+	Scanline32 m_scanlineInflate;
+	int m_nPass;
+	int m_nLine;
+	int m_nLineFill;
+	int m_nPassBytesPerLine;
+	int m_nPassHeight;
+	boolean m_bInflateComplete;
+	boolean m_bInflateStopped;
+
+	// Unfiltered scanlines kept instead of written
+	byte[] m_abUnfiltered;
+	int m_nUnfiltered;
+
+	// Progressive decoding of interlaced bitmaps
+	PngPassListener m_passListener;
+
+	// Deflation of a single bitmap in parallel blocks
+	ForkJoinPool m_poolDeflate;
+
+	PngEncodeOptions m_options = PngEncodeOptions.MAXIMUM;
+
+	// Filter selection by entropy or trial deflate
+	int[] m_anHistogram;
+	Deflater m_deflaterTrial;
+	byte[] m_abTrialHistory;
+	byte[] m_abTrialOutput;
+	int m_nTrialHistory;
+
+	/**
+	 * DeflateBlockTask filters and deflates a block of scanlines of a non-interlaced bitmap
+	 * in a pool thread. The scanlines preceding the block are filtered as well and preset as
+	 * dictionary, so the compression is hardly worse than deflating the bitmap as a whole.
+	 * The raw deflate data of a block ends with a sync flush, or is finished if it is the
+	 * last block. So the blocks just need to be concatenated to a zlib data stream.
+	 * <p>
+	 * The trial filter selection depends on the scanlines chosen before, so the preceding
+	 * scanlines may be filtered differently than in the previous block. They just serve
+	 * as history of the trial then, but not as dictionary.
+	 */
+	static class DeflateBlockTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		final PngHeader m_header;
+		final PngEncodeOptions m_options;
+		final Scanline32 m_scanline;
+		final int m_nFirstLine;
+		final int m_nLines;
+		final boolean m_bLast;
+		byte[] m_abData;
+		int m_nAdler;
+		int m_nLength;
+
+		/**
+		 * Constructor for this DeflateBlockTask.
+		 *
+		 * @param header A {@link PngHeader} object.
+		 * @param options A {@link PngEncodeOptions} object.
+		 * @param scanline The {@link Scanline32} object to read from. Its bitmap is read only.
+		 * @param nFirstLine An int containing the first scanline of the block.
+		 * @param nLines An int containing the number of scanlines of the block.
+		 * @param bLast A boolean containing true if it is the last block.
+		 */
+		DeflateBlockTask(PngHeader header, PngEncodeOptions options, Scanline32 scanline, int nFirstLine, int nLines, boolean bLast)
+		{
+			m_header = header;
+			m_options = options;
+			m_scanline = scanline;
+			m_nFirstLine = nFirstLine;
+			m_nLines = nLines;
+			m_bLast = bLast;
+		}
+
+		@Override
+		protected void compute()
+		{
+			final PngIOCore pngIOCore = new PngIOCore(m_header);
+			pngIOCore.setEncodeOptions(m_options);
+
+			final int nBytesPerLine = pngIOCore.calcPassBytesPerLine(0, m_scanline),
+					nDictLines = Math.min(m_nFirstLine, (PngConstants.BUFFER_32K + nBytesPerLine - 1) / nBytesPerLine),
+					nStartLine = m_nFirstLine - nDictLines;
+
+			if (nStartLine > 0)
+			{
+				// The unfiltered line before is needed for filtering.
+				m_scanline.read(pngIOCore.m_abBuffer, 1, 0, 1, nStartLine - 1);
+				System.arraycopy(pngIOCore.m_abBuffer, 1, pngIOCore.m_abPrevLine, 0, nBytesPerLine - 1);
+			}
+
+			final byte[] abFiltered = new byte[(nDictLines + m_nLines) * nBytesPerLine];
+			for (int nLine = 0; nLine < nDictLines + m_nLines; nLine++)
+			{
+				pngIOCore.filterLine(m_scanline, 0, 1, nStartLine + nLine, nBytesPerLine);
+				System.arraycopy(pngIOCore.m_abBuffer, 0, abFiltered, nLine * nBytesPerLine, nBytesPerLine);
+			}
+
+			pngIOCore.endFilterTrial();
+
+			final int nDictLen = nDictLines * nBytesPerLine,
+					nDictOffs = Math.max(0, nDictLen - PngConstants.BUFFER_32K);
+
+			Adler32 adler = new Adler32();
+			adler.update(abFiltered, nDictLen, abFiltered.length - nDictLen);
+			m_nAdler = (int)adler.getValue();
+			m_nLength = abFiltered.length - nDictLen;
+
+			Deflater def = m_options.createDeflater(true);
+			try
+			{
+				if (nDictLen > 0 && m_options.getFilterStrategy() != PngEncodeOptions.FilterStrategy.TRIAL)
+				{
+					def.setDictionary(abFiltered, nDictOffs, nDictLen - nDictOffs);
+				}
+
+				def.setInput(abFiltered, nDictLen, m_nLength);
+				if (m_bLast)
+				{
+					def.finish();
+				}
+
+				byte[] abOut = new byte[Math.max(PngConstants.BUFFER_32K, m_nLength / 2)];
+				int nOut = 0;
+
+				while (true)
+				{
+					if (nOut == abOut.length)
+					{
+						abOut = Arrays.copyOf(abOut, abOut.length * 2);
+					}
+
+					final int nDeflated = def.deflate(abOut, nOut, abOut.length - nOut,
+							m_bLast ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+					nOut += nDeflated;
+
+					if (m_bLast ? def.finished() : (nOut < abOut.length && def.needsInput()))
+					{
+						break;
+					}
+				}
+
+				m_abData = Arrays.copyOf(abOut, nOut);
+			}
+			finally
+			{
+				def.end();
+			}
+		}
+	}
+
 	/**
 	 * Constructor for this PngFilteringIO class.
 	 *
@@ -65,6 +229,7 @@ public class PngIOCore
 	 */
 	public PngIOCore(PngHeader header)
 	{
+		m_header = header;
 		m_colorType = header.getColorType();
 		m_nBitDepth = header.getBitDepth();
 
@@ -80,6 +245,70 @@ public class PngIOCore
 		m_abPrevLine = new byte[m_nScanlineStride];
 	}
 
+	/**
+	 * Sets a listener to be informed after every completed pass of an interlaced bitmap.
+	 * The bitmap is then filled up by block replication to a coarse preview. The listener
+	 * is not informed in case of subsampled or composited scanlines.
+	 *
+	 * @param listener A {@link PngPassListener} object. Or null to remove it.
+	 */
+	public void setPassListener(PngPassListener listener)
+	{
+		m_passListener = listener;
+	}
+
+	/**
+	 * Gets the listener for completed passes.
+	 *
+	 * @return A {@link PngPassListener} object. Or null if none is set.
+	 */
+	public PngPassListener getPassListener()
+	{
+		return m_passListener;
+	}
+
+	/**
+	 * Sets a pool to deflate large non-interlaced bitmaps in parallel blocks of at least
+	 * {@link #DEFLATE_BLOCK_SIZE} bytes of filtered data, see {@link DeflateBlockTask}.
+	 * The result is still a single zlib data stream, slightly larger due to the block boundaries.
+	 *
+	 * @param pool A {@link ForkJoinPool} object. Or null to deflate in the calling thread, which is the default.
+	 */
+	public void setDeflatePool(ForkJoinPool pool)
+	{
+		m_poolDeflate = pool;
+	}
+
+	/**
+	 * Gets the pool to deflate in parallel blocks.
+	 *
+	 * @return A {@link ForkJoinPool} object. Or null if none is set.
+	 */
+	public ForkJoinPool getDeflatePool()
+	{
+		return m_poolDeflate;
+	}
+
+	/**
+	 * Sets the options for deflating. {@link PngEncodeOptions#MAXIMUM} is the default.
+	 *
+	 * @param options A {@link PngEncodeOptions} object.
+	 */
+	public void setEncodeOptions(PngEncodeOptions options)
+	{
+		m_options = options != null ? options : PngEncodeOptions.MAXIMUM;
+	}
+
+	/**
+	 * Gets the options for deflating.
+	 *
+	 * @return A {@link PngEncodeOptions} object.
+	 */
+	public PngEncodeOptions getEncodeOptions()
+	{
+		return m_options;
+	}
+
 	/**
 	 * Ensures the existence of five buffers for evaluating the filters.
 	 */
@@ -147,57 +376,360 @@ public class PngIOCore
 	 */
 	public void inflate(byte[] abDeflated, Scanline32 scanline) throws DataFormatException
 	{
-		final int nFullBytesPerLine = scanline.getScanlineStride(),
-				nWidth = scanline.getBitmapWidth(),
-				nFullHeight = scanline.getBitmapHeight();
+		beginInflate(scanline);
+		inflate(abDeflated, 0, abDeflated.length);
+		endInflate();
+	}
 
-		final Inflater inflater = new Inflater();
-		inflater.setInput(abDeflated);
+	/**
+	 * Inflates the given bitmap bytes and removes filtering, but keeps the unfiltered scanlines
+	 * instead of writing them. They are written later by {@link #writeUnfiltered(byte[], Scanline32)},
+	 * e.g. in the order of the frames onto a canvas, while the inflation runs in parallel.
+	 *
+	 * @param abDeflated The deflated byte array of the bitmap.
+	 * @param scanline The {@link Scanline32} object giving the size of the bitmap. It is not written to.
+	 * @return A byte array containing the unfiltered scanlines of all passes without the filter bytes.
+	 * @throws DataFormatException In the case of data format problem while inflating.
+	 */
+	public byte[] inflateUnfiltered(byte[] abDeflated, Scanline32 scanline) throws DataFormatException
+	{
+		m_abUnfiltered = new byte[calcUnfilteredLength(scanline)];
+		m_nUnfiltered = 0;
 
-		int nPass = m_nInterlaceMethod == 0 ? 0 : 1;
+		try
+		{
+			inflate(abDeflated, scanline);
 
-		do
+			return m_abUnfiltered;
+		}
+		finally
 		{
-			final int nOffsX = ILMX[nPass][OFFSX],
-					nStepX = ILMX[nPass][STEPX],
-					nPadX = ILMX[nPass + 1][STEPX] - 1,
-					nOffsY = ILMX[nPass][OFFSY],
-					nStepY = ILMX[nPass][STEPY],
-					nPadY = ILMX[nPass + 1][STEPY] - 1,
-					nBytesPerLine = nPass == 0 ? nFullBytesPerLine
-									// Two steps of padding. Do not "optimize".
-									: (nWidth + nPadX) / nStepX * m_nBitsPerPixel / 8 + 1,
-					nHeight = nPass == 0 ? nFullHeight : (nFullHeight + nPadY) / nStepY;
+			m_abUnfiltered = null;
+		}
+	}
 
-			Arrays.fill(m_abPrevLine, (byte)0);
+	/**
+	 * Writes the unfiltered scanlines kept by {@link #inflateUnfiltered(byte[], Scanline32)}.
+	 *
+	 * @param abUnfiltered A byte array containing the unfiltered scanlines.
+	 * @param scanline The {@link Scanline32} object to write to. Of the same size as on inflation.
+	 */
+	public void writeUnfiltered(byte[] abUnfiltered, Scanline32 scanline)
+	{
+		int nIdx = 0;
 
-			for (int nLine = 0; nLine < nHeight; nLine++)
+		for (int nPass = m_nInterlaceMethod == 0 ? 0 : 1; nPass < 8; nPass++)
+		{
+			final int nBytesPerLine = calcPassBytesPerLine(nPass, scanline) - 1;
+			final int nHeight = calcPassHeight(nPass, scanline);
+
+			if (nBytesPerLine > 0)
 			{
-				int nInflated = inflater.inflate(m_abBuffer, 0, nBytesPerLine);
-				if (nInflated == 0)
+				for (int nLine = 0; nLine < nHeight; nLine++)
 				{
-					throw new Failure("failure.unexpected.eof", "inflate");
+					scanline.writeLine(abUnfiltered, nIdx, ILMX[nPass][OFFSX], ILMX[nPass][STEPX],
+							nLine * ILMX[nPass][STEPY] + ILMX[nPass][OFFSY]);
+
+					nIdx += nBytesPerLine;
 				}
+			}
+
+			if (nPass == 0)
+			{
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Calculates the length of the unfiltered scanlines of all passes without the filter bytes.
+	 *
+	 * @param scanline The {@link Scanline32} object in use.
+	 * @return An int containing the length.
+	 */
+	int calcUnfilteredLength(Scanline32 scanline)
+	{
+		int nLength = 0;
+
+		for (int nPass = m_nInterlaceMethod == 0 ? 0 : 1; nPass < 8; nPass++)
+		{
+			final int nBytesPerLine = calcPassBytesPerLine(nPass, scanline) - 1;
+			if (nBytesPerLine > 0)
+			{
+				nLength += nBytesPerLine * calcPassHeight(nPass, scanline);
+			}
+
+			if (nPass == 0)
+			{
+				break;
+			}
+		}
+
+		return nLength;
+	}
+
+	/**
+	 * Begins an incremental inflation. The deflated data may then be passed
+	 * piecewise by {@link #inflate(byte[], int, int)}, e.g. chunk by chunk
+	 * while reading. Every scanline is unfiltered and written as soon as it
+	 * is complete. The inflation needs to be closed by {@link #endInflate()}.
+	 *
+	 * @param scanline The {@link Scanline32} object to write to.
+	 */
+	public void beginInflate(Scanline32 scanline)
+	{
+		if (m_inflater == null)
+		{
+			m_inflater = new Inflater();
+		}
+		else
+		{
+			m_inflater.reset();
+		}
+
+		m_scanlineInflate = scanline;
+		m_bInflateComplete = false;
+		m_bInflateStopped = false;
+		m_nLineFill = 0;
+
+		beginPass(m_nInterlaceMethod == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Inflates the next piece of deflated data of an incremental inflation.
+	 * The given data is completely consumed before returning. Data exceeding
+	 * the last scanline is ignored.
+	 *
+	 * @param ab The byte array containing the deflated data.
+	 * @param nOffs An int containing the offset in the array.
+	 * @param nLen An int containing the length of the data.
+	 * @return A boolean containing true if the bitmap is complete.
+	 * @throws DataFormatException In the case of data format problem while inflating.
+	 */
+	public boolean inflate(byte[] ab, int nOffs, int nLen) throws DataFormatException
+	{
+		if (m_bInflateComplete)
+		{
+			return true;
+		}
+
+		m_inflater.setInput(ab, nOffs, nLen);
+
+		while (!m_bInflateComplete)
+		{
+			int nInflated = m_inflater.inflate(m_abBuffer, m_nLineFill, m_nPassBytesPerLine - m_nLineFill);
+			if (nInflated == 0 && (m_inflater.needsInput() || m_inflater.finished() || m_inflater.needsDictionary()))
+			{
+				break;
+			}
+
+			m_nLineFill += nInflated;
+
+			if (m_nLineFill == m_nPassBytesPerLine)
+			{
+				completeLine();
+			}
+		}
+
+		return m_bInflateComplete;
+	}
+
+	/**
+	 * Gets whether the last inflation has been stopped by the {@link PngPassListener}
+	 * before the last pass.
+	 *
+	 * @return A boolean containing true if stopped.
+	 */
+	public boolean isInflateStopped()
+	{
+		return m_bInflateStopped;
+	}
 
-				revertFilter(nBytesPerLine);
+	/**
+	 * Ends an incremental inflation.
+	 *
+	 * @throws Failure In the case the deflated data ended before the last scanline.
+	 */
+	public void endInflate()
+	{
+		m_scanlineInflate = null;
+
+		if (!m_bInflateComplete)
+		{
+			throw new Failure("failure.unexpected.eof", "inflate");
+		}
+	}
+
+	/**
+	 * Prepares the given pass of an incremental inflation. Passes without
+	 * any pixels are skipped, since they do not contain any scanlines.
+	 *
+	 * @param nPass An int containing the pass number. 0 if not interlaced, otherwise 1 - 7.
+	 */
+	void beginPass(int nPass)
+	{
+		m_nLine = 0;
+
+		while (true)
+		{
+			m_nPass = nPass;
+			m_nPassBytesPerLine = calcPassBytesPerLine(nPass, m_scanlineInflate);
+			m_nPassHeight = calcPassHeight(nPass, m_scanlineInflate);
+
+			Arrays.fill(m_abPrevLine, (byte)0);
 
-				scanline.write(m_abBuffer, 1, nOffsX, nStepX, nLine * nStepY + nOffsY);
+			if (m_nPassBytesPerLine > 1 && m_nPassHeight > 0)
+			{
+				return;
 			}
 
 			if (nPass == 0 || nPass == 7)
 			{
+				m_bInflateComplete = true;
 				return;
 			}
+
+			nPass++;
+		}
+	}
+
+	/**
+	 * Reverts the filter of the completely inflated scanline, writes it and advances
+	 * to the next line or pass.
+	 */
+	void completeLine()
+	{
+		revertFilter(m_nPassBytesPerLine);
+
+		if (m_abUnfiltered != null)
+		{
+			System.arraycopy(m_abBuffer, 1, m_abUnfiltered, m_nUnfiltered, m_nPassBytesPerLine - 1);
+			m_nUnfiltered += m_nPassBytesPerLine - 1;
+		}
+		else
+		{
+			m_scanlineInflate.writeLine(m_abBuffer, 1, ILMX[m_nPass][OFFSX], ILMX[m_nPass][STEPX],
+					m_nLine * ILMX[m_nPass][STEPY] + ILMX[m_nPass][OFFSY]);
+		}
+
+		m_nLineFill = 0;
+
+		if (++m_nLine == m_nPassHeight)
+		{
+			if (m_nPass != 0 && !notifyPassCompleted(m_nPass))
+			{
+				m_bInflateComplete = true;
+				m_bInflateStopped = m_nPass != 7;
+			}
+			else if (m_nPass == 0 || m_nPass == 7)
+			{
+				m_bInflateComplete = true;
+			}
 			else
 			{
-				nPass++;
+				beginPass(m_nPass + 1);
 			}
 		}
-		while (true);
+	}
+
+	/**
+	 * Informs the listener, if any, about a completed pass. Fills up the pixels of
+	 * the following passes before by replicating the known pixels.
+	 *
+	 * @param nPass An int containing the pass number 1 - 7.
+	 * @return A boolean containing false if the listener wants to stop decoding.
+	 */
+	boolean notifyPassCompleted(int nPass)
+	{
+		if (m_passListener == null || m_abUnfiltered != null || m_scanlineInflate.getSubsample() > 1 || m_scanlineInflate.isComposite())
+		{
+			return true;
+		}
+
+		final Bitmap32 bitmap = m_scanlineInflate.getBitmap();
+
+		if (nPass < 7)
+		{
+			// The pixels known so far are on the grid of the next pass.
+			replicateBlocks(bitmap, ILMX[nPass + 1][STEPX], ILMX[nPass + 1][STEPY]);
+		}
+
+		return m_passListener.passCompleted(nPass, bitmap);
+	}
+
+	/**
+	 * Replicates each pixel on a grid to its block in place. The positions
+	 * overwritten are those of later passes, so they are replaced while decoding proceeds.
+	 *
+	 * @param bitmap The {@link Bitmap32} object to fill up.
+	 * @param nBlockWidth An int containing the grid step and block width.
+	 * @param nBlockHeight An int containing the grid step and block height.
+	 */
+	static void replicateBlocks(Bitmap32 bitmap, int nBlockWidth, int nBlockHeight)
+	{
+		final int[] anPixels = bitmap.getPixels();
+		final int nWidth = bitmap.getWidth(),
+				nHeight = bitmap.getHeight();
+
+		for (int nY = 0; nY < nHeight; nY += nBlockHeight)
+		{
+			final int nLineOffs = nY * nWidth;
+
+			if (nBlockWidth > 1)
+			{
+				for (int nX = 0; nX < nWidth; nX += nBlockWidth)
+				{
+					Arrays.fill(anPixels, nLineOffs + nX + 1, nLineOffs + Math.min(nX + nBlockWidth, nWidth), anPixels[nLineOffs + nX]);
+				}
+			}
+
+			for (int nLine = nY + 1, nEnd = Math.min(nY + nBlockHeight, nHeight); nLine < nEnd; nLine++)
+			{
+				System.arraycopy(anPixels, nLineOffs, anPixels, nLine * nWidth, nWidth);
+			}
+		}
+	}
+
+	/**
+	 * Calculates the bytes per scanline including the filter byte for the given pass.
+	 *
+	 * @param nPass An int containing the pass number. 0 if not interlaced, otherwise 1 - 7.
+	 * @param scanline The {@link Scanline32} object in use.
+	 * @return An int containing the bytes per line.
+	 */
+	int calcPassBytesPerLine(int nPass, Scanline32 scanline)
+	{
+		if (nPass == 0)
+		{
+			return scanline.getScanlineStride();
+		}
+
+		// Two steps of padding. Do not "optimize".
+		final int nPixels = (scanline.getBitmapWidth() + ILMX[nPass + 1][STEPX] - 1) / ILMX[nPass][STEPX];
+
+		return (nPixels * m_nBitsPerPixel + 7) / 8 + 1;
+	}
+
+	/**
+	 * Calculates the number of scanlines for the given pass.
+	 *
+	 * @param nPass An int containing the pass number. 0 if not interlaced, otherwise 1 - 7.
+	 * @param scanline The {@link Scanline32} object in use.
+	 * @return An int containing the number of lines.
+	 */
+	int calcPassHeight(int nPass, Scanline32 scanline)
+	{
+		if (nPass == 0)
+		{
+			return scanline.getBitmapHeight();
+		}
+
+		return (scanline.getBitmapHeight() + ILMX[nPass + 1][STEPY] - 1) / ILMX[nPass][STEPY];
 	}
 
 	/**
 	 * Deflates the given bitmap bytes, applies filtering and runs the interlacing passes if needed.
+	 * With an engine other than ZLIB the filtered data is collected and deflated by a {@link PngDeflater}.
 	 *
 	 * @param os The {@link OutputStream} to write to.
 	 * @param scanline The {@link Scanline32} object to read from.
@@ -205,12 +737,35 @@ public class PngIOCore
 	 */
 	public void deflate(OutputStream os, Scanline32 scanline) throws IOException
 	{
-		final int nFullBytesPerLine = scanline.getScanlineStride(),
-				nWidth = scanline.getBitmapWidth(),
-				nFullHeight = scanline.getBitmapHeight();
+		final boolean bEngine = m_options.getEngine() != PngEncodeOptions.Engine.ZLIB;
+
+		if (!bEngine && m_poolDeflate != null && m_nInterlaceMethod == 0)
+		{
+			final int nBytesPerLine = calcPassBytesPerLine(0, scanline),
+					nHeight = calcPassHeight(0, scanline),
+					nLinesPerBlock = Math.max(1, DEFLATE_BLOCK_SIZE / nBytesPerLine);
+
+			if (nBytesPerLine > 1 && nHeight > nLinesPerBlock)
+			{
+				deflateBlocks(os, scanline, nHeight, nLinesPerBlock);
+				return;
+			}
+		}
 
-		Deflater def = new Deflater(9);
-		DeflaterOutputStream dos = new DeflaterOutputStream(os, def);
+		endFilterTrial();
+
+		Deflater def = null;
+		OutputStream dos;
+
+		if (bEngine)
+		{
+			dos = new ByteArrayOutputStream(PngConstants.BUFFER_32K);
+		}
+		else
+		{
+			def = m_options.createDeflater(false);
+			dos = new DeflaterOutputStream(os, def);
+		}
 
 		int nPass = m_nInterlaceMethod == 0 ? 0 : 1;
 
@@ -220,24 +775,14 @@ public class PngIOCore
 
 			final int nOffsX = ILMX[nPass][OFFSX],
 					nStepX = ILMX[nPass][STEPX],
-					nPadX = ILMX[nPass + 1][STEPX] - 1,
 					nOffsY = ILMX[nPass][OFFSY],
 					nStepY = ILMX[nPass][STEPY],
-					nPadY = ILMX[nPass + 1][STEPY] - 1,
-					nBytesPerLine = nPass == 0 ? nFullBytesPerLine
-									// Two steps of padding. Do not "optimize".
-									: (nWidth + nPadX) / nStepX * m_nBitsPerPixel / 8 + 1,
-					nHeight = nPass == 0 ? nFullHeight : (nFullHeight + nPadY) / nStepY;
+					nBytesPerLine = calcPassBytesPerLine(nPass, scanline),
+					nHeight = nBytesPerLine > 1 ? calcPassHeight(nPass, scanline) : 0; // Empty passes have no scanlines
 
 			for (int nLine = 0; nLine < nHeight; nLine++)
 			{
-				scanline.read(m_abBuffer, 1, nOffsX, nStepX, nLine * nStepY + nOffsY);
-
-				// See recommendations in https://www.w3.org/TR/PNG/#12Filter-selection
-				if (m_colorType != PngColorType.INDEXED && m_nBitDepth >= 8)
-				{
-					applyFilter(nBytesPerLine);
-				}
+				filterLine(scanline, nOffsX, nStepX, nLine * nStepY + nOffsY, nBytesPerLine);
 
 				dos.write(m_abBuffer, 0, nBytesPerLine);
 			}
@@ -253,12 +798,138 @@ public class PngIOCore
 		}
 		while (true);
 
-		dos.finish();
+		if (bEngine)
+		{
+			final byte[] abFiltered = ((ByteArrayOutputStream)dos).toByteArray();
+
+			PngDeflater deflater = new PngDeflater(m_options);
+			deflater.setPool(m_poolDeflate);
+			deflater.deflate(abFiltered, abFiltered.length, os);
+		}
+		else
+		{
+			((DeflaterOutputStream)dos).finish();
+			def.end();
+		}
+
+		endFilterTrial();
+	}
+
+	/**
+	 * Deflates a non-interlaced bitmap in parallel blocks by the deflate pool and writes
+	 * them as a single zlib data stream. The Adler-32 checksum is combined from the blocks.
+	 * The zlib header is that of a sequential deflate with the same options.
+	 *
+	 * @param os The {@link OutputStream} to write to.
+	 * @param scanline The {@link Scanline32} object to read from.
+	 * @param nHeight An int containing the number of scanlines.
+	 * @param nLinesPerBlock An int containing the number of scanlines per block.
+	 * @throws IOException In the case of an IO problem.
+	 */
+	void deflateBlocks(OutputStream os, Scanline32 scanline, int nHeight, int nLinesPerBlock) throws IOException
+	{
+		final int nBlocks = (nHeight + nLinesPerBlock - 1) / nLinesPerBlock;
+		final DeflateBlockTask[] aTasks = new DeflateBlockTask[nBlocks];
+
+		for (int n = 0; n < nBlocks; n++)
+		{
+			final int nFirstLine = n * nLinesPerBlock;
+
+			aTasks[n] = new DeflateBlockTask(m_header, m_options, scanline, nFirstLine,
+					Math.min(nLinesPerBlock, nHeight - nFirstLine), n == nBlocks - 1);
+			m_poolDeflate.execute(aTasks[n]);
+		}
+
+		final int nZlibHeader = m_options.getZlibHeader();
+
+		os.write(nZlibHeader >>> 8);
+		os.write(nZlibHeader & 0xff);
+
+		long lAdler = 1;
+
+		try
+		{
+			for (DeflateBlockTask task : aTasks)
+			{
+				task.join();
+
+				os.write(task.m_abData);
+				lAdler = combineAdler32(lAdler, task.m_nAdler & 0xffffffffL, task.m_nLength);
+
+				task.m_abData = null;
+			}
+		}
+		finally
+		{
+			for (DeflateBlockTask task : aTasks)
+			{
+				task.cancel(false);
+			}
+		}
+
+		os.write((int)(lAdler >>> 24) & 0xff);
+		os.write((int)(lAdler >>> 16) & 0xff);
+		os.write((int)(lAdler >>> 8) & 0xff);
+		os.write((int)lAdler & 0xff);
+	}
+
+	/**
+	 * Combines the Adler-32 checksums of two consecutive pieces of data
+	 * to the checksum of the whole, like adler32_combine() of zlib.
+	 *
+	 * @param lAdler1 A long containing the checksum of the first piece.
+	 * @param lAdler2 A long containing the checksum of the second piece.
+	 * @param lLen2 A long containing the length of the second piece.
+	 * @return A long containing the combined checksum.
+	 */
+	static long combineAdler32(long lAdler1, long lAdler2, long lLen2)
+	{
+		final long lBase = 65521, // Largest prime smaller than 65536
+				lRem = lLen2 % lBase;
+
+		long lSum1 = lAdler1 & 0xffff,
+			lSum2 = (lRem * lSum1) % lBase;
+
+		lSum1 += (lAdler2 & 0xffff) + lBase - 1;
+		lSum2 += ((lAdler1 >>> 16) & 0xffff) + ((lAdler2 >>> 16) & 0xffff) + lBase - lRem;
+
+		if (lSum1 >= lBase) lSum1 -= lBase;
+		if (lSum1 >= lBase) lSum1 -= lBase;
+		if (lSum2 >= (lBase << 1)) lSum2 -= (lBase << 1);
+		if (lSum2 >= lBase) lSum2 -= lBase;
+
+		return lSum1 | (lSum2 << 16);
 	}
 
 	/**
-	 * Evaluates all 5 filters according recommendation by w3.org and uses the
-	 * filter buffer with the lowest sum.
+	 * Reads a scanline into the line buffer and filters it if applicable.
+	 *
+	 * @param scanline The {@link Scanline32} object to read from.
+	 * @param nOffsX An int containing the offset where to start reading.
+	 * @param nStepX An int containing the step width per pixel.
+	 * @param nLine An int containing the line number to read.
+	 * @param nBytesPerLine The current scanline stride.
+	 */
+	void filterLine(Scanline32 scanline, int nOffsX, int nStepX, int nLine, int nBytesPerLine)
+	{
+		scanline.read(m_abBuffer, 1, nOffsX, nStepX, nLine);
+
+		// See recommendations in https://www.w3.org/TR/PNG/#12Filter-selection
+		if (m_options.getFilterStrategy() != PngEncodeOptions.FilterStrategy.ADAPTIVE
+				|| (m_colorType != PngColorType.INDEXED && m_nBitDepth >= 8))
+		{
+			applyFilter(nBytesPerLine);
+		}
+		else
+		{
+			m_abBuffer[0] = (byte)FILTER_NONE;
+		}
+	}
+
+	/**
+	 * Applies the filter selected by the filter strategy of the encode options.
+	 * Unless a fixed filter is chosen, all 5 filters are evaluated and the
+	 * filter buffer with the lowest sum, entropy or trial size is used.
 	 *
 	 * @param nBytesPerLine The current scanline stride.
 	 *
@@ -268,29 +939,197 @@ public class PngIOCore
 	{
 		ensureFilterBuffers();
 
-		final int[] anSums =
+		final PngEncodeOptions.FilterStrategy filterStrategy = m_options.getFilterStrategy();
+
+		int nFilterBest = filterStrategy.getFixedFilter();
+
+		if (nFilterBest >= 0)
+		{
+			evalFilter(nFilterBest, nBytesPerLine);
+		}
+		else
 		{
-			evalFilterNone(1, nBytesPerLine),
-			evalFilterSub(1, nBytesPerLine),
-			evalFilterUp(1, nBytesPerLine),
-			evalFilterAverage(1, nBytesPerLine),
-			evalFilterPaeth(1, nBytesPerLine)
-		};
+			final int[] anSums =
+			{
+				evalFilterNone(1, nBytesPerLine),
+				evalFilterSub(1, nBytesPerLine),
+				evalFilterUp(1, nBytesPerLine),
+				evalFilterAverage(1, nBytesPerLine),
+				evalFilterPaeth(1, nBytesPerLine)
+			};
+
+			switch (filterStrategy)
+			{
+			case ENTROPY:
+				nFilterBest = selectFilterByEntropy(nBytesPerLine);
+				break;
+
+			case TRIAL:
+				nFilterBest = selectFilterByTrial(nBytesPerLine);
+				break;
+
+			default:
+				int nSumBest = Integer.MAX_VALUE;
+
+				for (int n = 0, nFilters = anSums.length; n < nFilters; n++)
+				{
+					if (anSums[n] < nSumBest)
+					{
+						nSumBest = anSums[n];
+						nFilterBest = n;
+					}
+				}
+			}
+		}
+
+		System.arraycopy(m_abBuffer, 1, m_abPrevLine, 0, nBytesPerLine - 1);
+		System.arraycopy(m_aabFilterBuffers[nFilterBest], 0, m_abBuffer, 0, nBytesPerLine);
+	}
+
+	/**
+	 * Evaluates a single filter into its filter buffer.
+	 *
+	 * @param nFilter An int containing the filter type 0 - 4.
+	 * @param nBytesPerLine The current scanline stride.
+	 * @return An int containing the sum of the bytes.
+	 */
+	int evalFilter(int nFilter, int nBytesPerLine)
+	{
+		switch (nFilter)
+		{
+		case FILTER_SUB: return evalFilterSub(1, nBytesPerLine);
+		case FILTER_UP: return evalFilterUp(1, nBytesPerLine);
+		case FILTER_AVERAGE: return evalFilterAverage(1, nBytesPerLine);
+		case FILTER_PAETH: return evalFilterPaeth(1, nBytesPerLine);
+		default: return evalFilterNone(1, nBytesPerLine);
+		}
+	}
+
+	/**
+	 * Selects the evaluated filter buffer with the lowest entropy of its bytes.
+	 * Since all buffers have the same length, the sum of c * log(c) over the
+	 * byte counts c is compared only.
+	 *
+	 * @param nBytesPerLine The current scanline stride.
+	 * @return An int containing the filter type 0 - 4.
+	 */
+	int selectFilterByEntropy(int nBytesPerLine)
+	{
+		if (m_anHistogram == null)
+		{
+			m_anHistogram = new int[256];
+		}
+
+		double dEntropyBest = Double.MAX_VALUE;
+		int nFilterBest = 0;
 
-		int nSumBest = Integer.MAX_VALUE,
+		for (int n = 0; n < m_aabFilterBuffers.length; n++)
+		{
+			final byte[] abFiltered = m_aabFilterBuffers[n];
+
+			Arrays.fill(m_anHistogram, 0);
+
+			for (int m = 1; m < nBytesPerLine; m++)
+			{
+				m_anHistogram[abFiltered[m] & 0xff]++;
+			}
+
+			double dEntropy = 0;
+
+			for (int nCount : m_anHistogram)
+			{
+				if (nCount > 1)
+				{
+					dEntropy -= nCount * Math.log(nCount);
+				}
+			}
+
+			if (dEntropy < dEntropyBest)
+			{
+				dEntropyBest = dEntropy;
+				nFilterBest = n;
+			}
+		}
+
+		return nFilterBest;
+	}
+
+	/**
+	 * Selects the evaluated filter buffer with the smallest output of a trial deflate.
+	 * The filtered scanlines chosen before are preset as dictionary, so the trial
+	 * comes close to the actual deflate.
+	 *
+	 * @param nBytesPerLine The current scanline stride.
+	 * @return An int containing the filter type 0 - 4.
+	 */
+	int selectFilterByTrial(int nBytesPerLine)
+	{
+		if (m_deflaterTrial == null)
+		{
+			m_deflaterTrial = m_options.createDeflater(true);
+			m_abTrialHistory = new byte[PngConstants.BUFFER_32K];
+			m_abTrialOutput = new byte[PngConstants.BUFFER_32K / 4];
+		}
+
+		int nSizeBest = Integer.MAX_VALUE,
 			nFilterBest = 0;
 
-		for (int n = 0, nFilters = anSums.length; n < nFilters; n++)
+		for (int n = 0; n < m_aabFilterBuffers.length; n++)
 		{
-			if (anSums[n] < nSumBest)
+			m_deflaterTrial.reset();
+
+			if (m_nTrialHistory > 0)
 			{
-				nSumBest = anSums[n];
+				m_deflaterTrial.setDictionary(m_abTrialHistory, m_abTrialHistory.length - m_nTrialHistory, m_nTrialHistory);
+			}
+
+			m_deflaterTrial.setInput(m_aabFilterBuffers[n], 0, nBytesPerLine);
+			m_deflaterTrial.finish();
+
+			int nSize = 0;
+			while (!m_deflaterTrial.finished() && nSize < nSizeBest)
+			{
+				nSize += m_deflaterTrial.deflate(m_abTrialOutput);
+			}
+
+			if (nSize < nSizeBest)
+			{
+				nSizeBest = nSize;
 				nFilterBest = n;
 			}
 		}
 
-		System.arraycopy(m_abBuffer, 1, m_abPrevLine, 0, nBytesPerLine - 1);
-		System.arraycopy(m_aabFilterBuffers[nFilterBest], 0, m_abBuffer, 0, nBytesPerLine);
+		// Keep the last 32K of the chosen scanlines, right aligned
+		final byte[] abChosen = m_aabFilterBuffers[nFilterBest];
+		final int nHistory = m_abTrialHistory.length;
+
+		if (nBytesPerLine >= nHistory)
+		{
+			System.arraycopy(abChosen, nBytesPerLine - nHistory, m_abTrialHistory, 0, nHistory);
+		}
+		else
+		{
+			System.arraycopy(m_abTrialHistory, nBytesPerLine, m_abTrialHistory, 0, nHistory - nBytesPerLine);
+			System.arraycopy(abChosen, 0, m_abTrialHistory, nHistory - nBytesPerLine, nBytesPerLine);
+		}
+
+		m_nTrialHistory = Math.min(nHistory, m_nTrialHistory + nBytesPerLine);
+
+		return nFilterBest;
+	}
+
+	/**
+	 * Releases the deflater of a trial filter selection, if any, and clears its history.
+	 */
+	void endFilterTrial()
+	{
+		if (m_deflaterTrial != null)
+		{
+			m_deflaterTrial.end();
+			m_deflaterTrial = null;
+		}
+
+		m_nTrialHistory = 0;
 	}
 
 	/**
@@ -0,0 +1,42 @@
+package de.unlixx.runpng.png.io;
+
+import de.unlixx.runpng.bitmap.Bitmap32;
+
+/**
+ * PngPassListener interface to listen to the Adam7 passes while decoding
+ * an interlaced bitmap by the {@link PngIOCore}.
+ *
+ * @author H. Unland (https://github.com/HUnland)
+ *
+   <!--
+   Copyright 2021 H. Unland (https://github.com/HUnland)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+   -->
+ *
+ */
+public interface PngPassListener
+{
+	/**
+	 * Invoked in the case an interlacing pass has been completed. The pixels still missing
+	 * are replicated from the known ones, block by block, so the bitmap is a coarse preview.
+	 * The bitmap will be overwritten by the following passes and thus needs to be copied
+	 * if it should be kept.
+	 *
+	 * @param nPass An int containing the pass number 1 - 7.
+	 * @param bitmap The {@link Bitmap32} object in decoding.
+	 * @return A boolean containing true to continue decoding, false to stop after this pass.
+	 * The bitmap remains as it is then.
+	 */
+	public boolean passCompleted(int nPass, Bitmap32 bitmap);
+}
@@ -0,0 +1,222 @@
+package de.unlixx.runpng.png.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+import de.unlixx.runpng.png.PngAnimationType;
+import de.unlixx.runpng.png.chunks.PngAnimationControl;
+import de.unlixx.runpng.png.chunks.PngFrameControl;
+import de.unlixx.runpng.png.chunks.PngHeader;
+import de.unlixx.runpng.png.chunks.PngText;
+
+/**
+ * PngProbe contains the metadata of a png file (animated or not): the header,
+ * the animation control, the frame controls and the text chunks. It is read
+ * by the chunk parser of the {@link PngChunkInputStream} in index mode, which
+ * skips the IDAT and fdAT data without reading or inflating it. So probing
+ * is fast enough to scan large numbers of files.
+ *
+ * @author H. Unland (https://github.com/HUnland)
+ *
+   <!--
+   Copyright 2021 H. Unland (https://github.com/HUnland)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+   -->
+ */
+public class PngProbe
+{
+	/**
+	 * Size of the read buffer while probing. The chunks of interest are small.
+	 */
+	public static final int BUFFER_SIZE = 0x2000; // 8 KB
+
+	final PngHeader m_header;
+	final PngAnimationType m_animationType;
+	final PngAnimationControl m_animationControl;
+	final List<PngFrameControl> m_listFrameControls = new ArrayList<>();
+	final List<PngText> m_listTextChunks = new ArrayList<>();
+	final long m_lTotalDuration;
+
+	/**
+	 * Package private constructor for this PngProbe.
+	 *
+	 * @param index A {@link PngChunkIndex} object read without file.
+	 */
+	PngProbe(PngChunkIndex index)
+	{
+		m_header = index.getHeader();
+		m_animationType = index.getAnimationType();
+		m_animationControl = index.getAnimationControl();
+
+		double dDuration = 0;
+
+		if (m_animationType != PngAnimationType.NONE)
+		{
+			for (int n = 0, nCount = index.getEntriesCount(); n < nCount; n++)
+			{
+				PngFrameControl fcTL = index.getEntry(n).getFrameControl();
+				if (fcTL != null)
+				{
+					m_listFrameControls.add(fcTL);
+
+					dDuration += 1000d * fcTL.getDelayNum() / (fcTL.getDelayDen() == 0 ? 100 : fcTL.getDelayDen());
+				}
+			}
+		}
+
+		m_lTotalDuration = Math.round(dDuration);
+
+		for (int n = 0, nCount = index.getTextChunksCount(); n < nCount; n++)
+		{
+			m_listTextChunks.add(index.getTextChunk(n));
+		}
+	}
+
+	/**
+	 * Probes a png file.
+	 *
+	 * @param file The {@link File} to probe.
+	 * @return A PngProbe object.
+	 * @throws IOException In case of an IO problem.
+	 * @throws DataFormatException In case of problems with the data format.
+	 */
+	public static PngProbe probe(File file) throws IOException, DataFormatException
+	{
+		return probe(new PngChannelInputStream(FileChannel.open(file.toPath(), StandardOpenOption.READ), false, BUFFER_SIZE));
+	}
+
+	/**
+	 * Probes a png data stream. The stream will be read up to the IEND chunk and closed.
+	 * The data chunks are skipped, which is fast if the stream supports skipping.
+	 *
+	 * @param is An {@link InputStream} to read from.
+	 * @return A PngProbe object.
+	 * @throws IOException In case of an IO problem.
+	 * @throws DataFormatException In case of problems with the data format.
+	 */
+	public static PngProbe probe(InputStream is) throws IOException, DataFormatException
+	{
+		try (PngChunkInputStream pcis = new PngChunkInputStream(is))
+		{
+			return new PngProbe(pcis.readIndex(null, null));
+		}
+	}
+
+	/**
+	 * Gets the header chunk (IHDR).
+	 *
+	 * @return A {@link PngHeader} object.
+	 */
+	public PngHeader getHeader()
+	{
+		return m_header;
+	}
+
+	/**
+	 * Gets the image width.
+	 *
+	 * @return An int containing the width.
+	 */
+	public int getWidth()
+	{
+		return m_header.getWidth();
+	}
+
+	/**
+	 * Gets the image height.
+	 *
+	 * @return An int containing the height.
+	 */
+	public int getHeight()
+	{
+		return m_header.getHeight();
+	}
+
+	/**
+	 * Gets the animation type.
+	 *
+	 * @return A {@link PngAnimationType} enum type.
+	 */
+	public PngAnimationType getAnimationType()
+	{
+		return m_animationType;
+	}
+
+	/**
+	 * Gets whether the file is an animated png.
+	 *
+	 * @return A boolean containing true if animated.
+	 */
+	public boolean isAnimated()
+	{
+		return m_animationType != PngAnimationType.NONE;
+	}
+
+	/**
+	 * Gets the animation control chunk (acTL).
+	 *
+	 * @return A {@link PngAnimationControl} object. Or null if none was read.
+	 */
+	public PngAnimationControl getAnimationControl()
+	{
+		return m_animationControl;
+	}
+
+	/**
+	 * Gets the frame controls (fcTL) of the animation frames in order.
+	 *
+	 * @return An unmodifiable list of {@link PngFrameControl} objects. Empty if not animated.
+	 */
+	public List<PngFrameControl> getFrameControls()
+	{
+		return Collections.unmodifiableList(m_listFrameControls);
+	}
+
+	/**
+	 * Gets the number of animation frames found.
+	 *
+	 * @return An int containing the number of frames. Zero if not animated.
+	 */
+	public int getFramesCount()
+	{
+		return m_listFrameControls.size();
+	}
+
+	/**
+	 * Gets the text chunks (tEXt, zTXt, iTXt).
+	 *
+	 * @return An unmodifiable list of {@link PngText} objects.
+	 */
+	public List<PngText> getTextChunks()
+	{
+		return Collections.unmodifiableList(m_listTextChunks);
+	}
+
+	/**
+	 * Gets the duration of a single play of the animation, which is the sum of the frame delays.
+	 *
+	 * @return A long containing the duration in milliseconds. Zero if not animated.
+	 */
+	public long getTotalDuration()
+	{
+		return m_lTotalDuration;
+	}
+}
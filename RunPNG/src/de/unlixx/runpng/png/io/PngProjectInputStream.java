@@ -38,6 +38,7 @@ import de.unlixx.runpng.util.Progress;
 public class PngProjectInputStream extends ZipInputStream
 {
 	protected PngProjectManager m_manager;
+	protected PngFrameCache m_cache;
 
 	/**
 	 * Constructor for this PngProjectInputStream.
@@ -49,6 +50,16 @@ public class PngProjectInputStream extends ZipInputStream
 		super(is);
 	}
 
+	/**
+	 * Sets a cache to put the original deflated data of the bitmaps of all sequences into.
+	 *
+	 * @param cache A {@link PngFrameCache} object. Or null, which is the default.
+	 */
+	public void setFrameCache(PngFrameCache cache)
+	{
+		m_cache = cache;
+	}
+
 	/**
 	 * Reads the whole PngProject content from the zip input stream.
 	 *
@@ -85,6 +96,7 @@ public class PngProjectInputStream extends ZipInputStream
 			else if (strName.endsWith(".png"))
 			{
 				PngChunkInputStream pcis = new PngChunkInputStream(new ByteArrayInputStream(bos.toByteArray()));
+				pcis.setFrameCache(m_cache);
 				m_manager.addNamedSequence(strName, pcis.read(progress));
 			}
 
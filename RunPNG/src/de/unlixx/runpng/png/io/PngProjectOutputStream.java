@@ -41,6 +41,8 @@ import de.unlixx.runpng.util.Progress;
 public class PngProjectOutputStream extends ZipOutputStream
 {
 	PngProjectManager m_manager;
+	PngEncodeOptions m_options = PngEncodeOptions.MAXIMUM;
+	PngFrameCache m_cache;
 
 	/**
 	 * Constructor for this PngProjectOutputStream.
@@ -56,6 +58,39 @@ public class PngProjectOutputStream extends ZipOutputStream
 		setComment(App.APP_NAME);
 	}
 
+	/**
+	 * Sets the options for deflating the png files and the zip entries.
+	 * The zip level follows the compression preset.
+	 *
+	 * @param options A {@link PngEncodeOptions} object. {@link PngEncodeOptions#MAXIMUM} is the default.
+	 */
+	public void setEncodeOptions(PngEncodeOptions options)
+	{
+		m_options = options != null ? options : PngEncodeOptions.MAXIMUM;
+
+		setLevel(m_options.getLevel());
+	}
+
+	/**
+	 * Gets the options for deflating the png files and the zip entries.
+	 *
+	 * @return A {@link PngEncodeOptions} object.
+	 */
+	public PngEncodeOptions getEncodeOptions()
+	{
+		return m_options;
+	}
+
+	/**
+	 * Sets a cache for the deflated data of the bitmaps of all sequences.
+	 *
+	 * @param cache A {@link PngFrameCache} object. Or null to deflate all bitmaps, which is the default.
+	 */
+	public void setFrameCache(PngFrameCache cache)
+	{
+		m_cache = cache;
+	}
+
 	/**
 	 * Simple prediction of the step count for save.
 	 *
@@ -102,6 +137,34 @@ public class PngProjectOutputStream extends ZipOutputStream
 		int nSteps = calcStepsForSave();
 		progress.updateProgress(0, nSteps);
 
+		if (m_cache != null)
+		{
+			// All sequences are one save for the cache
+			m_cache.begin();
+		}
+
+		try
+		{
+			writeFiles(progress);
+		}
+		finally
+		{
+			if (m_cache != null)
+			{
+				m_cache.end();
+			}
+		}
+	}
+
+	/**
+	 * Writes the files described by the project manager to the zip output stream.
+	 *
+	 * @param progress A {@link Progress} object to update the visual progress indicator.
+	 * @throws IOException In case of an IO problem.
+	 * @throws DataFormatException In case of problems with the data format.
+	 */
+	void writeFiles(Progress<?> progress) throws IOException, DataFormatException
+	{
 		List<Element> files = m_manager.getFileDescriptions();
 		if (files != null)
 		{
@@ -158,6 +221,8 @@ public class PngProjectOutputStream extends ZipOutputStream
 		ByteArrayOutputStream bos = new ByteArrayOutputStream();
 		try (PngChunkOutputStream pcos = new PngChunkOutputStream(bos))
 		{
+			pcos.setEncodeOptions(m_options);
+			pcos.setFrameCache(m_cache);
 			pcos.write(sequence, progress);
 		}
 
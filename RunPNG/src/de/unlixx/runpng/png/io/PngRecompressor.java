@@ -0,0 +1,510 @@
+package de.unlixx.runpng.png.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.DataFormatException;
+
+import de.unlixx.runpng.bitmap.Bitmap32;
+import de.unlixx.runpng.bitmap.Bitmap32Optimizer;
+import de.unlixx.runpng.bitmap.Bitmap32Sequence;
+import de.unlixx.runpng.png.PngAnimationType;
+import de.unlixx.runpng.png.PngColorType;
+import de.unlixx.runpng.png.chunks.PngAnimationControl;
+import de.unlixx.runpng.png.chunks.PngFrameControl;
+import de.unlixx.runpng.png.chunks.PngHeader;
+import de.unlixx.runpng.util.Progress;
+import de.unlixx.runpng.util.exceptions.Failure;
+
+/**
+ * PngRecompressor optimizes existing png and apng files losslessly, without any user interface.
+ * A file is read with composited frames, then optimized for consecutive frames and color type
+ * and encoded again, just like a save of the application. The result is decoded once more
+ * and compared to the original frames and timing before anything is written. Only if it is
+ * smaller it replaces the original data.
+ * <p>
+ * Files with 16 bit samples are skipped, since a {@link Bitmap32} holds 8 bits per sample.
+ * So are files with chunks ignored by the reader, like gAMA, iCCP or unknown ones, since
+ * they would not be kept. The colors of fully transparent pixels may change.
+ * <p>
+ * An object of this class may be used by several threads in parallel.
+ *
+ * @author H. Unland (https://github.com/HUnland)
+ *
+   <!--
+   Copyright 2021 H. Unland (https://github.com/HUnland)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+   -->
+ */
+public class PngRecompressor
+{
+	/**
+	 * This enum depicts the outcome of a recompression.
+	 */
+	public static enum Status
+	{
+		/** The recompressed data was smaller and has been written. */
+		RECOMPRESSED,
+		/** The recompressed data was not smaller. The original data has been kept. */
+		KEPT,
+		/** The file has 16 bit samples or ignored chunks and cannot be recompressed losslessly. */
+		SKIPPED
+	}
+
+	/**
+	 * Result of a single file.
+	 */
+	public static class Result
+	{
+		final File m_file;
+		final Status m_status;
+		final long m_lSizeBefore;
+		final long m_lSizeAfter;
+		final long m_lMillis;
+
+		/**
+		 * Constructor for this Result.
+		 *
+		 * @param file The {@link File} read.
+		 * @param status The {@link Status} of the recompression.
+		 * @param lSizeBefore A long containing the original size in bytes.
+		 * @param lSizeAfter A long containing the size written in bytes.
+		 * @param lMillis A long containing the time taken in milliseconds.
+		 */
+		Result(File file, Status status, long lSizeBefore, long lSizeAfter, long lMillis)
+		{
+			m_file = file;
+			m_status = status;
+			m_lSizeBefore = lSizeBefore;
+			m_lSizeAfter = lSizeAfter;
+			m_lMillis = lMillis;
+		}
+
+		/**
+		 * Gets the file read.
+		 *
+		 * @return A {@link File} object.
+		 */
+		public File getFile()
+		{
+			return m_file;
+		}
+
+		/**
+		 * Gets the outcome of the recompression.
+		 *
+		 * @return A {@link Status} enum type.
+		 */
+		public Status getStatus()
+		{
+			return m_status;
+		}
+
+		/**
+		 * Gets the original size.
+		 *
+		 * @return A long containing the number of bytes.
+		 */
+		public long getSizeBefore()
+		{
+			return m_lSizeBefore;
+		}
+
+		/**
+		 * Gets the size written. This is the original size unless recompressed.
+		 *
+		 * @return A long containing the number of bytes.
+		 */
+		public long getSizeAfter()
+		{
+			return m_lSizeAfter;
+		}
+
+		/**
+		 * Gets the time taken.
+		 *
+		 * @return A long containing the milliseconds.
+		 */
+		public long getMillis()
+		{
+			return m_lMillis;
+		}
+	}
+
+	/**
+	 * Internally used snapshot of everything visible of a sequence, to be compared after recompression.
+	 */
+	static class Snapshot
+	{
+		final PngAnimationType m_animType;
+		final int m_nNumPlays;
+		final int[] m_anDefault;
+		final List<int[]> m_listFrames = new ArrayList<>();
+		final List<Integer> m_listStarts = new ArrayList<>();
+		int m_nDuration;
+
+		/**
+		 * Constructor for this Snapshot. Copies the pixels of a composited sequence.
+		 *
+		 * @param sequence A {@link Bitmap32Sequence} object with composited frames.
+		 */
+		Snapshot(Bitmap32Sequence sequence)
+		{
+			m_animType = sequence.getAnimationType();
+
+			PngAnimationControl acTL = sequence.getAnimationControl();
+			m_nNumPlays = m_animType != PngAnimationType.NONE && acTL != null ? acTL.getNumPlays() : 0;
+
+			// The default bitmap is one of the frames if ANIMATED.
+			m_anDefault = m_animType != PngAnimationType.ANIMATED ? sequence.getDefaultBitmap().getPixels().clone() : null;
+
+			if (m_animType != PngAnimationType.NONE)
+			{
+				for (int n = 0, nFrames = sequence.getFramesCount(); n < nFrames; n++)
+				{
+					Bitmap32 bitmap = sequence.getFrame(n);
+					PngFrameControl fcTL = bitmap.getFrameControl();
+
+					m_listFrames.add(bitmap.getPixels().clone());
+					m_listStarts.add(m_nDuration);
+					m_nDuration += fcTL != null ? fcTL.getDelayFraction().getDelayMillis() : 0;
+				}
+			}
+		}
+
+		/**
+		 * Tells whether another snapshot shows exactly the same. Consecutive frames of this
+		 * snapshot may be merged in the other one, as long as the timing stays the same.
+		 *
+		 * @param other The {@link Snapshot} of the recompressed sequence.
+		 * @return A boolean containing true if both are equal.
+		 */
+		boolean matches(Snapshot other)
+		{
+			if (m_animType != other.m_animType || m_nNumPlays != other.m_nNumPlays || m_nDuration != other.m_nDuration
+					|| m_listFrames.size() < other.m_listFrames.size())
+			{
+				return false;
+			}
+
+			if (m_anDefault != null && !equalPixels(m_anDefault, other.m_anDefault))
+			{
+				return false;
+			}
+
+			int nOther = -1;
+			for (int n = 0, nFrames = m_listFrames.size(); n < nFrames; n++)
+			{
+				int nStart = m_listStarts.get(n);
+
+				// A frame of the other snapshot begins with the first of the merged frames.
+				if (nOther + 1 < other.m_listStarts.size() && other.m_listStarts.get(nOther + 1) == nStart)
+				{
+					nOther++;
+				}
+				else if (nOther < 0)
+				{
+					return false;
+				}
+
+				if (!equalPixels(m_listFrames.get(n), other.m_listFrames.get(nOther)))
+				{
+					return false;
+				}
+			}
+
+			return nOther == other.m_listFrames.size() - 1;
+		}
+
+		/**
+		 * Internally used to compare pixels. The colors of fully transparent pixels do not matter.
+		 *
+		 * @param an1 An int array containing ARGB values.
+		 * @param an2 An int array containing ARGB values.
+		 * @return A boolean containing true if equal.
+		 */
+		static boolean equalPixels(int[] an1, int[] an2)
+		{
+			if (an1 == null || an2 == null || an1.length != an2.length)
+			{
+				return false;
+			}
+
+			for (int n = 0; n < an1.length; n++)
+			{
+				if (an1[n] != an2[n] && ((an1[n] | an2[n]) >>> 24) != 0)
+				{
+					return false;
+				}
+			}
+
+			return true;
+		}
+	}
+
+	PngEncodeOptions m_options = PngEncodeOptions.MAXIMUM;
+	long m_lSqueezeBudget;
+	ForkJoinPool m_pool;
+
+	/**
+	 * Sets the encode options.
+	 *
+	 * @param options A {@link PngEncodeOptions} object. Or null for {@link PngEncodeOptions#MAXIMUM}.
+	 */
+	public void setEncodeOptions(PngEncodeOptions options)
+	{
+		m_options = options != null ? options : PngEncodeOptions.MAXIMUM;
+	}
+
+	/**
+	 * Gets the encode options.
+	 *
+	 * @return A {@link PngEncodeOptions} object.
+	 */
+	public PngEncodeOptions getEncodeOptions()
+	{
+		return m_options;
+	}
+
+	/**
+	 * Sets the time budget for searching the best encode options per file by a {@link PngSqueezer}.
+	 *
+	 * @param lSqueezeBudget A long containing the milliseconds per file. Or 0 to encode with the encode options.
+	 */
+	public void setSqueezeBudget(long lSqueezeBudget)
+	{
+		m_lSqueezeBudget = Math.max(0, lSqueezeBudget);
+	}
+
+	/**
+	 * Gets the time budget for searching the best encode options per file.
+	 *
+	 * @return A long containing the milliseconds per file. Or 0 if not squeezing.
+	 */
+	public long getSqueezeBudget()
+	{
+		return m_lSqueezeBudget;
+	}
+
+	/**
+	 * Sets a pool to decode and encode the bitmaps of a single file in parallel.
+	 * There is no need for it when several files are recompressed in parallel anyway.
+	 *
+	 * @param pool A {@link ForkJoinPool} object. Or null to do it in the calling thread.
+	 */
+	public void setPool(ForkJoinPool pool)
+	{
+		m_pool = pool;
+	}
+
+	/**
+	 * Gets the pool to decode and encode the bitmaps of a single file in parallel.
+	 *
+	 * @return A {@link ForkJoinPool} object. Or null.
+	 */
+	public ForkJoinPool getPool()
+	{
+		return m_pool;
+	}
+
+	/**
+	 * Recompresses a single file. The output file receives the recompressed data if it is smaller,
+	 * otherwise a copy of the original data. If it is the input file itself, it is replaced only
+	 * by smaller data.
+	 *
+	 * @param fileIn The png {@link File} to read.
+	 * @param fileOut The {@link File} to write. May be the input file.
+	 * @return A {@link Result} object.
+	 * @throws IOException In case of IO problems.
+	 * @throws DataFormatException In case of data format problems.
+	 */
+	public Result recompress(File fileIn, File fileOut) throws IOException, DataFormatException
+	{
+		final long lStart = System.currentTimeMillis();
+		final long lSizeBefore = fileIn.length();
+		final boolean bInPlace = fileIn.getCanonicalFile().equals(fileOut.getCanonicalFile());
+
+		final PngChunkInputStream pcis = new PngChunkInputStream(new PngChannelInputStream(fileIn));
+		Bitmap32Sequence sequence = read(pcis);
+
+		PngHeader header = sequence.getHeader();
+		if (header.getBitDepth() > 8 || pcis.getIgnoredChunksCount() > 0)
+		{
+			if (!bInPlace)
+			{
+				copy(fileIn, fileOut);
+			}
+
+			return new Result(fileIn, Status.SKIPPED, lSizeBefore, lSizeBefore, System.currentTimeMillis() - lStart);
+		}
+
+		final Snapshot snapshot = new Snapshot(sequence);
+
+		// Starts over like a sequence of the application.
+		sequence.setHeader(new PngHeader(header.getWidth(), header.getHeight(), 8, PngColorType.TRUECOLOR_ALPHA,
+				header.getCompressionMethod(), header.getFilterMethod(), header.getInterlaceMethod()));
+		sequence.setPalette(null);
+		sequence.setTransparency(null);
+		sequence.setOptimized(false);
+
+		if (sequence.isAnimated())
+		{
+			// Without the operators of the file, since the frames are composited.
+			for (int n = 0, nFrames = sequence.getFramesCount(); n < nFrames; n++)
+			{
+				Bitmap32 bitmap = sequence.getFrame(n);
+				PngFrameControl fcTL = bitmap.getFrameControl();
+
+				bitmap.setFrameControl(new PngFrameControl(bitmap.getWidth(), bitmap.getHeight(), 0, 0,
+						fcTL.getDelayNum(), fcTL.getDelayDen()));
+			}
+
+			Bitmap32Optimizer.optimize(sequence);
+		}
+
+		Bitmap32Optimizer.optimizeColorType(sequence);
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream((int)Math.min(Integer.MAX_VALUE - 8, lSizeBefore));
+		try (PngChunkOutputStream pcos = new PngChunkOutputStream(bos))
+		{
+			pcos.setEncodePool(m_pool);
+			pcos.setEncodeOptions(m_options);
+
+			if (m_lSqueezeBudget > 0)
+			{
+				PngSqueezer squeezer = new PngSqueezer(m_lSqueezeBudget, false);
+				squeezer.setPool(m_pool);
+				pcos.setSqueezer(squeezer);
+			}
+
+			pcos.write(sequence, null);
+		}
+
+		sequence = null; // Not needed anymore
+
+		final byte[] ab = bos.toByteArray();
+		bos = null;
+
+		if (ab.length >= lSizeBefore)
+		{
+			if (!bInPlace)
+			{
+				copy(fileIn, fileOut);
+			}
+
+			return new Result(fileIn, Status.KEPT, lSizeBefore, lSizeBefore, System.currentTimeMillis() - lStart);
+		}
+
+		if (!snapshot.matches(new Snapshot(read(new PngChunkInputStream(new ByteArrayInputStream(ab))))))
+		{
+			throw new Failure("failure.recompress.mismatch");
+		}
+
+		write(ab, fileOut, fileIn);
+
+		return new Result(fileIn, Status.RECOMPRESSED, lSizeBefore, ab.length, System.currentTimeMillis() - lStart);
+	}
+
+	/**
+	 * Internally used to read a sequence with composited frames and close the stream.
+	 *
+	 * @param pcis A {@link PngChunkInputStream} object.
+	 * @return A {@link Bitmap32Sequence} object.
+	 * @throws IOException In case of IO problems.
+	 * @throws DataFormatException In case of data format problems.
+	 */
+	Bitmap32Sequence read(PngChunkInputStream pcis) throws IOException, DataFormatException
+	{
+		try
+		{
+			pcis.setDecodePool(m_pool);
+			pcis.setComposite(true);
+
+			return pcis.read((Progress<?>)null);
+		}
+		finally
+		{
+			pcis.close();
+		}
+	}
+
+	/**
+	 * Internally used to write data to a file. The data goes to a temporary file
+	 * in the same directory first, which replaces the file when complete. The file
+	 * gets the permissions of the original file, since a temporary file is private.
+	 *
+	 * @param ab A byte array containing the data.
+	 * @param file The {@link File} to write.
+	 * @param fileOriginal The original {@link File} to take the permissions from. May be the file to write.
+	 * @throws IOException In case of IO problems.
+	 */
+	static void write(byte[] ab, File file, File fileOriginal) throws IOException
+	{
+		final File fileDir = file.getAbsoluteFile().getParentFile();
+		final Path pathTemp = Files.createTempFile(fileDir.toPath(), file.getName(), ".tmp");
+
+		try
+		{
+			try (PngChannelOutputStream pcos = new PngChannelOutputStream(pathTemp.toFile()))
+			{
+				pcos.write(ab);
+			}
+
+			copyPermissions(fileOriginal.toPath(), pathTemp);
+
+			Files.move(pathTemp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		finally
+		{
+			Files.deleteIfExists(pathTemp);
+		}
+	}
+
+	/**
+	 * Internally used to copy the POSIX permissions of a file to another one,
+	 * if supported by the file system.
+	 *
+	 * @param pathFrom The {@link Path} of the file to take the permissions from.
+	 * @param pathTo The {@link Path} of the file to set the permissions to.
+	 * @throws IOException In case of IO problems.
+	 */
+	static void copyPermissions(Path pathFrom, Path pathTo) throws IOException
+	{
+		PosixFileAttributeView view = Files.getFileAttributeView(pathFrom, PosixFileAttributeView.class);
+		if (view != null)
+		{
+			Files.setPosixFilePermissions(pathTo, view.readAttributes().permissions());
+		}
+	}
+
+	/**
+	 * Internally used to copy the original data to the output file.
+	 *
+	 * @param fileIn The {@link File} to read.
+	 * @param fileOut The {@link File} to write.
+	 * @throws IOException In case of IO problems.
+	 */
+	static void copy(File fileIn, File fileOut) throws IOException
+	{
+		Files.copy(fileIn.toPath(), fileOut.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+}
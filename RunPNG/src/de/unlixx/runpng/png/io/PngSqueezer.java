@@ -0,0 +1,484 @@
+package de.unlixx.runpng.png.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.unlixx.runpng.bitmap.Scanline32;
+import de.unlixx.runpng.png.PngConstants;
+import de.unlixx.runpng.png.chunks.PngHeader;
+
+/**
+ * PngSqueezer searches the smallest deflated data of each bitmap while writing a png file
+ * by the {@link PngChunkOutputStream}. Each bitmap is deflated with all combinations of
+ * compression presets, deflate strategies and filter strategies, in parallel by a pool.
+ * The interlace method is searched for the first bitmap only, since it applies to all.
+ * <p>
+ * The search is bounded by a time budget for all bitmaps, which is shared out
+ * among the bitmaps not yet squeezed. No combination is started after the share
+ * of a bitmap is spent, but the encode options given are always tried.
+ * The budget is a soft limit. A combination already started is not interrupted,
+ * so a slow one may overrun it by its own duration.
+ *
+ * @author H. Unland (https://github.com/HUnland)
+ *
+   <!--
+   Copyright 2021 H. Unland (https://github.com/HUnland)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+   -->
+ */
+public class PngSqueezer
+{
+	/**
+	 * Default time budget in milliseconds.
+	 */
+	public static final long DEFAULT_TIME_BUDGET = 30000; // 30 seconds
+
+	/**
+	 * Result contains the outcome of squeezing a single bitmap.
+	 */
+	public static class Result
+	{
+		final int m_nBitmap;
+		final int m_nDefaultSize;
+		final int m_nSize;
+		final PngEncodeOptions m_options;
+		final int m_nInterlaceMethod;
+		final int m_nTried;
+
+		/**
+		 * Constructor for this Result.
+		 *
+		 * @param nBitmap An int containing the index of the bitmap in the order of the data chunks.
+		 * @param nDefaultSize An int containing the size with the encode options given.
+		 * @param nSize An int containing the smallest size found.
+		 * @param options The {@link PngEncodeOptions} of the smallest size.
+		 * @param nInterlaceMethod An int containing the interlace method of the smallest size.
+		 * @param nTried An int containing the number of combinations tried.
+		 */
+		Result(int nBitmap, int nDefaultSize, int nSize, PngEncodeOptions options, int nInterlaceMethod, int nTried)
+		{
+			m_nBitmap = nBitmap;
+			m_nDefaultSize = nDefaultSize;
+			m_nSize = nSize;
+			m_options = options;
+			m_nInterlaceMethod = nInterlaceMethod;
+			m_nTried = nTried;
+		}
+
+		/**
+		 * Gets the index of the bitmap in the order of the data chunks.
+		 * For a not animated png file and a png file with skipped first frame
+		 * the index 0 is the default image, which is not part of the animation.
+		 *
+		 * @return An int containing the index.
+		 */
+		public int getBitmapIndex()
+		{
+			return m_nBitmap;
+		}
+
+		/**
+		 * Gets the size of the deflated data with the encode options given.
+		 *
+		 * @return An int containing the size in bytes.
+		 */
+		public int getDefaultSize()
+		{
+			return m_nDefaultSize;
+		}
+
+		/**
+		 * Gets the smallest size of the deflated data found.
+		 *
+		 * @return An int containing the size in bytes.
+		 */
+		public int getSize()
+		{
+			return m_nSize;
+		}
+
+		/**
+		 * Gets the saving compared to the encode options given.
+		 *
+		 * @return An int containing the saving in bytes.
+		 */
+		public int getSaving()
+		{
+			return m_nDefaultSize - m_nSize;
+		}
+
+		/**
+		 * Gets the encode options which resulted in the smallest size.
+		 *
+		 * @return A {@link PngEncodeOptions} object.
+		 */
+		public PngEncodeOptions getOptions()
+		{
+			return m_options;
+		}
+
+		/**
+		 * Gets the interlace method which resulted in the smallest size.
+		 *
+		 * @return Either 0 for none or 1 for Adam7.
+		 */
+		public int getInterlaceMethod()
+		{
+			return m_nInterlaceMethod;
+		}
+
+		/**
+		 * Gets the number of combinations tried within the time budget.
+		 *
+		 * @return An int containing the number of combinations.
+		 */
+		public int getTriedCount()
+		{
+			return m_nTried;
+		}
+	}
+
+	/**
+	 * SqueezeTask deflates a bitmap with a few combinations of encode options one after
+	 * the other in a pool thread. The deadline is checked before each combination.
+	 * The deflated data is kept only if it is the smallest so far.
+	 */
+	static class SqueezeTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		final PngHeader m_header;
+		final List<PngEncodeOptions> m_listOptions;
+		final Scanline32 m_scanline;
+		final AtomicInteger m_nSmallest;
+		final long m_lDeadline;
+		final boolean m_bForced;
+		byte[] m_abData;
+		int m_nSize = -1;
+		int m_nFirstSize = -1;
+		int m_nTried;
+		PngEncodeOptions m_options;
+		IOException m_exception;
+
+		/**
+		 * Constructor for this SqueezeTask.
+		 *
+		 * @param header A {@link PngHeader} object.
+		 * @param listOptions A list of {@link PngEncodeOptions} objects to try in this order.
+		 * @param scanline The {@link Scanline32} object to read from. It is shared, but read only.
+		 * @param nSmallest An {@link AtomicInteger} containing the smallest size so far, shared by the tasks of a bitmap.
+		 * @param lDeadline A long containing the time in milliseconds after which no further combination is started.
+		 * @param bForced A boolean containing true if the first combination is tried regardless of the deadline.
+		 */
+		SqueezeTask(PngHeader header, List<PngEncodeOptions> listOptions, Scanline32 scanline, AtomicInteger nSmallest, long lDeadline, boolean bForced)
+		{
+			m_header = header;
+			m_listOptions = listOptions;
+			m_scanline = scanline;
+			m_nSmallest = nSmallest;
+			m_lDeadline = lDeadline;
+			m_bForced = bForced;
+		}
+
+		@Override
+		protected void compute()
+		{
+			try
+			{
+				for (PngEncodeOptions options : m_listOptions)
+				{
+					if ((m_nTried > 0 || !m_bForced) && System.currentTimeMillis() > m_lDeadline)
+					{
+						break;
+					}
+
+					PngIOCore pngIOCore = new PngIOCore(m_header);
+					pngIOCore.setEncodeOptions(options);
+
+					ByteArrayOutputStream bos = new ByteArrayOutputStream(PngConstants.BUFFER_32K);
+					pngIOCore.deflate(bos, m_scanline);
+
+					int nSize = bos.size();
+					if (m_nTried++ == 0)
+					{
+						m_nFirstSize = nSize;
+					}
+
+					int nSmallest;
+					while (nSize < (nSmallest = m_nSmallest.get()))
+					{
+						if (m_nSmallest.compareAndSet(nSmallest, nSize))
+						{
+							m_abData = bos.toByteArray();
+							m_nSize = nSize;
+							m_options = options;
+							break;
+						}
+					}
+				}
+			}
+			catch (IOException e)
+			{
+				m_exception = e;
+			}
+		}
+	}
+
+	final long m_lTimeBudget;
+	final boolean m_bInterlace;
+
+	ForkJoinPool m_pool;
+
+	PngHeader m_header;
+	PngEncodeOptions m_options;
+	long m_lEnd;
+	int m_nBitmaps;
+	final List<Result> m_listResults = new ArrayList<>();
+
+	/**
+	 * Constructor for this PngSqueezer.
+	 *
+	 * @param lTimeBudget A long containing the time budget for all bitmaps in milliseconds.
+	 * @param bInterlace A boolean containing true to search the interlace method as well.
+	 */
+	public PngSqueezer(long lTimeBudget, boolean bInterlace)
+	{
+		m_lTimeBudget = lTimeBudget;
+		m_bInterlace = bInterlace;
+	}
+
+	/**
+	 * Sets the pool to deflate the combinations in parallel.
+	 *
+	 * @param pool A {@link ForkJoinPool} object. Or null to use the common pool.
+	 */
+	public void setPool(ForkJoinPool pool)
+	{
+		m_pool = pool;
+	}
+
+	/**
+	 * Gets the pool to deflate the combinations in parallel.
+	 *
+	 * @return A {@link ForkJoinPool} object.
+	 */
+	public ForkJoinPool getPool()
+	{
+		return m_pool != null ? m_pool : ForkJoinPool.commonPool();
+	}
+
+	/**
+	 * Gets the time budget.
+	 *
+	 * @return A long containing the time budget for all bitmaps in milliseconds.
+	 */
+	public long getTimeBudget()
+	{
+		return m_lTimeBudget;
+	}
+
+	/**
+	 * Gets whether the interlace method is searched as well.
+	 *
+	 * @return A boolean containing true if searched.
+	 */
+	public boolean isInterlaceSearched()
+	{
+		return m_bInterlace;
+	}
+
+	/**
+	 * Begins squeezing the bitmaps of a png file. The time budget starts now.
+	 *
+	 * @param header A {@link PngHeader} object of the png file.
+	 * @param options The {@link PngEncodeOptions} which are tried first.
+	 * @param nBitmaps An int containing the number of bitmaps to squeeze.
+	 */
+	void begin(PngHeader header, PngEncodeOptions options, int nBitmaps)
+	{
+		m_header = header;
+		m_options = options;
+		m_nBitmaps = nBitmaps;
+		m_lEnd = System.currentTimeMillis() + m_lTimeBudget;
+		m_listResults.clear();
+	}
+
+	/**
+	 * Gets the header of the png file. After squeezing the first bitmap
+	 * the interlace method may differ from the header given to begin with.
+	 *
+	 * @return A {@link PngHeader} object.
+	 */
+	public PngHeader getHeader()
+	{
+		return m_header;
+	}
+
+	/**
+	 * Squeezes the next bitmap. The share of the time budget is the remaining
+	 * time divided by the number of bitmaps remaining.
+	 *
+	 * @param scanline The {@link Scanline32} object to read from. It must not be changed while squeezing.
+	 * @return A byte array containing the smallest deflated data found.
+	 * @throws IOException In case of IO problems while deflating.
+	 */
+	byte[] squeeze(Scanline32 scanline) throws IOException
+	{
+		final long lNow = System.currentTimeMillis(),
+				lDeadline = lNow + Math.max(0, m_lEnd - lNow) / Math.max(1, m_nBitmaps - m_listResults.size());
+
+		final List<PngHeader> listHeaders = new ArrayList<>();
+		listHeaders.add(m_header);
+
+		if (m_bInterlace && m_listResults.isEmpty())
+		{
+			listHeaders.add(new PngHeader(m_header.getWidth(), m_header.getHeight(), m_header.getBitDepth(), m_header.getColorType(),
+					m_header.getCompressionMethod(), m_header.getFilterMethod(), m_header.getInterlaceMethod() == 0 ? 1 : 0));
+		}
+
+		final List<PngEncodeOptions> listCandidates = createCandidates(m_options);
+		final AtomicInteger nSmallest = new AtomicInteger(Integer.MAX_VALUE);
+		final List<SqueezeTask> listTasks = new ArrayList<>();
+
+		// A few combinations per task, so the deadline is checked between them.
+		final int nGroup = PngEncodeOptions.Strategy.values().length;
+		for (int n = 0; n < listCandidates.size(); n += nGroup)
+		{
+			List<PngEncodeOptions> listOptions = listCandidates.subList(n, Math.min(n + nGroup, listCandidates.size()));
+			for (PngHeader header : listHeaders)
+			{
+				// The options given are always tried.
+				SqueezeTask task = new SqueezeTask(header, listOptions, scanline, nSmallest, lDeadline, listTasks.isEmpty());
+				listTasks.add(task);
+			}
+		}
+
+		final ForkJoinPool pool = getPool();
+		for (SqueezeTask task : listTasks)
+		{
+			pool.execute(task);
+		}
+
+		SqueezeTask taskBest = null;
+		int nTried = 0;
+
+		for (SqueezeTask task : listTasks)
+		{
+			task.join();
+
+			if (task.m_exception != null)
+			{
+				throw task.m_exception;
+			}
+
+			nTried += task.m_nTried;
+
+			// Only the tasks which have been the smallest at their time keep their data.
+			if (task.m_abData != null && (taskBest == null || task.m_nSize < taskBest.m_nSize))
+			{
+				taskBest = task;
+			}
+		}
+
+		m_header = taskBest.m_header;
+
+		m_listResults.add(new Result(m_listResults.size(), listTasks.get(0).m_nFirstSize, taskBest.m_nSize,
+				taskBest.m_options, m_header.getInterlaceMethod(), nTried));
+
+		return taskBest.m_abData;
+	}
+
+	/**
+	 * Creates the combinations of encode options to try. The options given come first,
+	 * followed by the others ordered roughly by their chances to win and their speed.
+	 *
+	 * @param options The {@link PngEncodeOptions} to try first.
+	 * @return A list of {@link PngEncodeOptions} objects.
+	 */
+	static List<PngEncodeOptions> createCandidates(PngEncodeOptions options)
+	{
+		final PngEncodeOptions.Preset[] aPresets =
+		{
+			PngEncodeOptions.Preset.MAXIMUM,
+			PngEncodeOptions.Preset.BALANCED,
+			PngEncodeOptions.Preset.FAST
+		};
+
+		final PngEncodeOptions.FilterStrategy[] aFilterStrategies =
+		{
+			PngEncodeOptions.FilterStrategy.ADAPTIVE,
+			PngEncodeOptions.FilterStrategy.MINSUM,
+			PngEncodeOptions.FilterStrategy.ENTROPY,
+			PngEncodeOptions.FilterStrategy.NONE,
+			PngEncodeOptions.FilterStrategy.PAETH,
+			PngEncodeOptions.FilterStrategy.SUB,
+			PngEncodeOptions.FilterStrategy.UP,
+			PngEncodeOptions.FilterStrategy.AVERAGE,
+			PngEncodeOptions.FilterStrategy.TRIAL
+		};
+
+		List<PngEncodeOptions> list = new ArrayList<>();
+		list.add(options);
+
+		for (PngEncodeOptions.Preset preset : aPresets)
+		{
+			for (PngEncodeOptions.FilterStrategy filterStrategy : aFilterStrategies)
+			{
+				for (PngEncodeOptions.Strategy strategy : PngEncodeOptions.Strategy.values())
+				{
+					if (preset != options.getPreset() || strategy != options.getStrategy() || filterStrategy != options.getFilterStrategy())
+					{
+						list.add(new PngEncodeOptions(preset, strategy, filterStrategy));
+					}
+				}
+			}
+		}
+
+		return list;
+	}
+
+	/**
+	 * Gets the results of the bitmaps squeezed, in the order of the data chunks.
+	 *
+	 * @return An unmodifiable list of {@link Result} objects.
+	 */
+	public List<Result> getResults()
+	{
+		return Collections.unmodifiableList(m_listResults);
+	}
+
+	/**
+	 * Gets the total saving of all bitmaps squeezed compared to the encode options given.
+	 * A change of the interlace method is included.
+	 *
+	 * @return A long containing the saving in bytes.
+	 */
+	public long getTotalSaving()
+	{
+		long lSaving = 0;
+
+		for (Result result : m_listResults)
+		{
+			lSaving += result.getSaving();
+		}
+
+		return lSaving;
+	}
+}
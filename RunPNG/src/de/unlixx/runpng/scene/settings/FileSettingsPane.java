@@ -10,8 +10,13 @@ import de.unlixx.runpng.bitmap.Bitmap32Optimizer;
 import de.unlixx.runpng.bitmap.Bitmap32Sequence;
 import de.unlixx.runpng.png.PngAnimationType;
 import de.unlixx.runpng.png.PngProject;
+import de.unlixx.runpng.png.io.PngBudgetEncoder;
+import de.unlixx.runpng.png.io.PngEncodeOptions;
+import de.unlixx.runpng.png.io.PngSqueezer;
 import de.unlixx.runpng.scene.FramePane;
+import de.unlixx.runpng.util.IdTextContainer;
 import de.unlixx.runpng.util.ImageUtil;
+import de.unlixx.runpng.util.Loc;
 import de.unlixx.runpng.util.Util;
 import de.unlixx.runpng.util.event.ValueEvent;
 import de.unlixx.runpng.util.undo.UndoEvent;
@@ -25,7 +30,9 @@ import javafx.geometry.Pos;
 import javafx.geometry.VPos;
 import javafx.scene.control.Button;
 import javafx.scene.control.CheckBox;
+import javafx.scene.control.ComboBox;
 import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
 import javafx.scene.control.RadioButton;
 import javafx.scene.control.Spinner;
 import javafx.scene.control.Tab;
@@ -128,6 +135,26 @@ public class FileSettingsPane extends AbstractSettingsPane
 	protected CheckBox m_checkPaletteOptimization;
 	protected Button m_buttonPaletteAnalyze;
 
+	protected PngEncodeOptions.Preset m_preset = PngEncodeOptions.Preset.MAXIMUM;
+	protected PngEncodeOptions.Strategy m_strategy = PngEncodeOptions.Strategy.DEFAULT;
+	protected PngEncodeOptions.Engine m_engine = PngEncodeOptions.Engine.ZLIB;
+
+	protected ToggleGroup m_togglesCompression;
+	protected RadioButton m_radioCompressionFast;
+	protected RadioButton m_radioCompressionBalanced;
+	protected RadioButton m_radioCompressionMaximum;
+
+	protected ComboBox<IdTextContainer<PngEncodeOptions.Strategy>> m_comboStrategy;
+	protected ComboBox<IdTextContainer<PngEncodeOptions.Engine>> m_comboEngine;
+
+	protected CheckBox m_checkSqueeze;
+	protected Spinner<Integer> m_spinnerSqueezeSeconds;
+	protected int m_nSqueezeSeconds = (int)(PngSqueezer.DEFAULT_TIME_BUDGET / 1000);
+
+	protected CheckBox m_checkSizeBudget;
+	protected Spinner<Integer> m_spinnerSizeBudgetKB;
+	protected int m_nSizeBudgetKB = (int)(PngBudgetEncoder.DEFAULT_BUDGET / 1024);
+
 	/**
 	 * Constructor of this FileSettingsPane.
 	 *
@@ -244,9 +271,432 @@ public class FileSettingsPane extends AbstractSettingsPane
 		m_buttonPaletteAnalyze = createTextButton("label.analysis", "tooltip.palette.analysis", action -> handlePaletteAnalyze());
 		add(m_buttonPaletteAnalyze, 3, 20, 1, 1);
 
+		label = createSectionLabel("label.compression");
+		add(label, 0, 22, 3, 1);
+		setValignment(label, VPos.BASELINE);
+
+		m_togglesCompression = new ToggleGroup();
+		m_togglesCompression.selectedToggleProperty().addListener((obs, toggleOld, toggleNew) -> handleToggleCompression(toggleOld, toggleNew));
+
+		m_radioCompressionFast = createRadioButton("label.compression.fast", "tooltip.compression.fast",
+				m_togglesCompression, PngEncodeOptions.Preset.FAST);
+		add(m_radioCompressionFast, 0, 23, 4, 1);
+
+		m_radioCompressionBalanced = createRadioButton("label.compression.balanced", "tooltip.compression.balanced",
+				m_togglesCompression, PngEncodeOptions.Preset.BALANCED);
+		add(m_radioCompressionBalanced, 0, 24, 4, 1);
+
+		m_radioCompressionMaximum = createRadioButton("label.compression.maximum", "tooltip.compression.maximum",
+				m_togglesCompression, PngEncodeOptions.Preset.MAXIMUM);
+		add(m_radioCompressionMaximum, 0, 25, 4, 1);
+
+		m_togglesCompression.selectToggle(m_radioCompressionMaximum);
+
+		label = createRowLabel("label.strategy");
+		add(label, 0, 26, 1, 1);
+
+		m_comboStrategy = new ComboBox<>();
+		m_comboStrategy.setMaxWidth(Double.MAX_VALUE);
+		m_comboStrategy.setTooltip(Util.createTooltip("tooltip.strategy"));
+		m_comboStrategy.setButtonCell(new ListCell<IdTextContainer<PngEncodeOptions.Strategy>>());
+		addStrategy("label.strategy.default", PngEncodeOptions.Strategy.DEFAULT);
+		addStrategy("label.strategy.filtered", PngEncodeOptions.Strategy.FILTERED);
+		addStrategy("label.strategy.huffmanonly", PngEncodeOptions.Strategy.HUFFMAN_ONLY);
+		m_comboStrategy.setOnAction(value -> handleStrategyChosen());
+		add(m_comboStrategy, 2, 26, 2, 1);
+
+		Loc.addChangeListener((localeOld, localeNew) -> updateButtonCell(m_comboStrategy));
+
+		selectStrategy(m_strategy);
+
+		label = createRowLabel("label.engine");
+		add(label, 0, 27, 1, 1);
+
+		m_comboEngine = new ComboBox<>();
+		m_comboEngine.setMaxWidth(Double.MAX_VALUE);
+		m_comboEngine.setTooltip(Util.createTooltip("tooltip.engine"));
+		m_comboEngine.setButtonCell(new ListCell<IdTextContainer<PngEncodeOptions.Engine>>());
+		addEngine("label.engine.zlib", PngEncodeOptions.Engine.ZLIB);
+		addEngine("label.engine.greedy", PngEncodeOptions.Engine.GREEDY);
+		addEngine("label.engine.optimal", PngEncodeOptions.Engine.OPTIMAL);
+		m_comboEngine.setOnAction(value -> handleEngineChosen());
+		add(m_comboEngine, 2, 27, 2, 1);
+
+		Loc.addChangeListener((localeOld, localeNew) -> updateButtonCell(m_comboEngine));
+
+		selectEngine(m_engine);
+
+		m_checkSqueeze = createCheckBox("label.squeeze", "tooltip.squeeze", value -> handleCheckSqueeze());
+		add(m_checkSqueeze, 0, 28, 2, 1);
+
+		m_spinnerSqueezeSeconds = createIntegerSpinner(m_nSqueezeSeconds, 1, 3600, 1, Pos.CENTER_RIGHT,
+				"tooltip.squeeze.budget", value -> handleSqueezeSecondsChange(value));
+		m_spinnerSqueezeSeconds.setDisable(true);
+		add(m_spinnerSqueezeSeconds, 2, 28, 1, 1);
+
+		label = new Label("s");
+		add(label, 3, 28, 1, 1);
+
+		m_checkSizeBudget = createCheckBox("label.sizebudget", "tooltip.sizebudget", value -> handleCheckSizeBudget());
+		add(m_checkSizeBudget, 0, 29, 2, 1);
+
+		m_spinnerSizeBudgetKB = createIntegerSpinner(m_nSizeBudgetKB, 1, 1024 * 1024, 1, Pos.CENTER_RIGHT,
+				"tooltip.sizebudget.kb", value -> handleSizeBudgetChange(value));
+		m_spinnerSizeBudgetKB.setDisable(true);
+		add(m_spinnerSizeBudgetKB, 2, 29, 1, 1);
+
+		label = new Label("KB");
+		add(label, 3, 29, 1, 1);
+
 		m_bAdjusting = false;
 	}
 
+	/**
+	 * Handles a user click of the squeeze check box.
+	 */
+	protected void handleCheckSqueeze()
+	{
+		m_spinnerSqueezeSeconds.setDisable(!m_checkSqueeze.isSelected());
+
+		if (isUserAction())
+		{
+			Undoable<CheckBox> undo = new Undoable<CheckBox>(m_checkSqueeze, "label.squeeze")
+			{
+				final boolean m_bSelected = m_checkSqueeze.isSelected();
+
+				@Override
+				public void undoAction()
+				{
+					m_checkSqueeze.setSelected(!m_bSelected);
+					m_spinnerSqueezeSeconds.setDisable(m_bSelected);
+				}
+
+				@Override
+				public void redoAction()
+				{
+					m_checkSqueeze.setSelected(m_bSelected);
+					m_spinnerSqueezeSeconds.setDisable(!m_bSelected);
+				}
+			};
+
+			getApp().addUndo(undo);
+		}
+	}
+
+	/**
+	 * Handles a change of the squeeze time budget.
+	 *
+	 * @param value A {@link ValueEvent} object.
+	 */
+	protected void handleSqueezeSecondsChange(ValueEvent<Integer> value)
+	{
+		int nSeconds = value.getValue();
+		if (nSeconds != m_nSqueezeSeconds)
+		{
+			if (isUserAction())
+			{
+				UndoableIntegerSpinner undo = new UndoableIntegerSpinner(m_spinnerSqueezeSeconds, m_nSqueezeSeconds, nSeconds, "label.squeeze");
+				getApp().addUndo(undo);
+			}
+
+			m_nSqueezeSeconds = nSeconds;
+		}
+	}
+
+	/**
+	 * Creates a squeezer for a png file save if the squeeze is chosen.
+	 *
+	 * @return A {@link PngSqueezer} object. Or null if the squeeze is not chosen.
+	 */
+	public PngSqueezer createSqueezer()
+	{
+		return m_checkSqueeze.isSelected() ? new PngSqueezer(m_nSqueezeSeconds * 1000L, true) : null;
+	}
+
+	/**
+	 * Handles a user click of the size budget check box.
+	 */
+	protected void handleCheckSizeBudget()
+	{
+		m_spinnerSizeBudgetKB.setDisable(!m_checkSizeBudget.isSelected());
+
+		if (isUserAction())
+		{
+			Undoable<CheckBox> undo = new Undoable<CheckBox>(m_checkSizeBudget, "label.sizebudget")
+			{
+				final boolean m_bSelected = m_checkSizeBudget.isSelected();
+
+				@Override
+				public void undoAction()
+				{
+					m_checkSizeBudget.setSelected(!m_bSelected);
+					m_spinnerSizeBudgetKB.setDisable(m_bSelected);
+				}
+
+				@Override
+				public void redoAction()
+				{
+					m_checkSizeBudget.setSelected(m_bSelected);
+					m_spinnerSizeBudgetKB.setDisable(!m_bSelected);
+				}
+			};
+
+			getApp().addUndo(undo);
+		}
+	}
+
+	/**
+	 * Handles a change of the size budget.
+	 *
+	 * @param value A {@link ValueEvent} object.
+	 */
+	protected void handleSizeBudgetChange(ValueEvent<Integer> value)
+	{
+		int nKB = value.getValue();
+		if (nKB != m_nSizeBudgetKB)
+		{
+			if (isUserAction())
+			{
+				UndoableIntegerSpinner undo = new UndoableIntegerSpinner(m_spinnerSizeBudgetKB, m_nSizeBudgetKB, nKB, "label.sizebudget");
+				getApp().addUndo(undo);
+			}
+
+			m_nSizeBudgetKB = nKB;
+		}
+	}
+
+	/**
+	 * Gets the size budget for a png file save if it is chosen.
+	 *
+	 * @return A long containing the maximum file size in bytes. Or 0 if the size budget is not chosen.
+	 */
+	public long getSizeBudget()
+	{
+		return m_checkSizeBudget.isSelected() ? m_nSizeBudgetKB * 1024L : 0;
+	}
+
+	/**
+	 * Internally used to add a deflate strategy to the strategy combo box.
+	 *
+	 * @param strId A string with a localizable label id.
+	 * @param strategy A {@link PngEncodeOptions.Strategy} enum type.
+	 */
+	protected void addStrategy(String strId, PngEncodeOptions.Strategy strategy)
+	{
+		IdTextContainer<PngEncodeOptions.Strategy> container = new IdTextContainer<PngEncodeOptions.Strategy>(strId, strategy);
+		Loc.addIdTextObject(container);
+		m_comboStrategy.getItems().add(container);
+	}
+
+	/**
+	 * Internally used to select a deflate strategy in the strategy combo box.
+	 *
+	 * @param strategy A {@link PngEncodeOptions.Strategy} enum type.
+	 */
+	protected void selectStrategy(PngEncodeOptions.Strategy strategy)
+	{
+		for (IdTextContainer<PngEncodeOptions.Strategy> container : m_comboStrategy.getItems())
+		{
+			if (container.getValue() == strategy)
+			{
+				m_comboStrategy.setValue(container);
+				break;
+			}
+		}
+
+		m_strategy = strategy;
+
+		updateButtonCell(m_comboStrategy);
+	}
+
+	/**
+	 * Updates the text of a combo box button cell to the localized text of its value.
+	 *
+	 * @param <T> The type of the values contained.
+	 * @param combo A {@link ComboBox} object.
+	 */
+	protected static <T> void updateButtonCell(ComboBox<IdTextContainer<T>> combo)
+	{
+		ListCell<IdTextContainer<T>> cell = combo.getButtonCell();
+		IdTextContainer<T> container = combo.getValue();
+		if (cell != null && container != null)
+		{
+			cell.setText(Loc.getString(container.getId()));
+		}
+	}
+
+	/**
+	 * Internally used to add a deflate engine to the engine combo box.
+	 *
+	 * @param strId A string with a localizable label id.
+	 * @param engine A {@link PngEncodeOptions.Engine} enum type.
+	 */
+	protected void addEngine(String strId, PngEncodeOptions.Engine engine)
+	{
+		IdTextContainer<PngEncodeOptions.Engine> container = new IdTextContainer<PngEncodeOptions.Engine>(strId, engine);
+		Loc.addIdTextObject(container);
+		m_comboEngine.getItems().add(container);
+	}
+
+	/**
+	 * Internally used to select a deflate engine in the engine combo box.
+	 *
+	 * @param engine A {@link PngEncodeOptions.Engine} enum type.
+	 */
+	protected void selectEngine(PngEncodeOptions.Engine engine)
+	{
+		for (IdTextContainer<PngEncodeOptions.Engine> container : m_comboEngine.getItems())
+		{
+			if (container.getValue() == engine)
+			{
+				m_comboEngine.setValue(container);
+				break;
+			}
+		}
+
+		m_engine = engine;
+
+		updateButtonCell(m_comboEngine);
+	}
+
+	/**
+	 * Handles a change of the compression preset by user interaction.
+	 *
+	 * @param toggleOld The old {@link Toggle} selected.
+	 * @param toggleNew The new {@link Toggle} selected.
+	 */
+	protected void handleToggleCompression(Toggle toggleOld, Toggle toggleNew)
+	{
+		if (toggleNew == null)
+		{
+			return;
+		}
+
+		PngEncodeOptions.Preset preset = (PngEncodeOptions.Preset)toggleNew.getUserData();
+
+		if (preset != m_preset)
+		{
+			if (isUserAction())
+			{
+				UndoableToggleGroup undo = new UndoableToggleGroup(m_togglesCompression, toggleOld, toggleNew, ((RadioButton)toggleNew).getId());
+				getApp().addUndo(undo);
+			}
+
+			m_preset = preset;
+		}
+	}
+
+	/**
+	 * Handles a choice of the deflate strategy.
+	 */
+	protected void handleStrategyChosen()
+	{
+		IdTextContainer<PngEncodeOptions.Strategy> container = m_comboStrategy.getValue();
+		if (container != null)
+		{
+			final PngEncodeOptions.Strategy strategyOld = m_strategy,
+					strategyNew = container.getValue();
+
+			if (strategyNew != strategyOld && isUserAction())
+			{
+				Undoable<ComboBox<?>> undo = new Undoable<ComboBox<?>>(m_comboStrategy, "label.strategy")
+				{
+					@Override
+					public void undoAction()
+					{
+						selectStrategy(strategyOld);
+					}
+
+					@Override
+					public void redoAction()
+					{
+						selectStrategy(strategyNew);
+					}
+				};
+
+				getApp().addUndo(undo);
+			}
+
+			m_strategy = strategyNew;
+
+			updateButtonCell(m_comboStrategy);
+		}
+	}
+
+	/**
+	 * Handles a choice of the deflate engine.
+	 */
+	protected void handleEngineChosen()
+	{
+		IdTextContainer<PngEncodeOptions.Engine> container = m_comboEngine.getValue();
+		if (container != null)
+		{
+			final PngEncodeOptions.Engine engineOld = m_engine,
+					engineNew = container.getValue();
+
+			if (engineNew != engineOld && isUserAction())
+			{
+				Undoable<ComboBox<?>> undo = new Undoable<ComboBox<?>>(m_comboEngine, "label.engine")
+				{
+					@Override
+					public void undoAction()
+					{
+						selectEngine(engineOld);
+					}
+
+					@Override
+					public void redoAction()
+					{
+						selectEngine(engineNew);
+					}
+				};
+
+				getApp().addUndo(undo);
+			}
+
+			m_engine = engineNew;
+
+			updateButtonCell(m_comboEngine);
+		}
+	}
+
+	/**
+	 * Sets the options for deflating the bitmaps while saving a png file.
+	 *
+	 * @param options A {@link PngEncodeOptions} object.
+	 */
+	public void setEncodeOptions(PngEncodeOptions options)
+	{
+		final boolean bAdjusting = m_bAdjusting;
+
+		m_bAdjusting = true;
+
+		m_preset = options.getPreset();
+		for (Toggle toggle : m_togglesCompression.getToggles())
+		{
+			if (m_preset.equals(toggle.getUserData()))
+			{
+				m_togglesCompression.selectToggle(toggle);
+				break;
+			}
+		}
+
+		selectStrategy(options.getStrategy());
+		selectEngine(options.getEngine());
+
+		m_bAdjusting = bAdjusting;
+	}
+
+	/**
+	 * Gets the options for deflating the bitmaps while saving a png file.
+	 *
+	 * @return A {@link PngEncodeOptions} object.
+	 */
+	public PngEncodeOptions getEncodeOptions()
+	{
+		return new PngEncodeOptions(m_preset, m_strategy, PngEncodeOptions.FilterStrategy.ADAPTIVE, m_engine);
+	}
+
 	/**
 	 * Handles a user click of the palette check box.
 	 */
@@ -895,6 +1345,18 @@ public class FileSettingsPane extends AbstractSettingsPane
 		m_checkInterlaced.setSelected(false);
 		m_checkPaletteOptimization.setSelected(false);
 
+		setEncodeOptions(PngEncodeOptions.MAXIMUM);
+
+		m_checkSqueeze.setSelected(false);
+		m_nSqueezeSeconds = (int)(PngSqueezer.DEFAULT_TIME_BUDGET / 1000);
+		m_spinnerSqueezeSeconds.getValueFactory().setValue(m_nSqueezeSeconds);
+		m_spinnerSqueezeSeconds.setDisable(true);
+
+		m_checkSizeBudget.setSelected(false);
+		m_nSizeBudgetKB = (int)(PngBudgetEncoder.DEFAULT_BUDGET / 1024);
+		m_spinnerSizeBudgetKB.getValueFactory().setValue(m_nSizeBudgetKB);
+		m_spinnerSizeBudgetKB.setDisable(true);
+
 		m_bAdjusting = false;
 	}
 
@@ -958,6 +1420,13 @@ public class FileSettingsPane extends AbstractSettingsPane
 
 		project.setMetaValue("filesettings", "interlaced", "" + m_checkInterlaced.isSelected());
 		project.setMetaValue("filesettings", "paletteoptimization", "" + m_checkPaletteOptimization.isSelected());
+		project.setMetaValue("filesettings", "compression", m_preset.toString());
+		project.setMetaValue("filesettings", "strategy", m_strategy.toString());
+		project.setMetaValue("filesettings", "engine", m_engine.toString());
+		project.setMetaValue("filesettings", "squeeze", "" + m_checkSqueeze.isSelected());
+		project.setMetaValue("filesettings", "squeezeseconds", m_nSqueezeSeconds);
+		project.setMetaValue("filesettings", "sizebudget", "" + m_checkSizeBudget.isSelected());
+		project.setMetaValue("filesettings", "sizebudgetkb", m_nSizeBudgetKB);
 	}
 
 	@Override
@@ -998,6 +1467,26 @@ public class FileSettingsPane extends AbstractSettingsPane
 			str = project.getMetaValue("filesettings", "paletteoptimization", "" + m_checkPaletteOptimization.isSelected());
 			m_checkPaletteOptimization.setSelected("true".equals(str));
 
+			setEncodeOptions(new PngEncodeOptions(
+					PngEncodeOptions.Preset.valueOf(project.getMetaValue("filesettings", "compression", m_preset.toString())),
+					PngEncodeOptions.Strategy.valueOf(project.getMetaValue("filesettings", "strategy", m_strategy.toString())),
+					PngEncodeOptions.FilterStrategy.ADAPTIVE,
+					PngEncodeOptions.Engine.valueOf(project.getMetaValue("filesettings", "engine", m_engine.toString()))));
+
+			str = project.getMetaValue("filesettings", "squeeze", "" + m_checkSqueeze.isSelected());
+			m_checkSqueeze.setSelected("true".equals(str));
+
+			m_nSqueezeSeconds = project.getMetaValueInt("filesettings", "squeezeseconds", m_nSqueezeSeconds);
+			m_spinnerSqueezeSeconds.getValueFactory().setValue(m_nSqueezeSeconds);
+			m_spinnerSqueezeSeconds.setDisable(!m_checkSqueeze.isSelected());
+
+			str = project.getMetaValue("filesettings", "sizebudget", "" + m_checkSizeBudget.isSelected());
+			m_checkSizeBudget.setSelected("true".equals(str));
+
+			m_nSizeBudgetKB = project.getMetaValueInt("filesettings", "sizebudgetkb", m_nSizeBudgetKB);
+			m_spinnerSizeBudgetKB.getValueFactory().setValue(m_nSizeBudgetKB);
+			m_spinnerSizeBudgetKB.setDisable(!m_checkSizeBudget.isSelected());
+
 			m_sizeChangeApplied = SIZECHANGE.valueOf(project.getMetaValue("filesettings", "sizechangeapplied", m_sizeChangeApplied.toString()));
 			for (Toggle toggle : m_togglesSizeChange.getToggles())
 			{
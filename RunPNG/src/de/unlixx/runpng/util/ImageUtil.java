@@ -1,5 +1,8 @@
 package de.unlixx.runpng.util;
 
+import java.lang.reflect.Constructor;
+import java.nio.Buffer;
+import java.nio.IntBuffer;
 import java.util.Arrays;
 
 import de.unlixx.runpng.bitmap.Bitmap32;
@@ -37,6 +40,31 @@ import javafx.scene.paint.Color;
  */
 public class ImageUtil
 {
+	// The PixelBuffer exists since JavaFX 13. It is resolved by reflection to keep running with Java 8.
+	static final Constructor<?> PIXELBUFFER_CONSTRUCTOR;
+	static final Constructor<WritableImage> WRITABLEIMAGE_CONSTRUCTOR;
+
+	static
+	{
+		Constructor<?> conPixelBuffer;
+		Constructor<WritableImage> conImage;
+
+		try
+		{
+			Class<?> clsPixelBuffer = Class.forName("javafx.scene.image.PixelBuffer");
+			conPixelBuffer = clsPixelBuffer.getConstructor(int.class, int.class, Buffer.class, PixelFormat.class);
+			conImage = WritableImage.class.getConstructor(clsPixelBuffer);
+		}
+		catch (ReflectiveOperationException | LinkageError e)
+		{
+			conPixelBuffer = null;
+			conImage = null;
+		}
+
+		PIXELBUFFER_CONSTRUCTOR = conPixelBuffer;
+		WRITABLEIMAGE_CONSTRUCTOR = conImage;
+	}
+
 	private ImageUtil() { }
 
 	/**
@@ -736,6 +764,79 @@ public class ImageUtil
 		return image;
 	}
 
+	/**
+	 * Creates an {@link Image} object which takes over the pixel array of the given {@link Bitmap32} object
+	 * instead of copying it, if the JavaFX runtime provides the PixelBuffer (JavaFX 13 and later). Else the
+	 * pixels are copied, but the image result is the same. The pixel array is converted in place to
+	 * premultiplied alpha, which is the precision an image keeps anyway. So the bitmap must not be used
+	 * any longer afterwards. Note that the image has no PixelWriter if it is backed by a PixelBuffer.
+	 *
+	 * @param bitmap The source bitmap object. Not usable afterwards.
+	 * @return An {@link Image} object of the same size.
+	 */
+	public static Image imageAdoptingBitmap(Bitmap32 bitmap)
+	{
+		final int nWidth = bitmap.getWidth(),
+			nHeight = bitmap.getHeight(),
+			anPixels[] = bitmap.getPixels();
+
+		if (nWidth == 0 || nHeight == 0)
+		{
+			return imageFromBitmap(bitmap);
+		}
+
+		premultiply(anPixels);
+
+		if (PIXELBUFFER_CONSTRUCTOR != null)
+		{
+			try
+			{
+				Object pixelBuffer = PIXELBUFFER_CONSTRUCTOR.newInstance(nWidth, nHeight,
+						IntBuffer.wrap(anPixels), PixelFormat.getIntArgbPreInstance());
+
+				return WRITABLEIMAGE_CONSTRUCTOR.newInstance(pixelBuffer);
+			}
+			catch (ReflectiveOperationException e)
+			{
+				// Fall through and copy
+			}
+		}
+
+		WritableImage image = new WritableImage(nWidth, nHeight);
+		PixelWriter pxwriter = image.getPixelWriter();
+		pxwriter.setPixels(0, 0, nWidth, nHeight,
+				PixelFormat.getIntArgbPreInstance(), anPixels, 0, nWidth);
+
+		return image;
+	}
+
+	/**
+	 * Converts ARGB pixels in place to premultiplied alpha.
+	 *
+	 * @param anPixels An int array containing ARGB pixels.
+	 */
+	public static void premultiply(int[] anPixels)
+	{
+		for (int n = 0, nLen = anPixels.length; n < nLen; n++)
+		{
+			final int nARGB = anPixels[n],
+				nA = nARGB >>> 24;
+
+			if (nA == 0)
+			{
+				anPixels[n] = 0;
+			}
+			else if (nA < 255)
+			{
+				final int nR = (((nARGB >> 16) & 0xff) * nA + 127) / 255,
+					nG = (((nARGB >> 8) & 0xff) * nA + 127) / 255,
+					nB = ((nARGB & 0xff) * nA + 127) / 255;
+
+				anPixels[n] = nA << 24 | nR << 16 | nG << 8 | nB;
+			}
+		}
+	}
+
 	/**
 	 * Creates a {@link Bitmap32} object from
 	 * a given {@link Image} object.
@@ -0,0 +1,197 @@
+package de.unlixx.runpng.util;
+
+import java.util.Arrays;
+
+/**
+ * A hash map of primitive int keys to int values by open addressing with linear probing.
+ * Avoids the boxing of {@link java.util.HashMap} for lookups per pixel, like palette indices
+ * of ARGB values. Removal is not supported. Not synchronized, but concurrent reads
+ * are safe once it is filled.
+ *
+ * @author H. Unland (https://github.com/HUnland)
+ *
+   <!--
+   Copyright 2021 H. Unland (https://github.com/HUnland)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+   -->
+ *
+ */
+public class IntHashMap
+{
+	protected int[] m_anKeys;
+	protected int[] m_anValues;
+	protected boolean[] m_abUsed;
+	protected int m_nMask;
+	protected int m_nShift;
+	protected int m_nSize;
+
+	/**
+	 * Constructor for this IntHashMap.
+	 *
+	 * @param nExpected An int containing the expected number of entries.
+	 * The map grows beyond, but this avoids rehashing.
+	 */
+	public IntHashMap(int nExpected)
+	{
+		// At most half full
+		int nCapacity = 16;
+		while (nCapacity < nExpected * 2)
+		{
+			nCapacity <<= 1;
+		}
+
+		allocate(nCapacity);
+	}
+
+	/**
+	 * Internally used to allocate the tables.
+	 *
+	 * @param nCapacity An int containing the capacity, a power of 2.
+	 */
+	protected void allocate(int nCapacity)
+	{
+		m_anKeys = new int[nCapacity];
+		m_anValues = new int[nCapacity];
+		m_abUsed = new boolean[nCapacity];
+		m_nMask = nCapacity - 1;
+		m_nShift = 32 - Integer.numberOfTrailingZeros(nCapacity);
+		m_nSize = 0;
+	}
+
+	/**
+	 * Internally used to get the start slot of a key. The multiplicative hash spreads
+	 * similar colors, which differ in the lower bits only.
+	 *
+	 * @param nKey An int containing the key.
+	 * @return An int containing the slot.
+	 */
+	protected int slot(int nKey)
+	{
+		return (nKey * 0x9e3779b9) >>> m_nShift;
+	}
+
+	/**
+	 * Puts a value for a key, replacing the former value.
+	 *
+	 * @param nKey An int containing the key.
+	 * @param nValue An int containing the value.
+	 */
+	public void put(int nKey, int nValue)
+	{
+		int n = slot(nKey);
+		while (m_abUsed[n])
+		{
+			if (m_anKeys[n] == nKey)
+			{
+				m_anValues[n] = nValue;
+				return;
+			}
+
+			n = (n + 1) & m_nMask;
+		}
+
+		m_abUsed[n] = true;
+		m_anKeys[n] = nKey;
+		m_anValues[n] = nValue;
+
+		if (++m_nSize * 2 > m_anKeys.length)
+		{
+			rehash();
+		}
+	}
+
+	/**
+	 * Gets the value of a key.
+	 *
+	 * @param nKey An int containing the key.
+	 * @param nDefault An int containing the value to return if the key is not contained.
+	 * @return An int containing the value. Or the default.
+	 */
+	public int get(int nKey, int nDefault)
+	{
+		int n = slot(nKey);
+		while (m_abUsed[n])
+		{
+			if (m_anKeys[n] == nKey)
+			{
+				return m_anValues[n];
+			}
+
+			n = (n + 1) & m_nMask;
+		}
+
+		return nDefault;
+	}
+
+	/**
+	 * Tells whether a key is contained.
+	 *
+	 * @param nKey An int containing the key.
+	 * @return True, if the key is contained.
+	 */
+	public boolean containsKey(int nKey)
+	{
+		int n = slot(nKey);
+		while (m_abUsed[n])
+		{
+			if (m_anKeys[n] == nKey)
+			{
+				return true;
+			}
+
+			n = (n + 1) & m_nMask;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Gets the number of entries.
+	 *
+	 * @return An int containing the number of entries.
+	 */
+	public int size()
+	{
+		return m_nSize;
+	}
+
+	/**
+	 * Removes all entries.
+	 */
+	public void clear()
+	{
+		Arrays.fill(m_abUsed, false);
+		m_nSize = 0;
+	}
+
+	/**
+	 * Internally used to double the capacity.
+	 */
+	protected void rehash()
+	{
+		final int[] anKeys = m_anKeys,
+				anValues = m_anValues;
+		final boolean[] abUsed = m_abUsed;
+
+		allocate(anKeys.length * 2);
+
+		for (int n = 0; n < anKeys.length; n++)
+		{
+			if (abUsed[n])
+			{
+				put(anKeys[n], anValues[n]);
+			}
+		}
+	}
+}
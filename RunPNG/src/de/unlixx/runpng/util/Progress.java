@@ -122,13 +122,13 @@ public abstract class Progress<T> extends Task<T>
 	 *
 	 * @param lDone The absolute workDone value.
 	 */
-	public void updateProgress(long lDone)
+	public synchronized void updateProgress(long lDone)
 	{
 		updateProgress(lDone, m_lWork);
 	}
 
 	@Override
-	public void updateProgress(long lDone, long lWork)
+	public synchronized void updateProgress(long lDone, long lWork)
 	{
 		m_lWork = Math.max(1, lWork);
 		m_lDone = Math.min(lDone, m_lWork);
@@ -138,10 +138,11 @@ public abstract class Progress<T> extends Task<T>
 
 	/**
 	 * Updates the workDone and progress property with an incremental value.
+	 * This may be invoked by several threads working in parallel.
 	 *
 	 * @param lWorked The incremental value added to the workDone property.
 	 */
-	public void addProgress(long lWorked)
+	public synchronized void addProgress(long lWorked)
 	{
 		m_lDone = Math.min(m_lDone + lWorked, m_lWork);
 
@@ -153,7 +154,7 @@ public abstract class Progress<T> extends Task<T>
 	 *
 	 * @return A long integer with the workDone value.
 	 */
-	public long getDone()
+	public synchronized long getDone()
 	{
 		return m_lDone;
 	}